@@ -0,0 +1,165 @@
+package org.rakam.importer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rakam.importer.Event;
+import io.rakam.client.model.User;
+import org.rakam.importer.amplitude.AmplitudeImporter;
+import org.rakam.importer.amplitude.ArchiveCache;
+import org.rakam.importer.amplitude.EventFilter;
+import org.rakam.importer.sink.Sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a generated Amplitude archive, the scores are per event.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(AmplitudeImporterBenchmark.EVENTS)
+public class AmplitudeImporterBenchmark
+{
+    private static final int ENTRIES = 4;
+    private static final int EVENTS_PER_ENTRY = 5_000;
+    static final int EVENTS = ENTRIES * EVENTS_PER_ENTRY;
+
+    @Param({"10", "50"})
+    public int width;
+
+    @Param({"100", "100000"})
+    public int cardinality;
+
+    private final AmplitudeImporter importer = new AmplitudeImporter("api-key", "secret-key");
+    private final Event event = new Event();
+    private File archive;
+    private File cacheDirectory;
+    private ArchiveCache cache;
+    // one of the event types is imported, the others are rejected by looking for the event type in the raw line
+    private EventFilter includeFilter;
+    // the same selection, but the event type of each line is read with the streaming parser
+    private EventFilter excludeFilter;
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        archive = File.createTempFile("amplitude-benchmark", ".zip");
+        new SyntheticData(42, width, cardinality).writeAmplitudeArchive(archive, ENTRIES, EVENTS_PER_ENTRY);
+
+        List<String> eventTypes = SyntheticData.getEventTypes();
+        includeFilter = new EventFilter(new HashSet<>(eventTypes.subList(0, 1)), null, null, Long.MIN_VALUE, Long.MAX_VALUE);
+        excludeFilter = new EventFilter(null, new HashSet<>(eventTypes.subList(1, eventTypes.size())), null, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        cacheDirectory = Files.createTempDirectory("amplitude-benchmark-cache").toFile();
+        cache = new ArchiveCache(cacheDirectory, archive);
+        try (ArchiveCache.Writer writer = cache.createWriter(ArchiveCache.DEFAULT_BLOCK_SIZE)) {
+            Event[] batch = {event};
+            importer.importEvents(archive, null, null, null, null, () -> {
+                if (event.properties != null) {
+                    writer.writeEvents(Arrays.asList(batch));
+                }
+                return event;
+            });
+            writer.writeEvents(Arrays.asList(batch));
+            writer.commit();
+        }
+        event.properties = null;
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        archive.delete();
+        File[] files = cacheDirectory.listFiles();
+        if (files != null) {
+            Arrays.stream(files).forEach(File::delete);
+        }
+        cacheDirectory.delete();
+    }
+
+    @Benchmark
+    public void importEvents(Blackhole blackhole)
+    {
+        importEvents(null, blackhole);
+    }
+
+    @Benchmark
+    public void importIncludedEvents(Blackhole blackhole)
+    {
+        importEvents(includeFilter, blackhole);
+    }
+
+    @Benchmark
+    public void importNotExcludedEvents(Blackhole blackhole)
+    {
+        importEvents(excludeFilter, blackhole);
+    }
+
+    private void importEvents(EventFilter filter, Blackhole blackhole)
+    {
+        importer.importEvents(archive, null, filter, null, null, () -> {
+            // the previous event is filled when the next one is requested
+            blackhole.consume(event.properties);
+            return event;
+        });
+        blackhole.consume(event.properties);
+    }
+
+    @Benchmark
+    public long importConvertedEvents(Blackhole blackhole)
+    {
+        return cache.importEvents(new Sink()
+        {
+            @Override
+            public void writeEvents(List<Event> events)
+            {
+                for (Event event : events) {
+                    blackhole.consume(event.properties);
+                }
+            }
+
+            @Override
+            public void writeUsers(List<User> users)
+            {
+            }
+
+            @Override
+            public void flush()
+            {
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        }, null, null, Runnable::run, 1, EVENTS);
+    }
+
+    @Benchmark
+    public int getTotalEvents()
+    {
+        return importer.getTotalEvents(archive);
+    }
+}
@@ -0,0 +1,68 @@
+package org.rakam.importer.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.lang.String.format;
+
+/**
+ * Prints the difference between two JMH result files that are written with {@code -rf json}, e.g. the results of two commits.
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar org.rakam.importer.benchmark.CompareResults base.json new.json
+ * </pre>
+ */
+public class CompareResults
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public static void main(String[] args)
+            throws IOException
+    {
+        if (args.length != 2) {
+            System.err.println("Usage: CompareResults <base result json> <new result json>");
+            System.exit(1);
+        }
+
+        Map<String, JsonNode> base = read(new File(args[0]));
+        Map<String, JsonNode> current = read(new File(args[1]));
+
+        System.out.println(format("%-90s %14s %14s %9s", "Benchmark", "Base", "New", "Change"));
+        for (Map.Entry<String, JsonNode> entry : current.entrySet()) {
+            JsonNode metric = entry.getValue().get("primaryMetric");
+            double score = metric.get("score").asDouble();
+            String unit = metric.get("scoreUnit").asText();
+
+            JsonNode baseResult = base.get(entry.getKey());
+            if (baseResult == null) {
+                System.out.println(format("%-90s %14s %14.3f %9s %s", entry.getKey(), "-", score, "new", unit));
+                continue;
+            }
+
+            double baseScore = baseResult.get("primaryMetric").get("score").asDouble();
+            System.out.println(format("%-90s %14.3f %14.3f %+8.1f%% %s", entry.getKey(), baseScore, score, (score - baseScore) * 100 / baseScore, unit));
+        }
+    }
+
+    private static Map<String, JsonNode> read(File file)
+            throws IOException
+    {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        for (JsonNode result : mapper.readTree(file)) {
+            StringBuilder key = new StringBuilder(result.get("benchmark").asText().replace("org.rakam.importer.benchmark.", ""));
+            JsonNode params = result.get("params");
+            if (params != null) {
+                Map<String, String> sorted = new TreeMap<>();
+                params.fields().forEachRemaining(param -> sorted.put(param.getKey(), param.getValue().asText()));
+                sorted.forEach((name, value) -> key.append(' ').append(name).append('=').append(value));
+            }
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,77 @@
+package org.rakam.importer.benchmark;
+
+import io.rakam.client.model.SchemaField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rakam.importer.Event;
+import org.rakam.importer.sink.JdbcSink;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes batches to an in-memory H2 database through the JDBC sink, the scores are per row.
+ * Each iteration uses a new database so that the tables don't grow across the iterations.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(JdbcSinkBenchmark.EVENTS)
+public class JdbcSinkBenchmark
+{
+    static final int EVENTS = 10_000;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"1", "100"})
+    public int rowsPerStatement;
+
+    private List<Event> events;
+    private List<SchemaField> schema;
+    private JdbcSink sink;
+    private int database;
+
+    @Setup
+    public void setup()
+    {
+        SyntheticData data = new SyntheticData(42, 20, 1000);
+        events = data.events(EVENTS);
+        schema = data.eventSchema();
+    }
+
+    @Setup(Level.Iteration)
+    public void createSink()
+    {
+        // the in-memory database is dropped when the sink closes its connections
+        sink = new JdbcSink("jdbc:h2:mem:benchmark" + database++, "sa", "", threads, rowsPerStatement, 50_000, "VARCHAR", collection -> schema);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeSink()
+    {
+        sink.close();
+    }
+
+    @Benchmark
+    public void writeEvents()
+    {
+        sink.writeEvents(events);
+        sink.flush();
+    }
+}
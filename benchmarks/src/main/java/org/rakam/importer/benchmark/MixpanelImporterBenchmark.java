@@ -0,0 +1,112 @@
+package org.rakam.importer.benchmark;
+
+import io.rakam.client.model.SchemaField;
+import io.rakam.client.model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rakam.importer.EventBatcher;
+import org.rakam.importer.mixpanel.EngageResult;
+import org.rakam.importer.mixpanel.MixpanelEventImporter;
+import org.rakam.importer.mixpanel.MixpanelImporter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processes a generated Mixpanel export and engage page, the scores are per line or person.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MixpanelImporterBenchmark
+{
+    static final int EVENTS = 10_000;
+    static final int PEOPLE = 1_000;
+    static final int NAMES = 100;
+
+    @Param({"10", "50"})
+    public int width;
+
+    @Param({"100", "100000"})
+    public int cardinality;
+
+    private final MixpanelImporter importer = new MixpanelImporter("api-key", "secret-key");
+    private byte[] export;
+    private Map<String, SchemaField> schema;
+    private List<EngageResult.Person> page;
+    private String[] names;
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        SyntheticData data = new SyntheticData(42, width, cardinality);
+        export = data.mixpanelExport(EVENTS);
+        schema = data.mixpanelSchema();
+        page = data.engagePage(PEOPLE);
+        // the names don't depend on the parameters so that the scores are comparable
+        names = new SyntheticData(42, NAMES, 1).getPropertyNames();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void importEventsWithMapping(Blackhole blackhole)
+            throws IOException
+    {
+        importer.importEvents(new ByteArrayInputStream(export), "export", "collection", schema, 0, null, null, newBatcher(blackhole));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void importEventsWithoutMapping(Blackhole blackhole)
+            throws IOException
+    {
+        importer.importEvents(new ByteArrayInputStream(export), "export", "collection", null, 0, null, null, newBatcher(blackhole));
+    }
+
+    private static EventBatcher newBatcher(Blackhole blackhole)
+    {
+        // the batches are consumed on the parsing thread so that only the parsing is measured
+        return new EventBatcher(blackhole::consume, Runnable::run, 10000, Long.MAX_VALUE, 1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PEOPLE)
+    public List<User> convertPeopleWithMapping()
+    {
+        return MixpanelImporter.convertPeople(page, schema);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PEOPLE)
+    public List<User> convertPeopleWithoutMapping()
+    {
+        return MixpanelImporter.convertPeople(page, null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NAMES)
+    public void convertRakamName(Blackhole blackhole)
+    {
+        for (String name : names) {
+            blackhole.consume(MixpanelEventImporter.convertRakamName(name));
+        }
+    }
+}
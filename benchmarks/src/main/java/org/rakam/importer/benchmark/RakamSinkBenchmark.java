@@ -0,0 +1,58 @@
+package org.rakam.importer.benchmark;
+
+import okhttp3.OkHttpClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rakam.importer.Event;
+import org.rakam.importer.sink.RakamSink;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes a batch as the body of the Rakam bulk request, the scores are per event.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(RakamSinkBenchmark.EVENTS)
+public class RakamSinkBenchmark
+{
+    static final int EVENTS = 10_000;
+
+    @Param({"10", "50"})
+    public int width;
+
+    @Param({"100", "100000"})
+    public int cardinality;
+
+    private RakamSink sink;
+    private List<Event> events;
+
+    @Setup
+    public void setup()
+    {
+        // no request is sent, the address is only validated
+        sink = new RakamSink(new OkHttpClient(), "http://127.0.0.1:9999", "write-key", "/event/bulk");
+        events = new SyntheticData(42, width, cardinality).events(EVENTS);
+    }
+
+    @Benchmark
+    public byte[] generateContent()
+    {
+        return sink.generateContent(events);
+    }
+}
@@ -0,0 +1,303 @@
+package org.rakam.importer.benchmark;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.rakam.client.model.SchemaField;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.rakam.importer.Event;
+import org.rakam.importer.mixpanel.EngageResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import static java.lang.String.format;
+
+/**
+ * Generates data in the export formats of the services. The output only depends on the seed, so the benchmarks of different commits
+ * process the same bytes.
+ * <p>
+ * {@code width} is the number of custom properties of an event or user, {@code cardinality} is the number of distinct values of each property
+ * and the number of distinct users. The properties are strings, integers, decimals and booleans in turn.
+ */
+public class SyntheticData
+{
+    private static final JsonFactory FACTORY = new JsonFactory();
+    private static final int EVENT_TYPES = 20;
+    // 2016-01-05T00:00:00Z
+    private static final long START_EPOCH_SECONDS = 1451952000L;
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSS").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter ENTRY_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_H").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter LAST_SEEN_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").withZone(ZoneOffset.UTC);
+
+    private final Random random;
+    private final int width;
+    private final int cardinality;
+    private final String[] propertyNames;
+    private final String[] stringValues;
+
+    public SyntheticData(long seed, int width, int cardinality)
+    {
+        this.random = new Random(seed);
+        this.width = width;
+        this.cardinality = cardinality;
+        this.propertyNames = new String[width];
+        for (int i = 0; i < width; i++) {
+            propertyNames[i] = format("Property %d$Name", i);
+        }
+        this.stringValues = new String[cardinality];
+        for (int i = 0; i < cardinality; i++) {
+            stringValues[i] = "value-" + Integer.toHexString(random.nextInt()) + "-" + i;
+        }
+    }
+
+    public String[] getPropertyNames()
+    {
+        return propertyNames;
+    }
+
+    public static List<String> getEventTypes()
+    {
+        List<String> eventTypes = new ArrayList<>();
+        for (int i = 0; i < EVENT_TYPES; i++) {
+            eventTypes.add("Event Type " + i);
+        }
+        return eventTypes;
+    }
+
+    /**
+     * Returns the Mixpanel types of the generated properties as they are reported by the toptypes endpoint.
+     */
+    public Map<String, String> getMixpanelTypes()
+    {
+        Map<String, String> types = new LinkedHashMap<>();
+        for (int i = 0; i < width; i++) {
+            types.put(propertyNames[i], getType(i) == SchemaField.TypeEnum.STRING ? "string" : getType(i) == SchemaField.TypeEnum.BOOLEAN ? "boolean" : "number");
+        }
+        return types;
+    }
+
+    /**
+     * Writes an archive that is laid out like the response of the Amplitude export API: one gzipped NDJSON entry per hour.
+     */
+    public void writeAmplitudeArchive(File file, int entries, int eventsPerEntry)
+            throws IOException
+    {
+        writeAmplitudeArchive(file, START_EPOCH_SECONDS, entries, eventsPerEntry);
+    }
+
+    /**
+     * @param startEpochSeconds the start of the first hour
+     */
+    public void writeAmplitudeArchive(File file, long startEpochSeconds, int entries, int eventsPerEntry)
+            throws IOException
+    {
+        try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(file)) {
+            for (int hour = 0; hour < entries; hour++) {
+                long hourStart = startEpochSeconds + hour * 3600L;
+                zip.putArchiveEntry(new ZipArchiveEntry(format("100/100_%s#0.json.gz", ENTRY_FORMAT.format(Instant.ofEpochSecond(hourStart)))));
+                // finish() completes the gzip stream without closing the archive
+                GZIPOutputStream gzip = new GZIPOutputStream(zip, 64 * 1024);
+                for (int i = 0; i < eventsPerEntry; i++) {
+                    writeAmplitudeEvent(gzip, hourStart + (i * 3600L / eventsPerEntry));
+                }
+                gzip.finish();
+                zip.closeArchiveEntry();
+            }
+        }
+    }
+
+    private void writeAmplitudeEvent(OutputStream output, long epochSeconds)
+            throws IOException
+    {
+        JsonGenerator generator = FACTORY.createGenerator(output);
+        generator.writeStartObject();
+        generator.writeStringField("uuid", new UUID(random.nextLong(), random.nextLong()).toString());
+        generator.writeStringField("event_type", "Event Type " + random.nextInt(EVENT_TYPES));
+        generator.writeStringField("event_time", TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(epochSeconds, random.nextInt(1_000_000) * 1000)));
+        generator.writeStringField("client_upload_time", TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(epochSeconds + 5, random.nextInt(1_000_000) * 1000)));
+        generator.writeStringField("user_id", "user-" + random.nextInt(cardinality));
+        generator.writeStringField("device_id", "device-" + random.nextInt(cardinality));
+        generator.writeStringField("platform", "iOS");
+        generator.writeStringField("os_name", "ios");
+        generator.writeStringField("os_version", "9.2");
+        generator.writeStringField("country", "United States");
+        generator.writeStringField("city", "San Francisco");
+        generator.writeStringField("ip_address", "10.0.0." + random.nextInt(256));
+        generator.writeNumberField("session_id", epochSeconds * 1000);
+        generator.writeNumberField("location_lat", 37.7749);
+        generator.writeNumberField("location_lng", -122.4194);
+        generator.writeBooleanField("is_attribution_event", false);
+        generator.writeObjectFieldStart("user_properties");
+        generator.writeStringField("plan", stringValues[random.nextInt(cardinality)]);
+        generator.writeEndObject();
+        generator.writeObjectFieldStart("event_properties");
+        writeProperties(generator);
+        generator.writeEndObject();
+        generator.writeEndObject();
+        generator.flush();
+        output.write('\n');
+    }
+
+    /**
+     * Returns the body of a Mixpanel export response, the event times are in the project timezone.
+     */
+    public byte[] mixpanelExport(int events)
+            throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(events * (100 + width * 30));
+        for (int i = 0; i < events; i++) {
+            JsonGenerator generator = FACTORY.createGenerator(output);
+            generator.writeStartObject();
+            generator.writeStringField("event", "Event Type " + random.nextInt(EVENT_TYPES));
+            generator.writeObjectFieldStart("properties");
+            generator.writeNumberField("time", START_EPOCH_SECONDS + i);
+            generator.writeStringField("distinct_id", "user-" + random.nextInt(cardinality));
+            generator.writeStringField("$insert_id", Long.toHexString(random.nextLong()));
+            generator.writeStringField("$lib_version", "2.8.0");
+            generator.writeStringField("mp_lib", "android");
+            generator.writeStringField("$referrer", "https://example.com/" + random.nextInt(cardinality));
+            writeProperties(generator);
+            generator.writeEndObject();
+            generator.writeEndObject();
+            generator.flush();
+            output.write('\n');
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Returns the mapping of the generated Mixpanel properties in the form of {@link org.rakam.importer.mixpanel.Table#mapping}.
+     */
+    public Map<String, SchemaField> mixpanelSchema()
+    {
+        Map<String, SchemaField> schema = new HashMap<>();
+        for (int i = 0; i < width; i++) {
+            schema.put(propertyNames[i], field("property_" + i + "_name", getType(i)));
+        }
+        schema.put("time", field("_time", SchemaField.TypeEnum.TIMESTAMP));
+        schema.put("distinct_id", field("distinct_id", SchemaField.TypeEnum.STRING));
+        schema.put("mp_lib", field("mp_lib", SchemaField.TypeEnum.STRING));
+        schema.put("$referrer", field("_referrer", SchemaField.TypeEnum.STRING));
+        return schema;
+    }
+
+    /**
+     * Returns the fields of the events that are created by {@link #events(int)}.
+     */
+    public List<SchemaField> eventSchema()
+    {
+        List<SchemaField> fields = new ArrayList<>();
+        for (int i = 0; i < width; i++) {
+            fields.add(field(propertyNames[i], getType(i)));
+        }
+        fields.add(field("_time", SchemaField.TypeEnum.TIMESTAMP));
+        fields.add(field("_user", SchemaField.TypeEnum.STRING));
+        return fields;
+    }
+
+    public List<Event> events(int count)
+    {
+        List<Event> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Event event = new Event();
+            event.collection = "event_type_" + random.nextInt(EVENT_TYPES);
+            event.properties = new HashMap<>();
+            event.properties.put("_time", (START_EPOCH_SECONDS + i) * 1000);
+            event.properties.put("_user", "user-" + random.nextInt(cardinality));
+            for (int column = 0; column < width; column++) {
+                event.properties.put(propertyNames[column], nextValue(column));
+            }
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * Returns a page of the engage endpoint.
+     */
+    public List<EngageResult.Person> engagePage(int people)
+    {
+        List<EngageResult.Person> page = new ArrayList<>(people);
+        for (int i = 0; i < people; i++) {
+            Map<String, Object> properties = new LinkedHashMap<>();
+            properties.put("$last_seen", LAST_SEEN_FORMAT.format(Instant.ofEpochSecond(START_EPOCH_SECONDS + i)));
+            properties.put("$email", "user-" + i + "@example.com");
+            for (int column = 0; column < width; column++) {
+                properties.put(propertyNames[column], nextValue(column));
+            }
+            page.add(new EngageResult.Person("user-" + random.nextInt(cardinality), properties));
+        }
+        return page;
+    }
+
+    private void writeProperties(JsonGenerator generator)
+            throws IOException
+    {
+        for (int column = 0; column < width; column++) {
+            generator.writeFieldName(propertyNames[column]);
+            switch (column % 4) {
+                case 0:
+                    generator.writeString(stringValues[random.nextInt(cardinality)]);
+                    break;
+                case 1:
+                    generator.writeNumber(random.nextInt(cardinality));
+                    break;
+                case 2:
+                    generator.writeNumber(random.nextInt(cardinality) / 100.0);
+                    break;
+                default:
+                    generator.writeBoolean(random.nextBoolean());
+            }
+        }
+    }
+
+    private Object nextValue(int column)
+    {
+        switch (column % 4) {
+            case 0:
+                return stringValues[random.nextInt(cardinality)];
+            case 1:
+                return (long) random.nextInt(cardinality);
+            case 2:
+                return random.nextInt(cardinality) / 100.0;
+            default:
+                return random.nextBoolean();
+        }
+    }
+
+    private static SchemaField.TypeEnum getType(int column)
+    {
+        switch (column % 4) {
+            case 0:
+                return SchemaField.TypeEnum.STRING;
+            case 1:
+                return SchemaField.TypeEnum.LONG;
+            case 2:
+                return SchemaField.TypeEnum.DOUBLE;
+            default:
+                return SchemaField.TypeEnum.BOOLEAN;
+        }
+    }
+
+    private static SchemaField field(String name, SchemaField.TypeEnum type)
+    {
+        SchemaField field = new SchemaField();
+        field.setName(name);
+        field.setType(type);
+        return field;
+    }
+}
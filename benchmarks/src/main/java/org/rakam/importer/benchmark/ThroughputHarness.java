@@ -0,0 +1,280 @@
+package org.rakam.importer.benchmark;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import io.airlift.airline.Arguments;
+import io.airlift.airline.Command;
+import io.airlift.airline.Option;
+import io.airlift.airline.SingleCommand;
+import org.rakam.importer.Importer;
+import org.rakam.importer.benchmark.server.FakeAmplitudeServer;
+import org.rakam.importer.benchmark.server.FakeMixpanelServer;
+import org.rakam.importer.benchmark.server.FakeRakamServer;
+import org.rakam.importer.benchmark.server.FakeServer;
+import org.rakam.importer.benchmark.server.FaultInjection;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Runs an importer command in a separate JVM against local stand-ins of the services and reports the throughput and the peak RSS of the importer.
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar org.rakam.importer.benchmark.ThroughputHarness --source amplitude --days 2 --latency-ms 50
+ * </pre>
+ */
+@Command(name = "throughput", description = "Runs an importer command against local stand-ins of the services")
+public class ThroughputHarness
+        implements Runnable
+{
+    private static final LocalDate START = LocalDate.of(2016, 1, 5);
+
+    @Option(name = "--source", description = "One of amplitude, mixpanel-events or mixpanel-people")
+    public String source = "amplitude";
+
+    @Option(name = "--days", description = "Number of days that are imported")
+    public int days = 1;
+
+    @Option(name = "--events-per-hour", description = "Amplitude events of every hour")
+    public int eventsPerHour = 10_000;
+
+    @Option(name = "--events-per-day", description = "Mixpanel events of every day and event type")
+    public int eventsPerDay = 10_000;
+
+    @Option(name = "--people", description = "Number of Mixpanel people")
+    public int people = 100_000;
+
+    @Option(name = "--width", description = "Number of custom properties of the events and people")
+    public int width = 20;
+
+    @Option(name = "--cardinality", description = "Number of distinct values of each property")
+    public int cardinality = 1000;
+
+    @Option(name = "--latency-ms", description = "Latency of every request to the source service")
+    public long latencyMillis;
+
+    @Option(name = "--bandwidth", description = "Bytes per second of a source response body, unlimited by default")
+    public long bandwidth;
+
+    @Option(name = "--throttle-rate", description = "Share of the source requests that are rejected with 429")
+    public double throttleRate;
+
+    @Option(name = "--error-rate", description = "Share of the source requests that fail with 500")
+    public double errorRate;
+
+    @Option(name = "--rakam.latency-ms", description = "Latency of every request to Rakam")
+    public long rakamLatencyMillis;
+
+    @Option(name = "--rakam.throttle-rate", description = "Share of the Rakam requests that are rejected with 429")
+    public double rakamThrottleRate;
+
+    @Option(name = "--rakam.error-rate", description = "Share of the Rakam requests that fail with 500")
+    public double rakamErrorRate;
+
+    @Option(name = "--workers", description = "Number of importer processes that share a worker directory")
+    public int workers = 1;
+
+    @Option(name = "--jvm-options", description = "Options of the importer JVM")
+    public String jvmOptions = "-Xmx2g";
+
+    @Arguments(description = "Additional options of the importer command")
+    public List<String> importerOptions = new ArrayList<>();
+
+    public static void main(String[] args)
+    {
+        SingleCommand.singleCommand(ThroughputHarness.class).parse(args).run();
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            File workDirectory = Files.createTempDirectory("importer-harness").toFile();
+            SyntheticData data = new SyntheticData(42, width, cardinality);
+            FaultInjection sourceFaults = new FaultInjection(latencyMillis, bandwidth, throttleRate, errorRate);
+
+            try (FakeRakamServer rakam = new FakeRakamServer(new FaultInjection(rakamLatencyMillis, 0, rakamThrottleRate, rakamErrorRate))) {
+                rakam.start();
+
+                List<String> command = new ArrayList<>();
+                FakeServer sourceServer;
+                switch (source) {
+                    case "amplitude":
+                        FakeAmplitudeServer amplitude = new FakeAmplitudeServer(data, eventsPerHour, new File(workDirectory, "archives"), sourceFaults);
+                        // the importer downloads the whole range at once unless it's larger than its batch size
+                        amplitude.prepare(START.atStartOfDay(), START.plusDays(days).atStartOfDay());
+                        sourceServer = amplitude;
+                        command.addAll(ImmutableList.of("amplitude", "import-events",
+                                "--amplitude.api-key", "api-key", "--amplitude.api-secret", "secret",
+                                "--amplitude.address", sourceServer.getAddress(),
+                                "--rakam.project.master-key", "master-key",
+                                "--start", START.toString(), "--end", START.plusDays(days).toString()));
+                        break;
+                    case "mixpanel-events":
+                        sourceServer = new FakeMixpanelServer(data, eventsPerDay, people, sourceFaults);
+                        command.addAll(ImmutableList.of("mixpanel", "import",
+                                "--mixpanel.api-key", "api-key", "--mixpanel.api-secret", "secret",
+                                "--mixpanel.address", sourceServer.getAddress(), "--mixpanel.data-address", sourceServer.getAddress(),
+                                "--rakam.project.write-key", "write-key",
+                                "--start", START.toString(), "--end", START.plusDays(days - 1).toString()));
+                        break;
+                    case "mixpanel-people":
+                        sourceServer = new FakeMixpanelServer(data, eventsPerDay, people, sourceFaults);
+                        command.addAll(ImmutableList.of("mixpanel", "import-people",
+                                "--mixpanel.api-key", "api-key", "--mixpanel.api-secret", "secret",
+                                "--mixpanel.address", sourceServer.getAddress(), "--mixpanel.data-address", sourceServer.getAddress(),
+                                "--mixpanel.project.timezone", "0",
+                                "--rakam.project.write-key", "write-key"));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown source: " + source);
+                }
+                command.addAll(ImmutableList.of("--rakam.address", rakam.getAddress()));
+                if (workers > 1) {
+                    if ("mixpanel-people".equals(source)) {
+                        throw new IllegalArgumentException("mixpanel-people can't be imported by multiple workers");
+                    }
+                    if ("amplitude".equals(source)) {
+                        command.addAll(ImmutableList.of("--mode", "worker"));
+                    }
+                    command.addAll(ImmutableList.of("--worker.directory", new File(workDirectory, "shared").getAbsolutePath()));
+                }
+                command.addAll(importerOptions);
+
+                try (FakeServer server = sourceServer) {
+                    server.start();
+                    report(server, rakam, runImporter(workDirectory, command));
+                }
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private Result runImporter(File workDirectory, List<String> arguments)
+            throws IOException, InterruptedException
+    {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        Splitter.on(' ').omitEmptyStrings().split(jvmOptions).forEach(command::add);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Importer.class.getName());
+        command.addAll(arguments);
+
+        long start = System.nanoTime();
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            // each worker downloads to the files directory of its working directory
+            File directory = workers > 1 ? new File(workDirectory, "worker-" + i) : workDirectory;
+            directory.mkdirs();
+            processes.add(new ProcessBuilder(command).directory(directory).inheritIO().start());
+        }
+
+        // the high water mark of a process is only readable while it's running
+        long peakRss = 0;
+        int exitCode = 0;
+        for (Process process : processes) {
+            while (!process.waitFor(100, TimeUnit.MILLISECONDS)) {
+                for (Process running : processes) {
+                    if (running.isAlive()) {
+                        peakRss = Math.max(peakRss, readPeakRss(getPid(running)));
+                    }
+                }
+            }
+            if (process.exitValue() != 0) {
+                exitCode = process.exitValue();
+            }
+        }
+        return new Result(exitCode, System.nanoTime() - start, peakRss);
+    }
+
+    private void report(FakeServer source, FakeRakamServer rakam, Result result)
+    {
+        double seconds = result.elapsedNanos / 1e9;
+        long served;
+        if (source instanceof FakeAmplitudeServer) {
+            served = ((FakeAmplitudeServer) source).getExportedEvents();
+        }
+        else if ("mixpanel-people".equals(this.source)) {
+            served = ((FakeMixpanelServer) source).getExportedPeople();
+        }
+        else {
+            served = ((FakeMixpanelServer) source).getExportedEvents();
+        }
+        long delivered = rakam.getEvents() + rakam.getUsers();
+
+        System.out.println();
+        System.out.println(format("source               : %s (exit code %d)", this.source, result.exitCode));
+        System.out.println(format("elapsed              : %.1f s", seconds));
+        System.out.println(format("records exported     : %d (%.0f/s)", served, served / seconds));
+        System.out.println(format("records delivered    : %d (%.0f/s)", delivered, delivered / seconds));
+        System.out.println(format("source requests      : %d, %d bytes, %d throttled, %d failed",
+                source.getRequests(), source.getBytesSent(), source.getFaults().getThrottled(), source.getFaults().getFailed()));
+        System.out.println(format("rakam requests       : %d, %d bytes, %d throttled, %d failed",
+                rakam.getRequests(), rakam.getBytesReceived(), rakam.getFaults().getThrottled(), rakam.getFaults().getFailed()));
+        System.out.println(format("schema fields        : %d", rakam.getSchemaFields()));
+        System.out.println(format("peak RSS             : %s%s", workers > 1 ? "per worker " : "", result.peakRssKb > 0 ? format("%d MB", result.peakRssKb / 1024) : "unavailable"));
+    }
+
+    private static long getPid(Process process)
+    {
+        try {
+            // Process.pid() is available since Java 9, the field is used on Java 8
+            return (long) Process.class.getMethod("pid").invoke(process);
+        }
+        catch (ReflectiveOperationException e) {
+            try {
+                Field field = process.getClass().getDeclaredField("pid");
+                field.setAccessible(true);
+                return field.getInt(process);
+            }
+            catch (ReflectiveOperationException e1) {
+                return -1;
+            }
+        }
+    }
+
+    // VmHWM of /proc/<pid>/status in kB, it's only available on Linux
+    private static long readPeakRss(long pid)
+    {
+        if (pid < 0) {
+            return 0;
+        }
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+                }
+            }
+        }
+        catch (IOException | NumberFormatException e) {
+            // the process exited or the platform doesn't have procfs
+        }
+        return 0;
+    }
+
+    private static class Result
+    {
+        private final int exitCode;
+        private final long elapsedNanos;
+        private final long peakRssKb;
+
+        public Result(int exitCode, long elapsedNanos, long peakRssKb)
+        {
+            this.exitCode = exitCode;
+            this.elapsedNanos = elapsedNanos;
+            this.peakRssKb = peakRssKb;
+        }
+    }
+}
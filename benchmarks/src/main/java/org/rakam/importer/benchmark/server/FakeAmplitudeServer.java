@@ -0,0 +1,146 @@
+package org.rakam.importer.benchmark.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import org.rakam.importer.benchmark.SyntheticData;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the export and segmentation endpoints of the Amplitude API with {@code eventsPerHour} generated events for every hour.
+ * The archives are generated once per time range and support range requests so that resumed downloads can be tested.
+ */
+public class FakeAmplitudeServer
+        extends FakeServer
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'H");
+
+    private final SyntheticData data;
+    private final int eventsPerHour;
+    private final File directory;
+    private final Map<String, File> archives = new ConcurrentHashMap<>();
+    private final AtomicLong exportedEvents = new AtomicLong();
+
+    public FakeAmplitudeServer(SyntheticData data, int eventsPerHour, File directory, FaultInjection faults)
+    {
+        super("fake-amplitude", faults);
+        this.data = data;
+        this.eventsPerHour = eventsPerHour;
+        this.directory = directory;
+        directory.mkdirs();
+
+        route("/api/2/events/segmentation", this::segmentation);
+        route("/api/2/export", this::export);
+    }
+
+    private void segmentation(HttpExchange exchange, Map<String, String> parameters)
+            throws IOException
+    {
+        LocalDateTime start = LocalDateTime.parse(parameters.get("start"), DATE_FORMAT);
+        LocalDateTime end = LocalDateTime.parse(parameters.get("end"), DATE_FORMAT);
+
+        // the importer asks for monthly totals
+        List<String> months = new ArrayList<>();
+        List<Long> counts = new ArrayList<>();
+        long total = 0;
+        LocalDateTime month = start.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS);
+        while (!month.isAfter(end)) {
+            LocalDateTime nextMonth = month.plusMonths(1);
+            LocalDateTime from = month.isBefore(start) ? start : month;
+            LocalDateTime to = nextMonth.isAfter(end) ? end : nextMonth;
+            long count = Math.max(0, ChronoUnit.HOURS.between(from, to)) * eventsPerHour;
+            months.add(month.toLocalDate().toString());
+            counts.add(count);
+            total += count;
+            month = nextMonth;
+        }
+
+        Map<String, Object> response = ImmutableMap.of("data", ImmutableMap.of(
+                "series", ImmutableList.of(counts),
+                "seriesCollapsed", ImmutableList.of(ImmutableList.of(ImmutableMap.of("setId", "", "value", total))),
+                "xValues", months));
+        respond(exchange, 200, "application/json", mapper.writeValueAsBytes(response));
+    }
+
+    private void export(HttpExchange exchange, Map<String, String> parameters)
+            throws IOException
+    {
+        LocalDateTime start = LocalDateTime.parse(parameters.get("start"), DATE_FORMAT);
+        LocalDateTime end = LocalDateTime.parse(parameters.get("end"), DATE_FORMAT);
+        File archive = getArchive(start, end);
+
+        long length = archive.length();
+        long offset = 0;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=") && range.endsWith("-")) {
+            offset = Long.parseLong(range.substring("bytes=".length(), range.length() - 1));
+            if (offset >= length) {
+                respond(exchange, 416, "text/plain", new byte[0]);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", String.format("bytes %d-%d/%d", offset, length - 1, length));
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/zip");
+        exchange.sendResponseHeaders(offset > 0 ? 206 : 200, length - offset);
+        try (RandomAccessFile file = new RandomAccessFile(archive, "r");
+                OutputStream output = openBody(exchange)) {
+            file.seek(offset);
+            InputStream input = Channels.newInputStream(file.getChannel());
+            ByteStreams.copy(input, output);
+        }
+        exportedEvents.addAndGet((ChronoUnit.HOURS.between(start, end) + 1) * eventsPerHour);
+    }
+
+    /**
+     * Generates the archive of the range before it's requested so that the generation is not measured as download time.
+     */
+    public void prepare(LocalDateTime start, LocalDateTime end)
+    {
+        getArchive(start, end);
+    }
+
+    private File getArchive(LocalDateTime start, LocalDateTime end)
+    {
+        // the end hour is inclusive
+        return archives.computeIfAbsent(start + "-" + end, key -> {
+            File file = new File(directory, key.replace(':', '_') + ".zip");
+            int hours = (int) ChronoUnit.HOURS.between(start, end) + 1;
+            try {
+                synchronized (data) {
+                    data.writeAmplitudeArchive(file, start.toEpochSecond(ZoneOffset.UTC), hours, eventsPerHour);
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return file;
+        });
+    }
+
+    /**
+     * Returns the number of events in the archives that are downloaded completely.
+     */
+    public long getExportedEvents()
+    {
+        return exportedEvents.get();
+    }
+}
@@ -0,0 +1,170 @@
+package org.rakam.importer.benchmark.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.sun.net.httpserver.HttpExchange;
+import org.rakam.importer.benchmark.SyntheticData;
+import org.rakam.importer.mixpanel.EngageResult;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Serves the export, engage, events/names, events/properties/toptypes and engage/properties endpoints of the Mixpanel API.
+ * The export endpoint returns {@code eventsPerDay} generated events for every day of the requested range and event,
+ * the engage endpoint pages through {@code people} generated people. The people are seen evenly during the last year, the engage
+ * endpoint only serves the ones in the {@code $last_seen} range of the selector. The signatures of the requests are not checked.
+ */
+public class FakeMixpanelServer
+        extends FakeServer
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final String PREFIX = "/api/2.0/";
+    private static final int PAGE_SIZE = 1000;
+    private static final Pattern LOWER_BOUND = Pattern.compile(">= datetime\\((\\d+)\\)");
+    private static final Pattern UPPER_BOUND = Pattern.compile("< datetime\\((\\d+)\\)");
+
+    private final SyntheticData data;
+    private final int eventsPerDay;
+    private final int people;
+    private final byte[] dayOfEvents;
+    private final long firstSeen = System.currentTimeMillis() / 1000 - TimeUnit.DAYS.toSeconds(365);
+    private final Map<String, Integer> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong exportedEvents = new AtomicLong();
+    private final AtomicLong exportedPeople = new AtomicLong();
+
+    public FakeMixpanelServer(SyntheticData data, int eventsPerDay, int people, FaultInjection faults)
+            throws IOException
+    {
+        super("fake-mixpanel", faults);
+        this.data = data;
+        this.eventsPerDay = eventsPerDay;
+        this.people = people;
+        // the same day of events is served for every day, generating the events would dominate the response time
+        this.dayOfEvents = data.mixpanelExport(eventsPerDay);
+
+        route(PREFIX + "export", this::export);
+        route(PREFIX + "engage/properties", this::engageProperties);
+        route(PREFIX + "engage", this::engage);
+        route(PREFIX + "events/names", (exchange, parameters) ->
+                respond(exchange, 200, "application/json", mapper.writeValueAsBytes(SyntheticData.getEventTypes())));
+        route(PREFIX + "events/properties/toptypes", this::topTypes);
+    }
+
+    /**
+     * The base url that is used both as the API and the raw export address of the importer.
+     */
+    @Override
+    public String getAddress()
+    {
+        return super.getAddress() + PREFIX;
+    }
+
+    private void export(HttpExchange exchange, Map<String, String> parameters)
+            throws IOException
+    {
+        long days = ChronoUnit.DAYS.between(LocalDate.parse(parameters.get("from_date")), LocalDate.parse(parameters.get("to_date"))) + 1;
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, days * dayOfEvents.length);
+        try (OutputStream output = openBody(exchange)) {
+            for (long day = 0; day < days; day++) {
+                output.write(dayOfEvents);
+            }
+        }
+        exportedEvents.addAndGet(days * eventsPerDay);
+    }
+
+    private void engage(HttpExchange exchange, Map<String, String> parameters)
+            throws IOException
+    {
+        int page = parameters.containsKey("page") ? Integer.parseInt(parameters.get("page")) : 0;
+        String sessionId = parameters.get("session_id");
+        if (sessionId == null) {
+            sessionId = UUID.randomUUID().toString();
+            sessions.put(sessionId, countPeople(parameters.get("selector")));
+        }
+        int total = sessions.getOrDefault(sessionId, 0);
+        int size = Math.max(0, Math.min(PAGE_SIZE, total - page * PAGE_SIZE));
+
+        List<EngageResult.Person> persons;
+        synchronized (data) {
+            persons = data.engagePage(size);
+        }
+        List<Map<String, Object>> results = persons.stream()
+                .map(person -> ImmutableMap.of("$distinct_id", person.id, "$properties", person.properties))
+                .collect(Collectors.toList());
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("page", page);
+        response.put("page_size", PAGE_SIZE);
+        response.put("results", results);
+        response.put("session_id", sessionId);
+        response.put("status", "ok");
+        response.put("total", total);
+        respond(exchange, 200, "application/json", mapper.writeValueAsBytes(response));
+        exportedPeople.addAndGet(size);
+    }
+
+    /**
+     * Returns the number of people whose last seen time is in the range of the selector,
+     * the person {@code i} is seen {@code i * 365 / people} days after {@code firstSeen}.
+     */
+    private int countPeople(String selector)
+    {
+        if (selector == null) {
+            return people;
+        }
+        long span = TimeUnit.DAYS.toSeconds(365);
+        Matcher lower = LOWER_BOUND.matcher(selector);
+        Matcher upper = UPPER_BOUND.matcher(selector);
+        long first = lower.find() ? (long) Math.ceil((Long.parseLong(lower.group(1)) - firstSeen) * (double) people / span) : 0;
+        long last = upper.find() ? (long) Math.ceil((Long.parseLong(upper.group(1)) - firstSeen) * (double) people / span) : people;
+        return (int) Math.max(0, Math.min(people, last) - Math.max(0, first));
+    }
+
+    private void engageProperties(HttpExchange exchange, Map<String, String> parameters)
+            throws IOException
+    {
+        Map<String, Object> response = ImmutableMap.of(
+                "results", getTopTypes(),
+                "session_id", UUID.randomUUID().toString(),
+                "status", "ok");
+        respond(exchange, 200, "application/json", mapper.writeValueAsBytes(response));
+    }
+
+    private void topTypes(HttpExchange exchange, Map<String, String> parameters)
+            throws IOException
+    {
+        respond(exchange, 200, "application/json", mapper.writeValueAsBytes(getTopTypes()));
+    }
+
+    private Map<String, Object> getTopTypes()
+    {
+        Map<String, Object> types = new LinkedHashMap<>();
+        data.getMixpanelTypes().forEach((name, type) -> types.put(name, ImmutableMap.of("count", eventsPerDay, "type", type)));
+        return types;
+    }
+
+    public long getExportedEvents()
+    {
+        return exportedEvents.get();
+    }
+
+    public long getExportedPeople()
+    {
+        return exportedPeople.get();
+    }
+}
@@ -0,0 +1,111 @@
+package org.rakam.importer.benchmark.server;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.io.CountingInputStream;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Accepts the event, user and schema requests of the importer and counts the records without keeping them.
+ */
+public class FakeRakamServer
+        extends FakeServer
+{
+    private static final JsonFactory FACTORY = new JsonFactory();
+    private static final byte[] OK = "1".getBytes(UTF_8);
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong users = new AtomicLong();
+    private final AtomicLong schemaFields = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    public FakeRakamServer(FaultInjection faults)
+    {
+        super("fake-rakam", faults);
+        route("/event/bulk", this::events);
+        route("/event/batch", this::events);
+        route("/user/", this::users);
+        route("/project/schema/add", this::schema);
+    }
+
+    private void schema(HttpExchange exchange, Map<String, String> parameters)
+            throws IOException
+    {
+        schemaFields.addAndGet(countElements(exchange.getRequestBody(), "fields"));
+        respond(exchange, 200, "application/json", OK);
+    }
+
+    private void events(HttpExchange exchange, Map<String, String> parameters)
+            throws IOException
+    {
+        events.addAndGet(countElements(exchange.getRequestBody(), "events"));
+        respond(exchange, 200, "application/json", OK);
+    }
+
+    private void users(HttpExchange exchange, Map<String, String> parameters)
+            throws IOException
+    {
+        users.addAndGet(countElements(exchange.getRequestBody(), "users"));
+        respond(exchange, 200, "application/json", OK);
+    }
+
+    /**
+     * Counts the elements of the array field of the root object without materializing them.
+     */
+    private long countElements(InputStream body, String field)
+            throws IOException
+    {
+        long count = 0;
+        CountingInputStream input = new CountingInputStream(body);
+        try (JsonParser parser = FACTORY.createParser(input)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return 0;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (name.equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        parser.skipChildren();
+                        count++;
+                    }
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        finally {
+            bytesReceived.addAndGet(input.getCount());
+        }
+        return count;
+    }
+
+    public long getEvents()
+    {
+        return events.get();
+    }
+
+    public long getUsers()
+    {
+        return users.get();
+    }
+
+    public long getSchemaFields()
+    {
+        return schemaFields.get();
+    }
+
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+}
@@ -0,0 +1,167 @@
+package org.rakam.importer.benchmark.server;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.airlift.log.Logger;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Base class of the local stand-ins of the services, the server listens on a random port of the loopback interface.
+ */
+public abstract class FakeServer
+        implements Closeable
+{
+    private final static Logger LOGGER = Logger.get(FakeServer.class);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final FaultInjection faults;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    protected FakeServer(String name, FaultInjection faults)
+    {
+        this.faults = faults;
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+        server.setExecutor(executor);
+    }
+
+    public void start()
+    {
+        server.start();
+    }
+
+    public String getAddress()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+    public FaultInjection getFaults()
+    {
+        return faults;
+    }
+
+    protected void route(String path, Handler handler)
+    {
+        server.createContext(path, exchange -> {
+            requests.incrementAndGet();
+            try {
+                int status = faults.nextStatus();
+                if (status != 0) {
+                    if (status == 429) {
+                        exchange.getResponseHeaders().set("Retry-After", "1");
+                    }
+                    respond(exchange, status, "text/plain", ("Injected " + status).getBytes(UTF_8));
+                    return;
+                }
+                handler.handle(exchange, getParameters(exchange));
+            }
+            catch (Throwable e) {
+                LOGGER.error(e, "Error while handling %s", exchange.getRequestURI());
+                respond(exchange, 500, "text/plain", String.valueOf(e.getMessage()).getBytes(UTF_8));
+            }
+            finally {
+                exchange.close();
+            }
+        });
+    }
+
+    protected void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+            throws IOException
+    {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream output = openBody(exchange)) {
+            output.write(body);
+        }
+    }
+
+    /**
+     * Returns the response body stream which is throttled if a bandwidth is set, the headers must be sent before.
+     */
+    protected OutputStream openBody(HttpExchange exchange)
+    {
+        OutputStream output = new CountingOutputStream(exchange.getResponseBody());
+        return faults.getBytesPerSecond() > 0 ? new ThrottledOutputStream(output, faults.getBytesPerSecond()) : output;
+    }
+
+    private static Map<String, String> getParameters(HttpExchange exchange)
+            throws IOException
+    {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : Splitter.on('&').omitEmptyStrings().split(query)) {
+            int index = parameter.indexOf('=');
+            if (index > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, index), "UTF-8"), URLDecoder.decode(parameter.substring(index + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    protected interface Handler
+    {
+        void handle(HttpExchange exchange, Map<String, String> parameters)
+                throws IOException;
+    }
+
+    private class CountingOutputStream
+            extends FilterOutputStream
+    {
+        CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            out.write(b, off, len);
+            bytesSent.addAndGet(len);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.rakam.importer.benchmark.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Degrades the responses of a fake server: every request waits for {@code latencyMillis}, the response bodies are written at most at
+ * {@code bytesPerSecond} and a share of the requests fail with 429 or 500.
+ */
+public class FaultInjection
+{
+    public static final FaultInjection NONE = new FaultInjection(0, 0, 0, 0);
+
+    private final long latencyMillis;
+    private final long bytesPerSecond;
+    private final double throttleRate;
+    private final double errorRate;
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param bytesPerSecond bandwidth of a response body, 0 for unlimited
+     * @param throttleRate share of the requests that are rejected with 429
+     * @param errorRate share of the requests that fail with 500
+     */
+    public FaultInjection(long latencyMillis, long bytesPerSecond, double throttleRate, double errorRate)
+    {
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        this.throttleRate = throttleRate;
+        this.errorRate = errorRate;
+    }
+
+    public long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Returns the status code that the request should fail with or 0 if it should succeed.
+     */
+    int nextStatus()
+            throws InterruptedException
+    {
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+
+        double random = ThreadLocalRandom.current().nextDouble();
+        if (random < throttleRate) {
+            throttled.incrementAndGet();
+            return 429;
+        }
+        if (random < throttleRate + errorRate) {
+            failed.incrementAndGet();
+            return 500;
+        }
+        return 0;
+    }
+
+    public long getThrottled()
+    {
+        return throttled.get();
+    }
+
+    public long getFailed()
+    {
+        return failed.get();
+    }
+}
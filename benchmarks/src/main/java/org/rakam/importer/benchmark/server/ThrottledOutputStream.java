@@ -0,0 +1,54 @@
+package org.rakam.importer.benchmark.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+class ThrottledOutputStream
+        extends FilterOutputStream
+{
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final long bytesPerSecond;
+    private final long start = System.nanoTime();
+    private long written;
+
+    ThrottledOutputStream(OutputStream out, long bytesPerSecond)
+    {
+        super(out);
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public void write(int b)
+            throws IOException
+    {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        while (len > 0) {
+            int chunk = Math.min(len, CHUNK_SIZE);
+            out.write(b, off, chunk);
+            written += chunk;
+            off += chunk;
+            len -= chunk;
+
+            long ahead = written * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond - (System.nanoTime() - start);
+            if (ahead > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(ahead);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+}
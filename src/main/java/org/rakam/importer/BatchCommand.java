@@ -0,0 +1,156 @@
+package org.rakam.importer;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.airline.Command;
+import io.airlift.airline.Option;
+import io.airlift.log.Logger;
+import org.rakam.importer.amplitude.AmplitudeEventImporter;
+import org.rakam.importer.metrics.MetricsOptions;
+import org.rakam.importer.mixpanel.MixpanelEventImporter;
+import org.rakam.importer.mixpanel.MixpanelPeopleImporter;
+
+import javax.inject.Inject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.lang.String.format;
+
+/**
+ * Runs the jobs of a manifest in one process. The jobs share the HTTP connection pools and the threads that import the Amplitude archives,
+ * the threads take the tasks of the jobs in turn so a large project doesn't delay the small ones until it's completed.
+ * The Mixpanel exports mostly wait for Mixpanel and run on the I/O executor of their job instead of the shared threads.
+ * <p>
+ * The manifest is a JSON array of jobs that have a unique name and the arguments of the command that they run, e.g.
+ * {@code [{"name": "acme", "args": ["amplitude", "import-events", "--amplitude.api-key", "..."]}]}
+ */
+@Command(name = "batch", description = "Runs the import jobs of a manifest in one process")
+public class BatchCommand
+        implements Runnable
+{
+    private final static Logger LOGGER = Logger.get(BatchCommand.class);
+
+    @Option(name = "--batch.manifest", description = "JSON file that lists the jobs", required = true)
+    public String manifest;
+
+    @Option(name = "--batch.threads", description = "Number of threads that are shared by the jobs to import the data")
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--batch.concurrency", description = "Maximum number of jobs that run at the same time, all of them by default")
+    public Integer concurrency;
+
+    @Inject
+    public MetricsOptions metricsOptions = new MetricsOptions();
+
+    @Override
+    public void run()
+    {
+        metricsOptions.start();
+        Map<String, Runnable> jobs = parseManifest(new File(manifest));
+
+        int jobThreads = concurrency == null ? jobs.size() : Math.max(1, Math.min(concurrency, jobs.size()));
+        ExecutorService runners = Executors.newFixedThreadPool(jobThreads, new ThreadFactoryBuilder().setNameFormat("batch-job-%d").build());
+        Map<String, Future<?>> futures = new LinkedHashMap<>();
+        try (FairScheduler scheduler = new FairScheduler("batch-import", threads)) {
+            for (Map.Entry<String, Runnable> entry : jobs.entrySet()) {
+                String name = entry.getKey();
+                Runnable job = configure(name, entry.getValue(), scheduler);
+                futures.put(name, runners.submit(() -> {
+                    LOGGER.info("Starting job %s", name);
+                    long startTime = System.currentTimeMillis();
+                    job.run();
+                    LOGGER.info("Job %s completed in %d seconds", name, (System.currentTimeMillis() - startTime) / 1000);
+                }));
+            }
+
+            List<String> failed = new ArrayList<>();
+            for (Map.Entry<String, Future<?>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                }
+                catch (ExecutionException e) {
+                    LOGGER.error(e.getCause(), "Job %s failed", entry.getKey());
+                    failed.add(entry.getKey());
+                }
+            }
+
+            if (!failed.isEmpty()) {
+                throw new RuntimeException(format("%d of %d jobs failed: %s", failed.size(), jobs.size(), failed));
+            }
+            LOGGER.info("All %d jobs are completed", jobs.size());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+        finally {
+            runners.shutdownNow();
+        }
+    }
+
+    private Runnable configure(String name, Runnable job, FairScheduler scheduler)
+    {
+        if (job instanceof AmplitudeEventImporter) {
+            AmplitudeEventImporter importer = (AmplitudeEventImporter) job;
+            importer.importExecutor = scheduler.newQueue(name);
+            importer.importThreads = scheduler.getThreadCount();
+            // the archives of the same date range of different projects would overwrite each other
+            if (AmplitudeEventImporter.DEFAULT_DOWNLOAD_DIRECTORY.equals(importer.downloadDirectory)) {
+                importer.downloadDirectory = new File(AmplitudeEventImporter.DEFAULT_DOWNLOAD_DIRECTORY, name).getPath();
+            }
+        }
+        return job;
+    }
+
+    private static Map<String, Runnable> parseManifest(File file)
+    {
+        List<Job> jobs;
+        try {
+            jobs = new ObjectMapper().readValue(file, new TypeReference<List<Job>>() {});
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read the manifest " + file, e);
+        }
+
+        Set<Class<?>> supported = new HashSet<>();
+        supported.add(AmplitudeEventImporter.class);
+        supported.add(MixpanelEventImporter.class);
+        supported.add(MixpanelPeopleImporter.class);
+
+        Map<String, Runnable> commands = new LinkedHashMap<>();
+        for (Job job : jobs) {
+            if (job.name == null || job.args == null) {
+                throw new IllegalArgumentException("Each job in the manifest must have a name and args");
+            }
+            if (commands.containsKey(job.name)) {
+                throw new IllegalArgumentException("Job name is not unique: " + job.name);
+            }
+
+            Runnable command = Importer.createCli().parse(job.args);
+            if (!supported.contains(command.getClass())) {
+                throw new IllegalArgumentException(format("Job %s must be one of amplitude import-events, mixpanel import or mixpanel import-people", job.name));
+            }
+            commands.put(job.name, command);
+        }
+        return commands;
+    }
+
+    public static class Job
+    {
+        public String name;
+        public List<String> args;
+    }
+}
@@ -0,0 +1,25 @@
+package org.rakam.importer;
+
+import io.airlift.airline.Option;
+
+import java.io.File;
+
+public class ChangeDetectionOptions
+{
+    @Option(name = "--changed-only", description = "Send only the users that are new or whose properties changed since they were sent")
+    public boolean enabled;
+
+    @Option(name = "--changed-only.expected-users", description = "Number of users the fingerprint set is sized for, it takes ~12 bytes per user plus the free slots")
+    public long expectedUsers = 10_000_000;
+
+    @Option(name = "--changed-only.file", description = "File that keeps the fingerprints of the sent users across runs")
+    public String file;
+
+    public UserFingerprintSet createFingerprintSet()
+    {
+        if (!enabled) {
+            return null;
+        }
+        return file != null ? UserFingerprintSet.persistent(new File(file), expectedUsers) : UserFingerprintSet.inMemory(expectedUsers);
+    }
+}
@@ -0,0 +1,25 @@
+package org.rakam.importer;
+
+import io.airlift.airline.Option;
+
+import java.io.File;
+
+public class DeduplicationOptions
+{
+    @Option(name = "--dedup", description = "Drop the events whose id is already imported (Amplitude uuid, Mixpanel $insert_id)")
+    public boolean enabled;
+
+    @Option(name = "--dedup.expected-events", description = "Number of event ids the deduplication set is sized for, it takes ~5 bytes per id")
+    public long expectedEvents = 100_000_000;
+
+    @Option(name = "--dedup.file", description = "File that keeps the imported event ids across runs")
+    public String file;
+
+    public EventIdSet createIdSet()
+    {
+        if (!enabled) {
+            return null;
+        }
+        return file != null ? EventIdSet.persistent(new File(file), expectedEvents) : EventIdSet.inMemory(expectedEvents);
+    }
+}
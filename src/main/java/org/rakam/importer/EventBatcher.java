@@ -0,0 +1,174 @@
+package org.rakam.importer;
+
+import com.google.common.base.Throwables;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Collects the events of a single producer into batches and writes the full batches on an executor, so the producer fills
+ * the next batch while the previous one is being encoded and sent. A batch is full when it has {@code batchSize} events
+ * or the size of the source records of its events reaches {@code batchBytes}.
+ * <p>
+ * The batches, the events and their property maps are pooled and reused once the writer returns, which the sinks allow.
+ * The producer waits for a written batch when all {@code buffers} batches are in use.
+ */
+public class EventBatcher
+{
+    private final Consumer<List<Event>> writer;
+    private final Executor executor;
+    private final int batchSize;
+    private final long batchBytes;
+    private final int buffers;
+    private final BlockingQueue<Event[]> pool;
+
+    // accessed by the producer
+    private int allocated;
+    private Event[] current;
+    private int size;
+    private long bytes;
+    private long lastRecordSize;
+
+    // guarded by this
+    private int inFlight;
+    private Throwable failure;
+
+    public EventBatcher(Consumer<List<Event>> writer, Executor executor, int batchSize, long batchBytes, int buffers)
+    {
+        this.writer = writer;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.batchBytes = batchBytes;
+        this.buffers = buffers;
+        this.pool = new ArrayBlockingQueue<>(buffers);
+    }
+
+    /**
+     * Returns an event of the current batch with empty properties, it's valid until the next call.
+     *
+     * @param recordSize the size of the source record of the event
+     */
+    public Event next(long recordSize)
+    {
+        if (current != null && (size == batchSize || bytes >= batchBytes)) {
+            submit();
+        }
+        if (current == null) {
+            current = takeBatch();
+        }
+
+        Event event = current[size];
+        if (event == null) {
+            event = current[size] = new Event();
+            event.properties = new HashMap<>();
+        }
+        else {
+            event.properties.clear();
+        }
+        size++;
+        bytes += recordSize;
+        lastRecordSize = recordSize;
+        return event;
+    }
+
+    /**
+     * Removes the last event that is returned by {@link #next(long)} from the batch, e.g. when its record turns out to be a duplicate.
+     */
+    public void discard()
+    {
+        size--;
+        bytes -= lastRecordSize;
+        lastRecordSize = 0;
+    }
+
+    /**
+     * Writes the events that are collected so far and waits until all the batches are written.
+     */
+    public void flush()
+    {
+        if (size > 0) {
+            submit();
+        }
+
+        synchronized (this) {
+            try {
+                while (inFlight > 0) {
+                    wait();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            }
+            checkFailure();
+        }
+    }
+
+    private Event[] takeBatch()
+    {
+        Event[] batch = pool.poll();
+        if (batch == null) {
+            if (allocated < buffers) {
+                allocated++;
+                return new Event[batchSize];
+            }
+            try {
+                batch = pool.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            }
+        }
+        synchronized (this) {
+            checkFailure();
+        }
+        return batch;
+    }
+
+    private void submit()
+    {
+        Event[] batch = current;
+        List<Event> events = size == batch.length ? Arrays.asList(batch) : Arrays.asList(batch).subList(0, size);
+        current = null;
+        size = 0;
+        bytes = 0;
+
+        synchronized (this) {
+            checkFailure();
+            inFlight++;
+        }
+        executor.execute(() -> {
+            try {
+                writer.accept(events);
+            }
+            catch (Throwable e) {
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            finally {
+                pool.add(batch);
+                synchronized (this) {
+                    inFlight--;
+                    notifyAll();
+                }
+            }
+        });
+    }
+
+    // guarded by this
+    private void checkFailure()
+    {
+        if (failure != null) {
+            throw new RuntimeException("Unable to write the event batch", failure);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.rakam.importer;
+
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Off-heap set of event ids that is used for dropping the events that are already imported.
+ * <p>
+ * The ids are not stored, each id is hashed to 64 bits: the high bits select the segment and the home slot
+ * and the low 32 bits are stored in an open addressing table with linear probing, so an id takes ~5 bytes.
+ * A new id is compared with the 32-bit fingerprints of its probe cluster, so it's treated as a duplicate if one of them is equal;
+ * at the maximum load the probe clusters are ~13 slots long which drops a few events in every billion ids.
+ * <p>
+ * Once a segment reaches its maximum load, the ids that are not in it are accepted without being added,
+ * so the events are imported without being deduplicated instead of failing the import.
+ * <p>
+ * The table is allocated in direct memory, it can be saved to a file and loaded in the next run.
+ */
+public class EventIdSet
+        implements Closeable
+{
+    private final static Logger LOGGER = Logger.get(EventIdSet.class);
+
+    private static final int MAGIC = 0x45494453;
+    private static final int HEADER_SIZE = 64;
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    // the home slot is taken from the 26 bits above the stored 32 bits
+    private static final int MAX_SEGMENT_SLOTS = 1 << 26;
+    private static final double MAX_LOAD = 0.8;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final ByteBuffer[] buffers;
+    private final int segmentSlots;
+    private final File file;
+    private final AtomicLong duplicates = new AtomicLong();
+
+    private EventIdSet(int segmentSlots, File file, ByteBuffer[] buffers, boolean empty)
+    {
+        this.segmentSlots = segmentSlots;
+        this.file = file;
+        this.buffers = buffers;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(buffers[i].asIntBuffer(), segmentSlots, empty);
+        }
+    }
+
+    public static EventIdSet inMemory(long expectedIds)
+    {
+        int segmentSlots = getSegmentSlots(expectedIds);
+        return new EventIdSet(segmentSlots, null, allocate(segmentSlots), true);
+    }
+
+    /**
+     * Loads the set that is stored in the file or creates a new one, the size of an existing file takes precedence over {@code expectedIds}.
+     * The file is updated only by {@link #save()} so the ids of a failed run are not remembered.
+     */
+    public static EventIdSet persistent(File file, long expectedIds)
+    {
+        if (!file.exists()) {
+            int segmentSlots = getSegmentSlots(expectedIds);
+            return new EventIdSet(segmentSlots, file, allocate(segmentSlots), true);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IllegalArgumentException(file + " is not an event id file");
+            }
+            int segmentSlots = header.getInt();
+
+            ByteBuffer[] buffers = allocate(segmentSlots);
+            for (ByteBuffer buffer : buffers) {
+                readFully(channel, buffer);
+                buffer.clear();
+            }
+
+            EventIdSet set = new EventIdSet(segmentSlots, file, buffers, false);
+            LOGGER.info("Loaded %d event ids from %s", set.size(), file);
+            return set;
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static ByteBuffer[] allocate(int segmentSlots)
+    {
+        ByteBuffer[] buffers = new ByteBuffer[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(segmentSlots * 4);
+        }
+        return buffers;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Event id file is truncated");
+            }
+        }
+    }
+
+    /**
+     * Writes the set to its file, it should be called once the events whose ids are added are delivered.
+     */
+    public void save()
+    {
+        if (file == null) {
+            return;
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), CREATE, WRITE, TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(segmentSlots).clear();
+            channel.write(header);
+            for (int i = 0; i < SEGMENTS; i++) {
+                synchronized (segments[i]) {
+                    ByteBuffer buffer = buffers[i].duplicate();
+                    buffer.clear();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            }
+            channel.force(true);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static int getSegmentSlots(long expectedIds)
+    {
+        checkArgument(expectedIds > 0, "expected number of ids must be positive");
+        long slots = (long) (expectedIds / MAX_LOAD / SEGMENTS) + 1;
+        long powerOfTwo = Long.highestOneBit(slots);
+        if (powerOfTwo < slots) {
+            powerOfTwo <<= 1;
+        }
+        if (powerOfTwo > MAX_SEGMENT_SLOTS) {
+            LOGGER.warn("Event id set is limited to %d ids", (long) (MAX_SEGMENT_SLOTS * (double) SEGMENTS * MAX_LOAD));
+            return MAX_SEGMENT_SLOTS;
+        }
+        return (int) Math.max(powerOfTwo, 1024);
+    }
+
+    /**
+     * Returns true if the id is not in the set and adds it.
+     */
+    public boolean add(String id)
+    {
+        long hash = hash(id);
+        Segment segment = segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+        boolean added = segment.add(hash);
+        if (!added) {
+            duplicates.incrementAndGet();
+        }
+        return added;
+    }
+
+    public long size()
+    {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    public long getDuplicates()
+    {
+        return duplicates.get();
+    }
+
+    @Override
+    public void close()
+    {
+        LOGGER.info("Dropped %d duplicate events, %d event ids are known", duplicates.get(), size());
+    }
+
+    // FNV-1a over the characters finalized with the MurmurHash3 mixer, allocation free
+    static long hash(String id)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static class Segment
+    {
+        private final IntBuffer table;
+        private final int mask;
+        private final int maxSize;
+        private int size;
+        private boolean full;
+
+        public Segment(IntBuffer table, int slots, boolean empty)
+        {
+            this.table = table;
+            this.mask = slots - 1;
+            this.maxSize = (int) (slots * MAX_LOAD);
+            if (!empty) {
+                for (int i = 0; i < slots; i++) {
+                    if (table.get(i) != 0) {
+                        size++;
+                    }
+                }
+            }
+        }
+
+        public synchronized boolean add(long hash)
+        {
+            int fingerprint = (int) hash;
+            if (fingerprint == 0) {
+                // zero marks the empty slots
+                fingerprint = 1;
+            }
+
+            int slot = (int) (hash >>> 32) & mask;
+            while (true) {
+                int value = table.get(slot);
+                if (value == 0) {
+                    if (size >= maxSize) {
+                        if (!full) {
+                            full = true;
+                            LOGGER.warn("Event id set is full, the new event ids are not deduplicated anymore, increase --dedup.expected-events");
+                        }
+                        return true;
+                    }
+                    table.put(slot, fingerprint);
+                    size++;
+                    return true;
+                }
+                if (value == fingerprint) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+}
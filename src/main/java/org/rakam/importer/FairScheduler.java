@@ -0,0 +1,134 @@
+package org.rakam.importer;
+
+import io.airlift.log.Logger;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the tasks of several jobs on a shared set of threads. Each job submits to its own queue and the threads take the tasks
+ * of the jobs that have queued tasks in turn, so a job with thousands of tasks delays the tasks of a small job by at most one task per thread.
+ */
+public class FairScheduler
+        implements Closeable
+{
+    private final static Logger LOGGER = Logger.get(FairScheduler.class);
+
+    // guarded by this
+    private final List<JobQueue> queues = new ArrayList<>();
+    private int next;
+    private boolean closed;
+
+    private final Thread[] threads;
+
+    public FairScheduler(String name, int threads)
+    {
+        this.threads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(this::work, name + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            this.threads[i] = thread;
+        }
+    }
+
+    /**
+     * Returns the queue of a job, the tasks that are submitted to it are run in submission order relative to each other.
+     */
+    public synchronized Executor newQueue(String job)
+    {
+        JobQueue queue = new JobQueue(job);
+        queues.add(queue);
+        return queue;
+    }
+
+    public int getThreadCount()
+    {
+        return threads.length;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+
+    private void work()
+    {
+        while (true) {
+            Runnable task;
+            try {
+                task = take();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            if (task == null) {
+                return;
+            }
+
+            try {
+                task.run();
+            }
+            catch (Throwable e) {
+                LOGGER.error(e, "Task failed");
+            }
+        }
+    }
+
+    private synchronized Runnable take()
+            throws InterruptedException
+    {
+        while (!closed) {
+            for (int i = 0; i < queues.size(); i++) {
+                int index = (next + i) % queues.size();
+                Runnable task = queues.get(index).tasks.poll();
+                if (task != null) {
+                    next = index + 1;
+                    return task;
+                }
+            }
+            wait();
+        }
+        return null;
+    }
+
+    private synchronized void submit(JobQueue queue, Runnable task)
+    {
+        if (closed) {
+            throw new IllegalStateException("Scheduler is closed");
+        }
+        queue.tasks.add(task);
+        notify();
+    }
+
+    private class JobQueue
+            implements Executor
+    {
+        private final String job;
+        // guarded by the scheduler
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        public JobQueue(String job)
+        {
+            this.job = job;
+        }
+
+        @Override
+        public void execute(Runnable task)
+        {
+            submit(this, task);
+        }
+
+        @Override
+        public String toString()
+        {
+            return job;
+        }
+    }
+}
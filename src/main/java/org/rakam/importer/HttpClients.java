@@ -0,0 +1,21 @@
+package org.rakam.importer;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * The clients that are built from the same base share its connection pool and dispatcher threads,
+ * so the jobs of a batch run reuse the warm connections to Rakam.
+ */
+public final class HttpClients
+{
+    private static final OkHttpClient BASE = new OkHttpClient();
+
+    private HttpClients()
+    {
+    }
+
+    public static OkHttpClient.Builder newBuilder()
+    {
+        return BASE.newBuilder();
+    }
+}
@@ -10,21 +10,27 @@ import org.rakam.importer.mixpanel.MixpanelPeopleImporter;
 
 public class Importer {
     public static void main(String[] args) {
+        createCli().parse(args).run();
+    }
+
+    public static Cli<Runnable> createCli() {
         Cli.CliBuilder<Runnable> builder = Cli.<Runnable>builder("import")
                 .withDescription("Rakam importer")
                 .withDefaultCommand(Help.class)
-                .withCommands(Help.class);
+                .withCommand(Help.class)
+                .withCommand(BatchCommand.class);
 
         builder.withGroup("mixpanel")
                 .withDefaultCommand(Help.class)
-                .withCommands(MixpanelEventImporter.class, MixpanelEventExplainer.class, MixpanelPeopleImporter.class, MixpanelPeopleExplainer.class);
+                .withCommand(MixpanelEventImporter.class)
+                .withCommand(MixpanelEventExplainer.class)
+                .withCommand(MixpanelPeopleImporter.class)
+                .withCommand(MixpanelPeopleExplainer.class);
 
         builder.withGroup("amplitude")
                 .withDefaultCommand(Help.class)
-                .withCommands(AmplitudeEventImporter.class);
-
-        Cli<Runnable> gitParser = builder.build();
+                .withCommand(AmplitudeEventImporter.class);
 
-        gitParser.parse(args).run();
+        return builder.build();
     }
 }
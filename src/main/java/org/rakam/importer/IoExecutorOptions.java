@@ -0,0 +1,40 @@
+package org.rakam.importer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.airline.Option;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors of the tasks that mostly wait for the network or the disk, e.g. the Mixpanel exports. They are separate from
+ * the common pool, which is sized for the CPU bound tasks of the whole JVM.
+ */
+public class IoExecutorOptions
+{
+    @Option(name = "--io.threads", description = "Number of threads that run the blocking requests and file reads, e.g. the Mixpanel exports")
+    public int threads = 16;
+
+    @Option(name = "--io.virtual-threads", description = "Run every blocking task on its own virtual thread instead of --io.threads threads, requires Java 21 and a build with the java21 profile")
+    public boolean virtualThreads;
+
+    public ExecutorService createExecutor(String name)
+    {
+        if (virtualThreads) {
+            try {
+                // compiled only with the java21 profile so that the default build runs on Java 8
+                return (ExecutorService) Class.forName("org.rakam.importer.VirtualThreadExecutors")
+                        .getMethod("create", String.class)
+                        .invoke(null, name);
+            }
+            catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+                throw new IllegalArgumentException("--io.virtual-threads requires a build with the java21 profile", e);
+            }
+            catch (InvocationTargetException e) {
+                throw new IllegalArgumentException("--io.virtual-threads requires Java 21", e.getCause());
+            }
+        }
+        return Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+    }
+}
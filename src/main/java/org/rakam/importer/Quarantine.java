@@ -0,0 +1,113 @@
+package org.rakam.importer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the records that can't be parsed in a gzipped NDJSON dead-letter file together with where they are read from,
+ * so that a malformed line doesn't stop the import and can be inspected or imported again later.
+ * <p>
+ * The file is created when the first record is quarantined. Only one warning is logged in every 10 seconds
+ * because logging each line of a dirty export slows the import down considerably.
+ */
+public class Quarantine
+        implements Closeable
+{
+    private final static Logger LOGGER = Logger.get(Quarantine.class);
+    private final static ObjectWriter writer = new ObjectMapper().writer();
+
+    private static final long LOG_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private final File file;
+    private OutputStream output;
+    private long count;
+    private long suppressedWarnings;
+    private long lastWarning = System.nanoTime() - LOG_INTERVAL;
+
+    public Quarantine(File directory)
+    {
+        this.file = new File(directory, "quarantine-" + UUID.randomUUID().toString().substring(0, 8) + ".ndjson.gz");
+    }
+
+    /**
+     * @param source the archive or the request that the record is read from
+     * @param entry the entry of the archive or the part of the request, nullable
+     * @param line the line number of the record in the entry, starting from 1
+     * @param raw the record, null if the rest of the entry can't be read
+     */
+    public synchronized void add(String source, String entry, long line, String raw, Exception error)
+    {
+        count++;
+
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("source", source);
+        record.put("entry", entry);
+        record.put("line", line);
+        record.put("error", error.getMessage());
+        record.put("raw", raw);
+
+        try {
+            if (output == null) {
+                file.getParentFile().mkdirs();
+                output = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024), 64 * 1024);
+            }
+            output.write(writer.writeValueAsBytes(record));
+            output.write('\n');
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        long now = System.nanoTime();
+        if (now - lastWarning >= LOG_INTERVAL) {
+            LOGGER.warn("Quarantined malformed record at %s %s line %d: %s (%d more since the previous warning)",
+                    source, entry == null ? "" : entry, line, error.getMessage(), suppressedWarnings);
+            lastWarning = now;
+            suppressedWarnings = 0;
+        }
+        else {
+            suppressedWarnings++;
+        }
+    }
+
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if (output == null) {
+            return;
+        }
+
+        try {
+            output.close();
+            output = null;
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        LOGGER.warn("Quarantined %d malformed records to %s", count, file);
+    }
+}
@@ -0,0 +1,16 @@
+package org.rakam.importer;
+
+import io.airlift.airline.Option;
+
+import java.io.File;
+
+public class QuarantineOptions
+{
+    @Option(name = "--quarantine.directory", description = "Directory of the dead-letter files that keep the records that can't be parsed")
+    public String directory = "./quarantine";
+
+    public Quarantine createQuarantine()
+    {
+        return new Quarantine(new File(directory));
+    }
+}
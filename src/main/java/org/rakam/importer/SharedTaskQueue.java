@@ -0,0 +1,329 @@
+package org.rakam.importer;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Distributes the time windows of an import to the importer processes that share a directory, e.g. over NFS.
+ * <p>
+ * The first process writes the windows to {@code tasks/} and renames the directory into place so that the plan is either complete or absent.
+ * A process claims a task by creating its lease file in {@code leases/} exclusively and keeps the lease alive by touching the file.
+ * A lease that is not touched within the lease timeout belongs to a dead process, it's renamed away by the process that takes the task over,
+ * so only one process can take it. A completed task is marked in {@code done/}.
+ * <p>
+ * The leases expire by the modification times of the files so the clocks of the processes must be closer than the lease timeout.
+ * A process that is paused longer than the timeout may complete a task that is taken over, so a task can be imported twice.
+ */
+public class SharedTaskQueue
+        implements Closeable
+{
+    private final static Logger LOGGER = Logger.get(SharedTaskQueue.class);
+
+    private final File directory;
+    private final File tasksDirectory;
+    private final File leasesDirectory;
+    private final File doneDirectory;
+    private final long leaseTimeoutMillis;
+    private final String workerId;
+    private final Set<String> leases = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService renewer;
+
+    public SharedTaskQueue(File directory, Duration leaseTimeout)
+    {
+        this.directory = directory;
+        this.tasksDirectory = new File(directory, "tasks");
+        this.leasesDirectory = new File(directory, "leases");
+        this.doneDirectory = new File(directory, "done");
+        this.leaseTimeoutMillis = leaseTimeout.toMillis();
+        this.workerId = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+
+        leasesDirectory.mkdirs();
+        doneDirectory.mkdirs();
+
+        this.renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("lease-renewer").setDaemon(true).build());
+        long renewInterval = Math.max(1, leaseTimeoutMillis / 3);
+        renewer.scheduleWithFixedDelay(this::renewLeases, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the windows as the tasks of the directory unless another process has already planned them.
+     */
+    public void plan(List<Map.Entry<LocalDateTime, LocalDateTime>> windows)
+    {
+        if (tasksDirectory.exists()) {
+            LOGGER.info("Tasks are already planned in %s", directory);
+            return;
+        }
+
+        File tempDirectory = new File(directory, "tasks-" + workerId + ".tmp");
+        tempDirectory.mkdirs();
+        try {
+            for (int i = 0; i < windows.size(); i++) {
+                Map.Entry<LocalDateTime, LocalDateTime> window = windows.get(i);
+                Files.write(new File(tempDirectory, format("%06d", i)).toPath(), (window.getKey() + "\n" + window.getValue()).getBytes(UTF_8));
+            }
+            Files.move(tempDirectory.toPath(), tasksDirectory.toPath(), ATOMIC_MOVE);
+            LOGGER.info("Planned %d tasks in %s", windows.size(), directory);
+        }
+        catch (IOException e) {
+            if (!tasksDirectory.exists()) {
+                throw Throwables.propagate(e);
+            }
+            // another process planned the tasks at the same time
+            LOGGER.info("Tasks are already planned in %s", directory);
+        }
+        finally {
+            File[] files = tempDirectory.listFiles();
+            if (files != null) {
+                Arrays.stream(files).forEach(File::delete);
+                tempDirectory.delete();
+            }
+        }
+    }
+
+    /**
+     * Claims a task that is neither completed nor leased by a live process. If the remaining tasks are leased by the other processes,
+     * it waits until they are completed or their leases expire.
+     *
+     * @return null if all tasks are completed
+     */
+    public Task claim()
+            throws InterruptedException
+    {
+        while (true) {
+            List<String> remaining = getRemainingTasks();
+            if (remaining.isEmpty()) {
+                return null;
+            }
+
+            for (String id : remaining) {
+                if (tryLease(id)) {
+                    // the task may be completed after it's listed
+                    if (new File(doneDirectory, id).exists()) {
+                        release(id);
+                        continue;
+                    }
+                    return readTask(id);
+                }
+            }
+
+            Thread.sleep(Math.min(leaseTimeoutMillis / 3, 10_000));
+        }
+    }
+
+    public void complete(Task task)
+    {
+        try {
+            Files.write(new File(doneDirectory, task.getId()).toPath(), workerId.getBytes(UTF_8));
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        release(task.getId());
+    }
+
+    /**
+     * Gives up the task so that another process can claim it, e.g. after a failure.
+     */
+    public void release(Task task)
+    {
+        release(task.getId());
+    }
+
+    public int getTaskCount()
+    {
+        String[] tasks = tasksDirectory.list();
+        return tasks == null ? 0 : tasks.length;
+    }
+
+    public int getCompletedTaskCount()
+    {
+        String[] done = doneDirectory.list();
+        return done == null ? 0 : done.length;
+    }
+
+    @Override
+    public void close()
+    {
+        renewer.shutdownNow();
+        new ArrayList<>(leases).forEach(this::release);
+    }
+
+    private List<String> getRemainingTasks()
+    {
+        String[] tasks = tasksDirectory.list();
+        if (tasks == null) {
+            throw new IllegalStateException("Tasks are not planned in " + directory);
+        }
+
+        List<String> remaining = new ArrayList<>();
+        for (String id : tasks) {
+            if (!new File(doneDirectory, id).exists()) {
+                remaining.add(id);
+            }
+        }
+        remaining.sort(null);
+        return remaining;
+    }
+
+    private boolean tryLease(String id)
+    {
+        File lease = getLeaseFile(id);
+        if (lease.exists()) {
+            long age = System.currentTimeMillis() - lease.lastModified();
+            if (age < leaseTimeoutMillis) {
+                return false;
+            }
+
+            // only one of the processes that see the expired lease can rename it
+            File expired = new File(leasesDirectory, id + "." + workerId + ".expired");
+            try {
+                Files.move(lease.toPath(), expired.toPath(), ATOMIC_MOVE);
+            }
+            catch (IOException e) {
+                return false;
+            }
+            if (System.currentTimeMillis() - expired.lastModified() < leaseTimeoutMillis) {
+                // another process took the task over after the lease was checked
+                try {
+                    Files.move(expired.toPath(), lease.toPath());
+                }
+                catch (IOException e) {
+                    expired.delete();
+                }
+                return false;
+            }
+            LOGGER.warn("Lease of task %s expired %d seconds ago, taking it over", id, (age - leaseTimeoutMillis) / 1000);
+            expired.delete();
+        }
+
+        try {
+            Files.write(lease.toPath(), workerId.getBytes(UTF_8), CREATE_NEW, WRITE);
+        }
+        catch (FileAlreadyExistsException e) {
+            return false;
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        leases.add(id);
+        return true;
+    }
+
+    private void renewLeases()
+    {
+        for (String id : leases) {
+            File lease = getLeaseFile(id);
+            try {
+                if (!workerId.equals(new String(Files.readAllBytes(lease.toPath()), UTF_8))) {
+                    throw new NoSuchFileException(lease.getPath());
+                }
+                if (!lease.setLastModified(System.currentTimeMillis())) {
+                    throw new IOException("Unable to touch " + lease);
+                }
+            }
+            catch (NoSuchFileException e) {
+                LOGGER.warn("Lease of task %s is taken over by another process, the task may be imported twice", id);
+                leases.remove(id);
+            }
+            catch (IOException e) {
+                LOGGER.warn(e, "Unable to renew the lease of task %s", id);
+            }
+        }
+    }
+
+    private void release(String id)
+    {
+        if (!leases.remove(id)) {
+            return;
+        }
+
+        File lease = getLeaseFile(id);
+        try {
+            if (workerId.equals(new String(Files.readAllBytes(lease.toPath()), UTF_8))) {
+                lease.delete();
+            }
+        }
+        catch (IOException e) {
+            // the lease is already taken over
+        }
+    }
+
+    private Task readTask(String id)
+    {
+        try {
+            String[] window = new String(Files.readAllBytes(new File(tasksDirectory, id).toPath()), UTF_8).split("\n");
+            return new Task(id, LocalDateTime.parse(window[0].trim()), LocalDateTime.parse(window[1].trim()));
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private File getLeaseFile(String id)
+    {
+        return new File(leasesDirectory, id + ".lease");
+    }
+
+    public static class Task
+    {
+        private final String id;
+        private final LocalDateTime start;
+        private final LocalDateTime end;
+
+        public Task(String id, LocalDateTime start, LocalDateTime end)
+        {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public LocalDateTime getStart()
+        {
+            return start;
+        }
+
+        public LocalDateTime getEnd()
+        {
+            return end;
+        }
+
+        @Override
+        public String toString()
+        {
+            return format("%s (%s - %s)", id, start, end);
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package org.rakam.importer;
+
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Sorted runs of the records that don't fit in memory. The records are sorted and written to run files, {@link #merge} reads
+ * the runs and the records that are still in memory in a single ordered pass. Equal records keep the order of the runs
+ * they are in and the records in memory come last, so the records that are added later win when the equal ones are combined.
+ * At most {@link #DEFAULT_MAX_FAN_IN} runs are read at the same time, when there are more runs the consecutive ones are merged into
+ * larger runs first, so the number of open files and the read buffers don't grow with the size of the input.
+ * <p>
+ * The runs of an instance are named after a random token whose {@code .lock} file is locked until the instance is closed.
+ * The runs whose lock is not held anymore are left by a process that stopped before merging them, they are deleted when
+ * a new instance is created in the same directory.
+ */
+public class SortedRuns<T>
+        implements Closeable
+{
+    private final static Logger LOGGER = Logger.get(SortedRuns.class);
+    public static final int DEFAULT_MAX_FAN_IN = 128;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final String prefix;
+    private final String suffix;
+    private final Comparator<T> comparator;
+    private final Codec<T> codec;
+    private final int maxFanIn;
+    private final String token = UUID.randomUUID().toString().substring(0, 8);
+
+    // guarded by this
+    private final List<File> runs = new ArrayList<>();
+    private long nextRun;
+    private FileChannel lockChannel;
+
+    /**
+     * @param prefix the prefix of the run files, it should be distinct for the different kinds of records in the same directory
+     */
+    public SortedRuns(File directory, String prefix, String suffix, Comparator<T> comparator, Codec<T> codec)
+    {
+        this(directory, prefix, suffix, comparator, codec, DEFAULT_MAX_FAN_IN);
+    }
+
+    SortedRuns(File directory, String prefix, String suffix, Comparator<T> comparator, Codec<T> codec, int maxFanIn)
+    {
+        checkArgument(maxFanIn > 1, "maxFanIn must be greater than 1");
+        this.directory = directory;
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.comparator = comparator;
+        this.codec = codec;
+        this.maxFanIn = maxFanIn;
+        deleteStaleRuns();
+    }
+
+    /**
+     * Reserves the file of a run, the runs are merged in the order they are reserved.
+     * The run is written later by {@link #write}, so it can be written without holding the lock of the caller.
+     */
+    public synchronized File reserve()
+    {
+        if (lockChannel == null) {
+            directory.mkdirs();
+            try {
+                lockChannel = FileChannel.open(getLockFile(token).toPath(), CREATE, WRITE);
+                lockChannel.lock();
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        File run = newRun();
+        runs.add(run);
+        return run;
+    }
+
+    /**
+     * Sorts the records and writes them to the reserved run, the order of the equal records is kept.
+     */
+    public void write(File run, List<T> records)
+    {
+        records.sort(comparator);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE))) {
+            for (T record : records) {
+                codec.write(output, record);
+            }
+        }
+        catch (IOException e) {
+            run.delete();
+            throw Throwables.propagate(e);
+        }
+    }
+
+    public void spill(List<T> records)
+    {
+        write(reserve(), records);
+    }
+
+    /**
+     * Sorts the records in memory and passes them to the consumer in order together with the records of the runs.
+     * The runs are not deleted, see {@link #clear()}.
+     */
+    public synchronized void merge(List<T> records, Consumer<T> consumer)
+    {
+        // the records in memory take one of the inputs of the final merge
+        while (runs.size() >= maxFanIn) {
+            mergeRuns();
+        }
+
+        records.sort(comparator);
+        List<Cursor<T>> cursors = new ArrayList<>();
+        try {
+            for (File run : runs) {
+                cursors.add(new RunCursor<>(run, codec));
+            }
+            cursors.add(new MemoryCursor<>(records.iterator()));
+            mergeCursors(cursors, consumer);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        finally {
+            cursors.forEach(Cursor::close);
+        }
+    }
+
+    /**
+     * Merges each group of at most {@code maxFanIn} consecutive runs into a new run that takes the place of the group, so the order
+     * of the equal records is kept.
+     */
+    private void mergeRuns()
+    {
+        LOGGER.info("Merging %d runs in %s in groups of %d", runs.size(), directory, maxFanIn);
+        for (int start = 0; start < runs.size(); start++) {
+            List<File> group = runs.subList(start, Math.min(start + maxFanIn, runs.size()));
+            if (group.size() == 1) {
+                continue;
+            }
+
+            File run = newRun();
+            List<Cursor<T>> cursors = new ArrayList<>();
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE))) {
+                for (File file : group) {
+                    cursors.add(new RunCursor<>(file, codec));
+                }
+                mergeCursors(cursors, record -> {
+                    try {
+                        codec.write(output, record);
+                    }
+                    catch (IOException e) {
+                        throw Throwables.propagate(e);
+                    }
+                });
+            }
+            catch (IOException | RuntimeException e) {
+                run.delete();
+                throw Throwables.propagate(e);
+            }
+            finally {
+                cursors.forEach(Cursor::close);
+            }
+            group.forEach(File::delete);
+            group.clear();
+            runs.add(start, run);
+        }
+    }
+
+    private void mergeCursors(List<Cursor<T>> cursors, Consumer<T> consumer)
+            throws IOException
+    {
+        PriorityQueue<Cursor<T>> queue = new PriorityQueue<>(Comparator.comparing((Cursor<T> cursor) -> cursor.current, comparator)
+                .thenComparingInt(cursor -> cursor.order));
+        for (int i = 0; i < cursors.size(); i++) {
+            cursors.get(i).order = i;
+            if (cursors.get(i).advance()) {
+                queue.add(cursors.get(i));
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            Cursor<T> cursor = queue.poll();
+            consumer.accept(cursor.current);
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+        }
+    }
+
+    public synchronized int getRunCount()
+    {
+        return runs.size();
+    }
+
+    /**
+     * Deletes the runs.
+     */
+    public synchronized void clear()
+    {
+        runs.forEach(File::delete);
+        runs.clear();
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        clear();
+        if (lockChannel != null) {
+            try {
+                lockChannel.close();
+            }
+            catch (IOException e) {
+                LOGGER.warn(e, "Unable to release the lock of the runs in %s", directory);
+            }
+            getLockFile(token).delete();
+            lockChannel = null;
+        }
+    }
+
+    private void deleteStaleRuns()
+    {
+        File[] locks = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".lock"));
+        if (locks == null) {
+            return;
+        }
+
+        for (File lock : locks) {
+            try (FileChannel channel = FileChannel.open(lock.toPath(), WRITE);
+                    FileLock fileLock = channel.tryLock()) {
+                if (fileLock != null) {
+                    // the owner is not running anymore
+                    lock.delete();
+                }
+            }
+            catch (OverlappingFileLockException e) {
+                // the lock is held by another instance in this process
+            }
+            catch (IOException e) {
+                LOGGER.warn("Unable to check the owner of %s: %s", lock, e.getMessage());
+            }
+        }
+
+        File[] stale = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(suffix) && !getLockFile(getOwner(name)).exists());
+        if (stale != null && stale.length > 0) {
+            LOGGER.info("Deleting %d runs in %s that are left by a previous run", stale.length, directory);
+            for (File run : stale) {
+                run.delete();
+            }
+        }
+    }
+
+    // guarded by this
+    private File newRun()
+    {
+        return new File(directory, prefix + token + "-" + nextRun++ + suffix);
+    }
+
+    private String getOwner(String run)
+    {
+        int end = run.indexOf('-', prefix.length());
+        return run.substring(prefix.length(), end < 0 ? run.length() - suffix.length() : end);
+    }
+
+    private File getLockFile(String owner)
+    {
+        return new File(directory, prefix + owner + ".lock");
+    }
+
+    /**
+     * Writes and reads the records of the run files.
+     */
+    public interface Codec<T>
+    {
+        void write(DataOutputStream output, T record)
+                throws IOException;
+
+        /**
+         * @throws EOFException if there are no more records
+         */
+        T read(DataInputStream input)
+                throws IOException;
+    }
+
+    private abstract static class Cursor<T>
+            implements Closeable
+    {
+        protected int order;
+        protected T current;
+
+        /**
+         * Moves to the next record, returns false if there are no more records.
+         */
+        public abstract boolean advance()
+                throws IOException;
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    private static class MemoryCursor<T>
+            extends Cursor<T>
+    {
+        private final Iterator<T> iterator;
+
+        public MemoryCursor(Iterator<T> iterator)
+        {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean advance()
+        {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            current = iterator.next();
+            return true;
+        }
+    }
+
+    private static class RunCursor<T>
+            extends Cursor<T>
+    {
+        private final DataInputStream input;
+        private final Codec<T> codec;
+
+        public RunCursor(File file, Codec<T> codec)
+                throws IOException
+        {
+            this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            this.codec = codec;
+        }
+
+        @Override
+        public boolean advance()
+                throws IOException
+        {
+            try {
+                current = codec.read(input);
+                return true;
+            }
+            catch (EOFException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            try {
+                input.close();
+            }
+            catch (IOException e) {
+                LOGGER.warn(e, "Unable to close the run file");
+            }
+        }
+    }
+}
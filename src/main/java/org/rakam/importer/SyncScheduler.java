@@ -0,0 +1,49 @@
+package org.rakam.importer;
+
+import io.airlift.log.Logger;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+public final class SyncScheduler
+{
+    private final static Logger LOGGER = Logger.get(SyncScheduler.class);
+
+    private SyncScheduler()
+    {
+    }
+
+    /**
+     * Runs the sync iteration of the source periodically in the current JVM so that the connections and compiled code stay warm.
+     * A failed iteration doesn't move the watermark, the next one picks up the same range again.
+     */
+    public static void schedule(String source, WatermarkStore watermarks, Duration interval, Runnable iteration)
+    {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                iteration.run();
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Sync iteration of %s failed, it will be retried in %s", source, interval);
+            }
+
+            Duration lag = watermarks.getLag(source);
+            LOGGER.info("Watermark of %s is %s, lag is %s. Next sync is in %s.", source, watermarks.get(source), lag, interval);
+        }, 0, interval.toMillis(), MILLISECONDS);
+
+        try {
+            while (!executor.awaitTermination(1, DAYS)) {
+                // run until the process is stopped
+            }
+        }
+        catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
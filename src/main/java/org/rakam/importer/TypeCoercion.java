@@ -0,0 +1,266 @@
+package org.rakam.importer;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import io.rakam.client.model.SchemaField;
+
+import java.io.IOException;
+
+/**
+ * Converts the values of the source services to the types of their Rakam fields at ingest time
+ * so that Rakam doesn't need to parse strings again.
+ */
+public final class TypeCoercion
+{
+    // epoch seconds until year 5138, values above this are already in milliseconds
+    private static final long MAX_EPOCH_SECONDS = 100_000_000_000L;
+
+    private static final ThreadLocal<char[]> BUFFER = ThreadLocal.withInitial(() -> new char[64]);
+
+    private TypeCoercion()
+    {
+    }
+
+    /**
+     * Returns the value in the representation of the given type or the original value if it can't be converted.
+     */
+    public static Object coerce(Object value, SchemaField.TypeEnum type)
+    {
+        if (value == null || type == null) {
+            return value;
+        }
+
+        try {
+            switch (type) {
+                case STRING:
+                    return value instanceof String ? value : value.toString();
+                case LONG:
+                    if (value instanceof Number) {
+                        return ((Number) value).longValue();
+                    }
+                    if (value instanceof String) {
+                        return parseLong((String) value);
+                    }
+                    return value;
+                case DOUBLE:
+                    if (value instanceof Number) {
+                        return ((Number) value).doubleValue();
+                    }
+                    if (value instanceof String) {
+                        return Double.parseDouble((String) value);
+                    }
+                    return value;
+                case BOOLEAN:
+                    if (value instanceof String) {
+                        String str = (String) value;
+                        if (str.equalsIgnoreCase("true")) {
+                            return Boolean.TRUE;
+                        }
+                        if (str.equalsIgnoreCase("false")) {
+                            return Boolean.FALSE;
+                        }
+                    }
+                    return value;
+                case TIMESTAMP:
+                    if (value instanceof Number) {
+                        return toEpochMillis(((Number) value).longValue());
+                    }
+                    if (value instanceof String) {
+                        return parseTimestamp((String) value);
+                    }
+                    return value;
+                default:
+                    return value;
+            }
+        }
+        catch (IllegalArgumentException e) {
+            return value;
+        }
+    }
+
+    public static long toEpochMillis(long epoch)
+    {
+        return Math.abs(epoch) < MAX_EPOCH_SECONDS ? epoch * 1000 : epoch;
+    }
+
+    public static long parseLong(String value)
+    {
+        int length = value.length();
+        if (length == 0) {
+            throw new NumberFormatException(value);
+        }
+
+        int pos = 0;
+        boolean negative = value.charAt(0) == '-';
+        if (negative || value.charAt(0) == '+') {
+            pos++;
+        }
+        // 18 digits always fit in a long, the longer values are checked for overflow by the JDK
+        if (length - pos > 18) {
+            return Long.parseLong(value);
+        }
+        if (length == pos) {
+            throw new NumberFormatException(value);
+        }
+
+        long result = 0;
+        for (; pos < length; pos++) {
+            int digit = value.charAt(pos) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException(value);
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    public static long parseTimestamp(String value)
+    {
+        int length = value.length();
+        char[] buffer = BUFFER.get();
+        if (length > buffer.length) {
+            throw new IllegalArgumentException("Invalid timestamp: " + value);
+        }
+        value.getChars(0, length, buffer, 0);
+        return parseTimestamp(buffer, 0, length);
+    }
+
+    /**
+     * Parses ISO-8601 style timestamps such as {@code 2016-01-05 12:34:56.123456}, {@code 2016-01-05T12:34:56Z}
+     * and {@code 2016-01-05T12:34:56+03:00} to epoch milliseconds without creating any objects.
+     * The time part is optional and timestamps without an offset are assumed to be in UTC.
+     */
+    public static long parseTimestamp(char[] chars, int offset, int length)
+    {
+        int end = offset + length;
+        if (length < 10 || chars[offset + 4] != '-' || chars[offset + 7] != '-') {
+            throw invalidTimestamp(chars, offset, length);
+        }
+
+        int year = digits(chars, offset, 4);
+        int month = digits(chars, offset + 5, 2);
+        int day = digits(chars, offset + 8, 2);
+        int pos = offset + 10;
+
+        int hour = 0, minute = 0, second = 0, millis = 0, offsetSeconds = 0;
+        if (pos < end && (chars[pos] == 'T' || chars[pos] == ' ')) {
+            if (end - pos < 6 || chars[pos + 3] != ':') {
+                throw invalidTimestamp(chars, offset, length);
+            }
+            hour = digits(chars, pos + 1, 2);
+            minute = digits(chars, pos + 4, 2);
+            pos += 6;
+
+            if (pos < end && chars[pos] == ':') {
+                if (end - pos < 3) {
+                    throw invalidTimestamp(chars, offset, length);
+                }
+                second = digits(chars, pos + 1, 2);
+                pos += 3;
+
+                if (pos < end && chars[pos] == '.') {
+                    pos++;
+                    int scale = 100;
+                    int start = pos;
+                    while (pos < end && chars[pos] >= '0' && chars[pos] <= '9') {
+                        millis += (chars[pos] - '0') * scale;
+                        scale /= 10;
+                        pos++;
+                    }
+                    if (pos == start) {
+                        throw invalidTimestamp(chars, offset, length);
+                    }
+                }
+            }
+
+            if (pos < end && chars[pos] == 'Z') {
+                pos++;
+            }
+            else if (pos < end && (chars[pos] == '+' || chars[pos] == '-')) {
+                int sign = chars[pos] == '-' ? -1 : 1;
+                if (end - pos < 3) {
+                    throw invalidTimestamp(chars, offset, length);
+                }
+                int offsetHours = digits(chars, pos + 1, 2);
+                pos += 3;
+                int offsetMinutes = 0;
+                if (pos < end && chars[pos] == ':') {
+                    pos++;
+                }
+                if (end - pos >= 2) {
+                    offsetMinutes = digits(chars, pos, 2);
+                    pos += 2;
+                }
+                offsetSeconds = sign * (offsetHours * 3600 + offsetMinutes * 60);
+            }
+        }
+
+        if (pos != end || month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+            throw invalidTimestamp(chars, offset, length);
+        }
+
+        long epochSeconds = daysFromCivil(year, month, day) * 86400 + hour * 3600 + minute * 60 + second - offsetSeconds;
+        return epochSeconds * 1000 + millis;
+    }
+
+    private static int digits(char[] chars, int offset, int count)
+    {
+        int result = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = chars[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw invalidTimestamp(chars, offset, count);
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    // days since 1970-01-01 in the proleptic Gregorian calendar
+    private static long daysFromCivil(int year, int month, int day)
+    {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static IllegalArgumentException invalidTimestamp(char[] chars, int offset, int length)
+    {
+        return new IllegalArgumentException("Invalid timestamp: " + new String(chars, offset, length));
+    }
+
+    /**
+     * Deserializes timestamp strings directly from the parser buffer as epoch milliseconds.
+     */
+    public static class EpochMillisDeserializer
+            extends JsonDeserializer<Long>
+    {
+        @Override
+        public Long deserialize(JsonParser parser, DeserializationContext context)
+                throws IOException
+        {
+            JsonToken token = parser.getCurrentToken();
+            if (token == JsonToken.VALUE_NUMBER_INT) {
+                return toEpochMillis(parser.getLongValue());
+            }
+            if (token == JsonToken.VALUE_STRING) {
+                int length = parser.getTextLength();
+                if (length == 0) {
+                    return null;
+                }
+                try {
+                    return parseTimestamp(parser.getTextCharacters(), parser.getTextOffset(), length);
+                }
+                catch (IllegalArgumentException e) {
+                    throw context.weirdStringException(parser.getText(), Long.class, e.getMessage());
+                }
+            }
+            throw context.mappingException(Long.class, token);
+        }
+    }
+}
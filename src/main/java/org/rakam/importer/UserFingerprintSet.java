@@ -0,0 +1,395 @@
+package org.rakam.importer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+import io.rakam.client.model.User;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.rakam.importer.metrics.StageMetrics.DROPPED_UNCHANGED_USERS;
+
+/**
+ * Off-heap map from the user ids to a 64-bit fingerprint of the properties that are sent for them, it's used for skipping the users
+ * whose properties didn't change since they were sent.
+ * <p>
+ * The ids are hashed like the ids of {@link EventIdSet}: the high bits select the segment and the home slot and the low 32 bits
+ * are stored in an open addressing table with linear probing, next to the fingerprint. The fingerprint is the hash of the properties
+ * serialized as JSON with the keys in order, so a user takes ~12 bytes plus the free slots.
+ * <p>
+ * The table is allocated in direct memory, it can be saved to a file and loaded in the next run. Once it's full the fingerprints of the
+ * new users are not stored, so these users are always sent.
+ */
+public class UserFingerprintSet
+        implements Closeable
+{
+    private final static Logger LOGGER = Logger.get(UserFingerprintSet.class);
+    private final static ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+
+    private static final int MAGIC = 0x55465053;
+    private static final int HEADER_SIZE = 64;
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    // the home slot is taken from the 26 bits above the stored 32 bits
+    private static final int MAX_SEGMENT_SLOTS = 1 << 26;
+    private static final double MAX_LOAD = 0.8;
+    // the stored id and the fingerprint
+    private static final int SLOT_SIZE = 4 + 8;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final ByteBuffer[] buffers;
+    private final int segmentSlots;
+    private final File file;
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong changed = new AtomicLong();
+    private final AtomicBoolean full = new AtomicBoolean();
+
+    private UserFingerprintSet(int segmentSlots, File file, ByteBuffer[] buffers, boolean empty)
+    {
+        this.segmentSlots = segmentSlots;
+        this.file = file;
+        this.buffers = buffers;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(buffers[i], segmentSlots, empty, full);
+        }
+    }
+
+    public static UserFingerprintSet inMemory(long expectedUsers)
+    {
+        int segmentSlots = getSegmentSlots(expectedUsers);
+        return new UserFingerprintSet(segmentSlots, null, allocate(segmentSlots), true);
+    }
+
+    /**
+     * Loads the fingerprints that are stored in the file or creates a new set, the size of an existing file takes precedence over {@code expectedUsers}.
+     * The file is updated only by {@link #save()} so the users of a failed run are sent again.
+     */
+    public static UserFingerprintSet persistent(File file, long expectedUsers)
+    {
+        if (!file.exists()) {
+            int segmentSlots = getSegmentSlots(expectedUsers);
+            return new UserFingerprintSet(segmentSlots, file, allocate(segmentSlots), true);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IllegalArgumentException(file + " is not a user fingerprint file");
+            }
+            int segmentSlots = header.getInt();
+
+            ByteBuffer[] buffers = allocate(segmentSlots);
+            for (ByteBuffer buffer : buffers) {
+                readFully(channel, buffer);
+                buffer.clear();
+            }
+
+            UserFingerprintSet set = new UserFingerprintSet(segmentSlots, file, buffers, false);
+            LOGGER.info("Loaded the fingerprints of %d users from %s", set.size(), file);
+            return set;
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static ByteBuffer[] allocate(int segmentSlots)
+    {
+        ByteBuffer[] buffers = new ByteBuffer[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(segmentSlots * SLOT_SIZE);
+        }
+        return buffers;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("User fingerprint file is truncated");
+            }
+        }
+    }
+
+    /**
+     * Writes the set to its file, it should be called once the users that are written by {@link #writeChanged(List, Consumer)} are delivered.
+     */
+    public void save()
+    {
+        if (file == null) {
+            return;
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), CREATE, WRITE, TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(segmentSlots).clear();
+            channel.write(header);
+            for (int i = 0; i < SEGMENTS; i++) {
+                synchronized (segments[i]) {
+                    ByteBuffer buffer = buffers[i].duplicate();
+                    buffer.clear();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            }
+            channel.force(true);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static int getSegmentSlots(long expectedUsers)
+    {
+        checkArgument(expectedUsers > 0, "expected number of users must be positive");
+        long slots = (long) (expectedUsers / MAX_LOAD / SEGMENTS) + 1;
+        long powerOfTwo = Long.highestOneBit(slots);
+        if (powerOfTwo < slots) {
+            powerOfTwo <<= 1;
+        }
+        if (powerOfTwo > MAX_SEGMENT_SLOTS) {
+            LOGGER.warn("User fingerprint set is limited to %d users", (long) (MAX_SEGMENT_SLOTS * (double) SEGMENTS * MAX_LOAD));
+            return MAX_SEGMENT_SLOTS;
+        }
+        return (int) Math.max(powerOfTwo, 1024);
+    }
+
+    /**
+     * Writes the users that are new or whose properties are different from the last time they are written, and stores their fingerprints
+     * once the writer returns, so the users of a failed write are written again. A changed user is written with all its properties,
+     * the fingerprint doesn't tell which of them changed.
+     */
+    public void writeChanged(List<User> users, Consumer<List<User>> writer)
+    {
+        List<User> result = new ArrayList<>(users.size());
+        long[] hashes = new long[users.size()];
+        long[] fingerprints = new long[users.size()];
+        for (User user : users) {
+            long hash = EventIdSet.hash(String.valueOf(user.getId()));
+            long fingerprint = fingerprint(user.getProperties());
+            if (getSegment(hash).isChanged(hash, fingerprint)) {
+                hashes[result.size()] = hash;
+                fingerprints[result.size()] = fingerprint;
+                result.add(user);
+            }
+        }
+
+        if (!result.isEmpty()) {
+            writer.accept(result);
+        }
+        for (int i = 0; i < result.size(); i++) {
+            getSegment(hashes[i]).put(hashes[i], fingerprints[i]);
+        }
+
+        int skipped = users.size() - result.size();
+        unchanged.addAndGet(skipped);
+        changed.addAndGet(result.size());
+        DROPPED_UNCHANGED_USERS.add(skipped);
+    }
+
+    private Segment getSegment(long hash)
+    {
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    /**
+     * Drops the fingerprints that are stored after the last {@link #save()}, e.g. after a sync iteration fails before the sink is flushed.
+     * The set is cleared if it doesn't have a file or the file isn't saved yet.
+     */
+    public void rollback()
+    {
+        boolean saved = file != null && file.exists();
+        try (FileChannel channel = saved ? FileChannel.open(file.toPath(), READ) : null) {
+            if (channel != null) {
+                channel.position(HEADER_SIZE);
+            }
+            for (int i = 0; i < SEGMENTS; i++) {
+                synchronized (segments[i]) {
+                    ByteBuffer buffer = buffers[i];
+                    buffer.clear();
+                    if (channel != null) {
+                        readFully(channel, buffer);
+                    }
+                    else {
+                        while (buffer.hasRemaining()) {
+                            buffer.put((byte) 0);
+                        }
+                    }
+                    buffer.clear();
+                    segments[i].count();
+                }
+            }
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        LOGGER.info("Rolled the user fingerprints back to %d users", size());
+    }
+
+    public long size()
+    {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    @Override
+    public void close()
+    {
+        LOGGER.info("Sent %d new or changed users and skipped %d unchanged users, %d users are known", changed.get(), unchanged.get(), size());
+    }
+
+    // FNV-1a over the JSON bytes finalized with the MurmurHash3 mixer
+    static long fingerprint(Map<String, Object> properties)
+    {
+        byte[] bytes;
+        try {
+            // the sorted maps are not ordered again by the mapper, they may have a different comparator
+            bytes = mapper.writeValueAsBytes(new TreeMap<>(properties));
+        }
+        catch (JsonProcessingException e) {
+            throw Throwables.propagate(e);
+        }
+
+        long hash = 0xcbf29ce484222325L;
+        for (byte value : bytes) {
+            hash ^= value & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static class Segment
+    {
+        private final IntBuffer ids;
+        private final LongBuffer fingerprints;
+        private final int mask;
+        private final int maxSize;
+        private final AtomicBoolean full;
+        private int size;
+
+        public Segment(ByteBuffer buffer, int slots, boolean empty, AtomicBoolean full)
+        {
+            this.full = full;
+            ByteBuffer ids = buffer.duplicate();
+            ids.limit(slots * 4);
+            this.ids = ids.slice().asIntBuffer();
+            ByteBuffer fingerprints = buffer.duplicate();
+            fingerprints.position(slots * 4);
+            this.fingerprints = fingerprints.slice().asLongBuffer();
+            this.mask = slots - 1;
+            this.maxSize = (int) (slots * MAX_LOAD);
+            if (!empty) {
+                count();
+            }
+        }
+
+        // guarded by this
+        private void count()
+        {
+            size = 0;
+            for (int i = 0; i <= mask; i++) {
+                if (ids.get(i) != 0) {
+                    size++;
+                }
+            }
+        }
+
+        public synchronized boolean isChanged(long hash, long fingerprint)
+        {
+            int id = getId(hash);
+            int slot = (int) (hash >>> 32) & mask;
+            while (true) {
+                int value = ids.get(slot);
+                if (value == 0) {
+                    return true;
+                }
+                if (value == id) {
+                    return fingerprints.get(slot) != fingerprint;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        public synchronized boolean put(long hash, long fingerprint)
+        {
+            int id = getId(hash);
+
+            int slot = (int) (hash >>> 32) & mask;
+            while (true) {
+                int value = ids.get(slot);
+                if (value == 0) {
+                    if (size >= maxSize) {
+                        if (full.compareAndSet(false, true)) {
+                            LOGGER.warn("User fingerprint set is full, the new users are sent in every run, increase --changed-only.expected-users");
+                        }
+                        // the user is not tracked, so it's treated as changed the next time
+                        return true;
+                    }
+                    ids.put(slot, id);
+                    fingerprints.put(slot, fingerprint);
+                    size++;
+                    return true;
+                }
+                if (value == id) {
+                    if (fingerprints.get(slot) == fingerprint) {
+                        return false;
+                    }
+                    fingerprints.put(slot, fingerprint);
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private static int getId(long hash)
+        {
+            int id = (int) hash;
+            // zero marks the empty slots
+            return id == 0 ? 1 : id;
+        }
+    }
+}
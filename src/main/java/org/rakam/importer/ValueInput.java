@@ -0,0 +1,100 @@
+package org.rakam.importer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.importer.ValueOutput.DOUBLE;
+import static org.rakam.importer.ValueOutput.FALSE;
+import static org.rakam.importer.ValueOutput.FLOAT;
+import static org.rakam.importer.ValueOutput.INT;
+import static org.rakam.importer.ValueOutput.JSON;
+import static org.rakam.importer.ValueOutput.LONG;
+import static org.rakam.importer.ValueOutput.NULL;
+import static org.rakam.importer.ValueOutput.STRING;
+import static org.rakam.importer.ValueOutput.TRUE;
+
+/**
+ * Decodes the values that are encoded by {@link ValueOutput} from a buffer, {@link #readStringValue()} should be overridden
+ * together with {@link ValueOutput#writeStringValue(String)}.
+ */
+public class ValueInput
+{
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    protected final ByteBuffer buffer;
+
+    public ValueInput(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+    }
+
+    public Object readValue()
+            throws IOException
+    {
+        byte type = buffer.get();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readStringValue();
+            case LONG:
+                return readVarLong();
+            case INT:
+                return (int) readVarLong();
+            case DOUBLE:
+                return buffer.getDouble();
+            case FLOAT:
+                return buffer.getFloat();
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case JSON:
+                byte[] bytes = new byte[readVarInt()];
+                buffer.get(bytes);
+                return mapper.readValue(bytes, Object.class);
+            default:
+                throw new IOException("Invalid value type " + type);
+        }
+    }
+
+    protected String readStringValue()
+    {
+        return readString();
+    }
+
+    public String readString()
+    {
+        byte[] bytes = new byte[readVarInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    public int readInt()
+    {
+        return buffer.getInt();
+    }
+
+    public int readVarInt()
+    {
+        return (int) readVarLong();
+    }
+
+    public long readVarLong()
+    {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        }
+        while (b < 0);
+        // zigzag
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
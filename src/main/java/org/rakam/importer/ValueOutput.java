@@ -0,0 +1,115 @@
+package org.rakam.importer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Encodes the property values with a type tag, {@link ValueInput} decodes them. The numbers are zigzag and variable-length
+ * encoded so that the small and negative ones take a few bytes, the maps, lists and the other values that Jackson may produce
+ * are stored as JSON. The strings are written inline unless {@link #writeStringValue(String)} is overridden, for example to
+ * refer to a dictionary.
+ */
+public class ValueOutput
+        extends ByteArrayOutputStream
+{
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    static final byte NULL = 0;
+    static final byte STRING = 1;
+    static final byte LONG = 2;
+    static final byte INT = 3;
+    static final byte DOUBLE = 4;
+    static final byte FLOAT = 5;
+    static final byte TRUE = 6;
+    static final byte FALSE = 7;
+    static final byte JSON = 8;
+
+    public ValueOutput(int size)
+    {
+        super(size);
+    }
+
+    public void writeValue(Object value)
+            throws JsonProcessingException
+    {
+        if (value == null) {
+            write(NULL);
+        }
+        else if (value instanceof String) {
+            write(STRING);
+            writeStringValue((String) value);
+        }
+        else if (value instanceof Long) {
+            write(LONG);
+            writeVarLong((Long) value);
+        }
+        else if (value instanceof Integer) {
+            write(INT);
+            writeVarLong((Integer) value);
+        }
+        else if (value instanceof Double) {
+            write(DOUBLE);
+            writeDouble((Double) value);
+        }
+        else if (value instanceof Float) {
+            write(FLOAT);
+            writeFloat((Float) value);
+        }
+        else if (value instanceof Boolean) {
+            write((Boolean) value ? TRUE : FALSE);
+        }
+        else {
+            byte[] bytes = mapper.writeValueAsBytes(value);
+            write(JSON);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    protected void writeStringValue(String value)
+    {
+        writeString(value);
+    }
+
+    public void writeVarLong(long value)
+    {
+        // zigzag so that the negative numbers are small too
+        long encoded = (value << 1) ^ (value >> 63);
+        while ((encoded & ~0x7fL) != 0) {
+            write((int) ((encoded & 0x7f) | 0x80));
+            encoded >>>= 7;
+        }
+        write((int) encoded);
+    }
+
+    public void writeString(String value)
+    {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarLong(bytes.length);
+        write(bytes, 0, bytes.length);
+    }
+
+    public void writeInt(int value)
+    {
+        write(value >>> 24);
+        write(value >>> 16);
+        write(value >>> 8);
+        write(value);
+    }
+
+    public void writeDouble(double value)
+    {
+        long bits = Double.doubleToRawLongBits(value);
+        writeInt((int) (bits >>> 32));
+        writeInt((int) bits);
+    }
+
+    public void writeFloat(float value)
+    {
+        writeInt(Float.floatToRawIntBits(value));
+    }
+}
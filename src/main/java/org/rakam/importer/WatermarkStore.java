@@ -0,0 +1,71 @@
+package org.rakam.importer;
+
+import com.google.common.base.Throwables;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Keeps the last committed UTC watermark of each source in a small file under the state directory.
+ * The watermark is the exclusive end of the data that is already imported.
+ */
+public class WatermarkStore
+{
+    private final File directory;
+
+    public WatermarkStore(File directory)
+    {
+        this.directory = directory;
+        directory.mkdirs();
+    }
+
+    public LocalDateTime get(String source)
+    {
+        File file = getFile(source);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            return LocalDateTime.parse(new String(Files.readAllBytes(file.toPath()), UTF_8).trim());
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    public void commit(String source, LocalDateTime watermark)
+    {
+        File file = getFile(source);
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        try {
+            Files.write(tempFile.toPath(), watermark.toString().getBytes(UTF_8));
+            Files.move(tempFile.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    public Duration getLag(String source)
+    {
+        LocalDateTime watermark = get(source);
+        if (watermark == null) {
+            return null;
+        }
+        return Duration.between(watermark, LocalDateTime.now(ZoneOffset.UTC));
+    }
+
+    private File getFile(String source)
+    {
+        return new File(directory, source.replaceAll("[^a-zA-Z0-9_.-]", "_") + ".watermark");
+    }
+}
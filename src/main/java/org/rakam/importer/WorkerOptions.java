@@ -0,0 +1,25 @@
+package org.rakam.importer;
+
+import io.airlift.airline.Option;
+
+import java.io.File;
+import java.time.Duration;
+
+public class WorkerOptions
+{
+    @Option(name = "--worker.directory", description = "Directory that is shared by the importer processes of a sharded import, e.g. on NFS")
+    public String directory;
+
+    @Option(name = "--worker.lease-timeout", description = "Time after which the task of a process that doesn't renew its lease is taken over (ISO-8601 duration)")
+    public String leaseTimeout = "PT5M";
+
+    public boolean isEnabled()
+    {
+        return directory != null;
+    }
+
+    public SharedTaskQueue createQueue()
+    {
+        return new SharedTaskQueue(new File(directory), Duration.parse(leaseTimeout));
+    }
+}
@@ -1,6 +1,8 @@
 package org.rakam.importer.amplitude;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import org.rakam.importer.TypeCoercion.EpochMillisDeserializer;
 
 import java.util.Map;
 
@@ -11,7 +13,8 @@ public class AmplitudeEvent
     public String city;
     public String user_id;
     public String uuid;
-    public String event_time;
+    @JsonDeserialize(using = EpochMillisDeserializer.class)
+    public Long event_time;
     public String platform;
     public String os_version;
     public String user_creation_time;
@@ -20,7 +23,8 @@ public class AmplitudeEvent
     public String dma;
     public Map<String, Object> group_properties;
     public Map<String, Object> user_properties;
-    public String client_upload_time;
+    @JsonDeserialize(using = EpochMillisDeserializer.class)
+    public Long client_upload_time;
     public String event_type;
     public String library;
     public String device_type;
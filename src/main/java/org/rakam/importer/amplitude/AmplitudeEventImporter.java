@@ -1,43 +1,65 @@
 package org.rakam.importer.amplitude;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.Ordering;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteStreams;
 import io.airlift.airline.Command;
 import io.airlift.airline.Option;
 import io.airlift.log.Logger;
-import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
-import org.rakam.importer.Event;
-
-import javax.annotation.Nullable;
-import javax.net.ssl.HttpsURLConnection;
-
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.rakam.importer.DeduplicationOptions;
+import org.rakam.importer.EventIdSet;
+import org.rakam.importer.HttpClients;
+import org.rakam.importer.IoExecutorOptions;
+import org.rakam.importer.Quarantine;
+import org.rakam.importer.QuarantineOptions;
+import org.rakam.importer.SharedTaskQueue;
+import org.rakam.importer.SyncScheduler;
+import org.rakam.importer.WatermarkStore;
+import org.rakam.importer.WorkerOptions;
+import org.rakam.importer.metrics.MetricsOptions;
+import org.rakam.importer.sink.RakamSink;
+import org.rakam.importer.sink.Sink;
+import org.rakam.importer.sink.SinkOptions;
+
+import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.Period;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static java.lang.String.format;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
 @Command(name = "import-events", description = "Amplitude importer")
 public class AmplitudeEventImporter
@@ -47,16 +69,21 @@ public class AmplitudeEventImporter
 
     private final static Logger LOGGER = Logger.get(AmplitudeEventImporter.class);
 
+    public static final String DEFAULT_DOWNLOAD_DIRECTORY = "./files";
+
     @Option(name = "--amplitude.api-key", description = "Api key", required = true)
     public String apiKey;
 
     @Option(name = "--amplitude.api-secret", description = "Api secret", required = true)
     public String apiSecret;
 
-    @Option(name = "--rakam.project.master-key", description = "Project", required = true)
+    @Option(name = "--amplitude.address", description = "Amplitude API url, can be changed for testing against a local server")
+    public String amplitudeAddress = AmplitudeImporter.DEFAULT_ADDRESS;
+
+    @Option(name = "--rakam.project.master-key", description = "Project")
     public String rakamMasterKey;
 
-    @Option(name = "--rakam.address", description = "Rakam cluster url", required = true)
+    @Option(name = "--rakam.address", description = "Rakam cluster url")
     public String rakamAddress;
 
     @Option(name = "--start", description = "Amplitude event start date")
@@ -74,17 +101,78 @@ public class AmplitudeEventImporter
     @Option(name = "--amplitude-batch-size", description = "Amplitude event batch request size")
     public int amplitudeBatchSize = 20_000_000;
 
-    @Option(name = "--mode", description = "Mixpanel event import duration")
+    @Option(name = "--import.threads", description = "Number of threads that import the downloaded archives")
+    public int importThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--mode", description = "One of download, count, import, convert, sync or worker")
     public String mode;
 
     @Option(name = "--out")
     public String outDirectory;
 
+    @Option(name = "--download.directory", description = "Directory of the downloaded archives")
+    public String downloadDirectory = DEFAULT_DOWNLOAD_DIRECTORY;
+
+    @Option(name = "--download.concurrency", description = "Number of windows that are downloaded from Amplitude at the same time")
+    public int downloadConcurrency = 1;
+
+    @Option(name = "--sync.interval", description = "Interval between incremental imports in sync mode (ISO-8601 duration)")
+    public String syncInterval = "PT1H";
+
+    @Option(name = "--sync.delay", description = "How long Amplitude needs to make an hour of events available for export (ISO-8601 duration)")
+    public String syncDelay = "PT3H";
+
+    @Option(name = "--state.directory", description = "Directory that keeps the sync watermarks")
+    public String stateDirectory = "./state";
+
+    @Option(name = "--cache.directory", description = "Directory of the converted archives, the import reads the archives that are converted from it")
+    public String cacheDirectory;
+
+    @Option(name = "--cache.block-size", description = "Size of the blocks of the converted archives")
+    public int cacheBlockSize = ArchiveCache.DEFAULT_BLOCK_SIZE;
+
+    @Option(name = "--users.import", description = "Upserts the latest user_properties of each user_id once the events are imported")
+    public boolean importUsers;
+
+    @Option(name = "--users.max-memory", description = "Size of the user properties that are kept in memory before they are spilled to disk")
+    public long usersMaxMemory = 256 * 1024 * 1024;
+
+    @Option(name = "--users.spill-directory", description = "Directory of the user properties that don't fit in memory")
+    public String usersSpillDirectory = "./users";
+
+    @Option(name = "--users.batch-size", description = "Number of users in a Rakam request")
+    public int usersBatchSize = 1000;
+
+    @Inject
+    public SinkOptions sinkOptions = new SinkOptions();
+
+    @Inject
+    public MetricsOptions metricsOptions = new MetricsOptions();
+
+    @Inject
+    public DeduplicationOptions deduplicationOptions = new DeduplicationOptions();
+
+    @Inject
+    public QuarantineOptions quarantineOptions = new QuarantineOptions();
+
+    @Inject
+    public EventFilterOptions filterOptions = new EventFilterOptions();
+
+    @Inject
+    public WorkerOptions workerOptions = new WorkerOptions();
+
+    @Inject
+    public IoExecutorOptions ioOptions = new IoExecutorOptions();
+
+    // set by the batch command so that the archives are imported on the threads that are shared with the other jobs
+    public Executor importExecutor;
+
     @Override
     public void run()
     {
-        AmplitudeImporter amplitudeImporter = new AmplitudeImporter(apiKey, apiSecret);
-        OkHttpClient client = new OkHttpClient.Builder()
+        metricsOptions.start();
+        AmplitudeImporter amplitudeImporter = new AmplitudeImporter(amplitudeAddress, apiKey, apiSecret);
+        OkHttpClient client = HttpClients.newBuilder()
                 .writeTimeout(0, TimeUnit.MINUTES)
                 .connectTimeout(30, TimeUnit.MINUTES)
                 .readTimeout(30, TimeUnit.MINUTES).build();
@@ -126,6 +214,18 @@ public class AmplitudeEventImporter
             end = LocalDate.now();
         }
 
+        File directory = new File(downloadDirectory);
+        directory.mkdirs();
+
+        if ("sync".equals(mode)) {
+            try (Sink sink = createSink(client); EventIdSet ids = deduplicationOptions.createIdSet(); Quarantine quarantine = quarantineOptions.createQuarantine();
+                    UserPropertiesAggregator users = createUserAggregator()) {
+                // the synced windows are aligned to the hours of the archives
+                sync(amplitudeImporter, sink, ids, filterOptions.createFilter(null, null), quarantine, users, directory, start);
+            }
+            return;
+        }
+
         if (start == null) {
             throw new IllegalArgumentException("Duration must be set");
         }
@@ -133,189 +233,365 @@ public class AmplitudeEventImporter
         final LocalDate finalStart = start;
         final LocalDate finalEnd = end;
 
-        File directory = new File("./files");
-        directory.mkdirs();
+        if ("worker".equals(mode)) {
+            if (!workerOptions.isEnabled()) {
+                throw new IllegalArgumentException("--worker.directory is required in worker mode");
+            }
+            try (Sink sink = createSink(client); EventIdSet ids = deduplicationOptions.createIdSet(); Quarantine quarantine = quarantineOptions.createQuarantine();
+                    UserPropertiesAggregator users = createUserAggregator()) {
+                work(amplitudeImporter, sink, ids, quarantine, users, directory, finalStart, finalEnd);
+            }
+            return;
+        }
 
         if (mode == null || "download".equals(mode)) {
             Map.Entry<List<Map.Entry<LocalDateTime, LocalDateTime>>, Long> result = amplitudeImporter.getTasks(finalStart.atStartOfDay(), finalEnd.atStartOfDay(), amplitudeBatchSize);
 
             LOGGER.info("We have %d tasks for fetching %d events from Amplitude.", result.getKey().size(), result.getValue());
 
-            for (int i = 0; i < result.getKey().size(); i++) {
-                if (i > 0) {
-                    LOGGER.info("%d tasks are done. Remaining tasks: %d.", i, result.getKey().size() - i);
-                }
-                Map.Entry<LocalDateTime, LocalDateTime> task = result.getKey().get(i);
-                amplitudeImporter.downloadEvents(directory, task.getKey(), task.getValue());
-            }
+            downloadArchives(amplitudeImporter, directory, result.getKey());
 
             LOGGER.info("Downloaded all files, now importing them to Rakam.");
         }
 
         if ("count".equals(mode)) {
-            List<File> orderedFiles = Ordering.natural().onResultOf(new com.google.common.base.Function<File, Comparable>()
-            {
-                @Nullable
-                @Override
-                public Comparable apply(@Nullable File file)
-                {
-                    return file.lastModified();
-                }
-            }).sortedCopy(Arrays.asList(directory.listFiles()));
-
+            List<File> orderedFiles = listArchives(directory);
 
             System.out.println(format("%d files in total. processing..", orderedFiles.size()));
 
-            long sum = orderedFiles.parallelStream()
-                    .filter(e -> e.getName().endsWith(".zip"))
-                    .mapToLong(file -> {
-                int totalEvents = amplitudeImporter.getTotalEvents(file);
-                System.out.println(format("%s : %d", file.getName(), totalEvents));
-                return totalEvents;
-            }).sum();
+            // the archives that are not indexed yet are read once, the index answers the next counts
+            ExecutorService executor = ioOptions.createExecutor("amplitude-count");
+            long sum;
+            try {
+                List<CompletableFuture<Long>> counts = orderedFiles.stream()
+                        .map(file -> CompletableFuture.supplyAsync(() -> {
+                            long totalEvents;
+                            try {
+                                totalEvents = ArchiveIndex.load(file).countEvents(finalStart.atStartOfDay(), finalEnd.atStartOfDay());
+                            }
+                            catch (RuntimeException e) {
+                                LOGGER.error(e, format("Error while reading archive %s", file.getName()));
+                                totalEvents = 0;
+                            }
+                            System.out.println(format("%s : %d", file.getName(), totalEvents));
+                            return totalEvents;
+                        }, executor))
+                        .collect(Collectors.toList());
+                sum = counts.stream().mapToLong(CompletableFuture::join).sum();
+            }
+            finally {
+                executor.shutdownNow();
+            }
 
             System.out.println(format("total : %d", sum));
         }
 
+        if ("convert".equals(mode)) {
+            if (cacheDirectory == null) {
+                throw new IllegalArgumentException("--cache.directory is required in convert mode");
+            }
+            try (Quarantine quarantine = quarantineOptions.createQuarantine()) {
+                convert(amplitudeImporter, quarantine, listArchives(directory));
+            }
+        }
+
         if (mode == null || "import".equals(mode)) {
-            if (outDirectory != null) {
-                File file = new File(outDirectory);
-                if (file.exists() && file.isFile()) {
-                    throw new RuntimeException("--out is a file");
-                }
-                file.mkdirs();
+            List<File> orderedFiles = listArchives(directory);
+
+            try (Sink sink = createSink(client); EventIdSet ids = deduplicationOptions.createIdSet(); Quarantine quarantine = quarantineOptions.createQuarantine();
+                    UserPropertiesAggregator users = createUserAggregator()) {
+                EventFilter filter = filterOptions.createFilter(finalStart.atStartOfDay(), finalEnd.atStartOfDay());
+                // only the hourly entries of the archives between --start and --end are read
+                List<File> imported = new ArrayList<>();
+                long total = importFiles(amplitudeImporter, sink, ids, filter, quarantine, users, orderedFiles, imported, finalStart.atStartOfDay(), finalEnd.atStartOfDay());
+                deliver(sink, ids, users, imported);
+                LOGGER.info(format("Done importing %d records, %d malformed records are quarantined. Yay!", total, quarantine.getCount()));
             }
+        }
+    }
 
-            List<File> orderedFiles = Ordering.natural().onResultOf(new com.google.common.base.Function<File, Comparable>()
-            {
-                @Nullable
-                @Override
-                public Comparable apply(@Nullable File file)
-                {
-                    return file.lastModified();
-                }
-            }).sortedCopy(Arrays.asList(directory.listFiles()));
+    /**
+     * Downloads the windows on the I/O executor, at most {@code --download.concurrency} of them at the same time.
+     */
+    private void downloadArchives(AmplitudeImporter amplitudeImporter, File directory, List<Map.Entry<LocalDateTime, LocalDateTime>> windows)
+    {
+        ExecutorService executor = ioOptions.createExecutor("amplitude-download");
+        Semaphore permits = new Semaphore(downloadConcurrency);
+        AtomicInteger done = new AtomicInteger();
+        try {
+            CompletableFuture<?>[] downloads = windows.stream()
+                    .map(window -> CompletableFuture.runAsync(() -> {
+                        permits.acquireUninterruptibly();
+                        try {
+                            amplitudeImporter.downloadEvents(directory, window.getKey(), window.getValue());
+                        }
+                        finally {
+                            permits.release();
+                        }
+                        int completed = done.incrementAndGet();
+                        LOGGER.info("%d tasks are done. Remaining tasks: %d.", completed, windows.size() - completed);
+                    }, executor))
+                    .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(downloads).join();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Sink createSink(OkHttpClient client)
+    {
+        return sinkOptions.createSink(() -> new RakamSink(client, rakamAddress, rakamMasterKey, "/event/bulk"),
+                collection -> AmplitudeSchema.FIELDS, rakamMasterKey);
+    }
+
+    private UserPropertiesAggregator createUserAggregator()
+    {
+        if (!importUsers) {
+            return null;
+        }
+        return new UserPropertiesAggregator(new File(usersSpillDirectory), usersMaxMemory, usersBatchSize);
+    }
+
+    /**
+     * Upserts the users whose properties are collected since the last call, each of them once with the properties of their latest event.
+     * A later window or worker task upserts its users again, the properties of an earlier event may overwrite a later one
+     * if the windows are not imported in order.
+     */
+    private static void emitUsers(UserPropertiesAggregator users, Sink sink)
+    {
+        if (users != null) {
+            long count = users.emit(sink::writeUsers);
+            LOGGER.info("Upserted the properties of %d users.", count);
+        }
+    }
 
-            Event[] batchRecords = new Event[rakamBatchSize];
-            for (int i = 0; i < batchRecords.length; i++) {
-                batchRecords[i] = new Event();
+    /**
+     * Upserts the collected users, flushes the sink and saves the event ids. The imported archives are moved to {@code --out}
+     * only after that, so an archive whose events or users may not be delivered yet stays in the download directory.
+     */
+    private void deliver(Sink sink, EventIdSet ids, UserPropertiesAggregator users, List<File> imported)
+    {
+        emitUsers(users, sink);
+        sink.flush();
+        if (ids != null) {
+            ids.save();
+        }
+        if (outDirectory != null) {
+            File out = new File(outDirectory);
+            imported.forEach(file -> moveArchive(file, out));
+        }
+    }
+
+    private void sync(AmplitudeImporter amplitudeImporter, Sink sink, EventIdSet ids, EventFilter filter, Quarantine quarantine, UserPropertiesAggregator users,
+            File directory, LocalDate start)
+    {
+        WatermarkStore watermarks = new WatermarkStore(new File(stateDirectory));
+        String source = "amplitude-events-" + apiKey;
+
+        if (watermarks.get(source) == null) {
+            if (start == null) {
+                throw new IllegalArgumentException("Start date must be set for the first sync");
             }
+            watermarks.commit(source, start.atStartOfDay());
+        }
 
-            AtomicInteger idx = new AtomicInteger();
-            AtomicInteger total = new AtomicInteger();
-            for (File file : orderedFiles) {
-                LOGGER.info("Processing file %s", file.getName());
-
-                amplitudeImporter.importEvents(file,
-                        () -> {
-                            if (idx.get() == rakamBatchSize) {
-                                tryRakam(client, generateContent(total, batchRecords), Integer.MAX_VALUE);
-                                total.addAndGet(batchRecords.length);
-                                idx.set(0);
-                                return batchRecords[0];
-                            }
+        Duration delay = Duration.parse(syncDelay);
+        SyncScheduler.schedule(source, watermarks, Duration.parse(syncInterval), () -> {
+            LocalDateTime until = LocalDateTime.now(ZoneOffset.UTC).minus(delay).truncatedTo(ChronoUnit.HOURS);
+            LocalDateTime from = watermarks.get(source);
+
+            // fetch at most a day at a time so that a long catch-up commits its progress as it goes
+            while (from.isBefore(until)) {
+                LocalDateTime to = from.plusDays(1).isAfter(until) ? until : from.plusDays(1);
+                File file = AmplitudeImporter.getArchiveFile(directory, from, to.minusHours(1));
+
+                amplitudeImporter.downloadEvents(directory, from, to.minusHours(1));
+                if (file.exists()) {
+                    List<File> imported = new ArrayList<>();
+                    long total = importFiles(amplitudeImporter, sink, ids, filter, quarantine, users, ImmutableList.of(file), imported, null, null);
+                    deliver(sink, ids, users, imported);
+                    LOGGER.info("Imported %d records between %s and %s.", total, from, to);
+                }
+
+                watermarks.commit(source, to);
+                from = to;
+            }
+        });
+    }
 
-                            return batchRecords[idx.getAndIncrement()];
-                        });
+    /**
+     * Downloads and imports the export windows with the other processes that share the worker directory.
+     * The windows are planned by the process that starts first.
+     */
+    private void work(AmplitudeImporter amplitudeImporter, Sink sink, EventIdSet ids, Quarantine quarantine, UserPropertiesAggregator users,
+            File directory, LocalDate start, LocalDate end)
+    {
+        EventFilter filter = filterOptions.createFilter(start.atStartOfDay(), end.atStartOfDay());
+        try (SharedTaskQueue queue = workerOptions.createQueue()) {
+            if (queue.getTaskCount() == 0) {
+                // the windows are aligned to months, they are clipped so that the workers don't download the data outside of the range
+                LocalDateTime firstHour = start.atStartOfDay();
+                LocalDateTime lastHour = end.atStartOfDay().minusHours(1);
+                List<Map.Entry<LocalDateTime, LocalDateTime>> windows = amplitudeImporter.getTasks(firstHour, end.atStartOfDay(), amplitudeBatchSize).getKey().stream()
+                        .filter(window -> !window.getKey().isAfter(lastHour) && !window.getValue().isBefore(firstHour))
+                        .map(window -> new AbstractMap.SimpleImmutableEntry<>(
+                                window.getKey().isBefore(firstHour) ? firstHour : window.getKey(),
+                                window.getValue().isAfter(lastHour) ? lastHour : window.getValue()))
+                        .collect(Collectors.toList());
+                queue.plan(windows);
+            }
 
-                if (outDirectory != null) {
-                    try {
-                        Files.move(file.toPath(), new File(outDirectory, file.getName()).toPath());
-                    }
-                    catch (IOException e) {
-                        e.printStackTrace();
+            SharedTaskQueue.Task task;
+            while ((task = queue.claim()) != null) {
+                LOGGER.info("Claimed task %s", task);
+                long total = 0;
+                try {
+                    File file = AmplitudeImporter.getArchiveFile(directory, task.getStart(), task.getEnd());
+                    amplitudeImporter.downloadEvents(directory, task.getStart(), task.getEnd());
+                    List<File> imported = new ArrayList<>();
+                    if (file.exists()) {
+                        total = importFiles(amplitudeImporter, sink, ids, filter, quarantine, users, ImmutableList.of(file), imported, null, null);
                     }
+                    deliver(sink, ids, users, imported);
                 }
+                catch (RuntimeException e) {
+                    queue.release(task);
+                    throw e;
+                }
+                queue.complete(task);
+                LOGGER.info("Imported %d records of task %s, %d of %d tasks are completed.", total, task, queue.getCompletedTaskCount(), queue.getTaskCount());
             }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+    }
 
-            if (idx.get() > 0) {
-                tryRakam(client, generateContent(total, batchRecords), Integer.MAX_VALUE);
-                total.addAndGet(batchRecords.length);
-            }
+    /**
+     * Writes the mapped events of the archives to the cache directory, the archives that are already converted are skipped.
+     * The events are not filtered or deduplicated so that the imports from the cache can use different options.
+     */
+    private void convert(AmplitudeImporter amplitudeImporter, Quarantine quarantine, List<File> files)
+    {
+        ForkJoinPool pool = importExecutor == null ? new ForkJoinPool(importThreads) : null;
+        try {
+            for (File file : files) {
+                ArchiveCache cache = new ArchiveCache(new File(cacheDirectory), file);
+                if (cache.isComplete()) {
+                    LOGGER.info("Archive %s is already converted, skipping..", file.getName());
+                    continue;
+                }
 
-            LOGGER.info(format("Done importing %d records. Yay!", total.get()));
+                try (ArchiveCache.Writer writer = cache.createWriter(cacheBlockSize)) {
+                    ArchiveImportScheduler scheduler = new ArchiveImportScheduler(amplitudeImporter, writer, null, null, quarantine, null, null,
+                            pool != null ? pool : importExecutor, importThreads, rakamBatchSize);
+                    scheduler.importArchives(ImmutableList.of(file), archive -> {});
+                    writer.commit();
+                }
+            }
+        }
+        finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
         }
     }
 
-    private byte[] generateContent(AtomicInteger total, Event[] batchRecords)
+    /**
+     * @param imported the archives whose events are written to the sink are added to it, they are moved by {@link #deliver}
+     * @param start the entries of the archives before this hour are skipped, nullable
+     * @param end the entries of the archives at or after this hour are skipped, nullable
+     */
+    private long importFiles(AmplitudeImporter amplitudeImporter, Sink sink, EventIdSet ids, EventFilter filter, Quarantine quarantine, UserPropertiesAggregator users,
+            List<File> files, List<File> imported, LocalDateTime start, LocalDateTime end)
     {
-        LOGGER.info("Sending event batch to Rakam. Current batch: %d, Previous total: %d", batchRecords.length, total.get());
+        if (outDirectory != null) {
+            File out = new File(outDirectory);
+            if (out.exists() && out.isFile()) {
+                throw new RuntimeException("--out is a file");
+            }
+            out.mkdirs();
+        }
 
-        HashMap<Object, Object> context = new HashMap<>();
-        context.put("api_key", rakamMasterKey);
+        Consumer<File> onArchiveDone = file -> {
+            synchronized (imported) {
+                imported.add(file);
+            }
+        };
 
-        HashMap<Object, Object> eventList = new HashMap<>();
-        eventList.put("api", context);
-        eventList.put("events", batchRecords);
-        byte[] content;
+        ForkJoinPool pool = importExecutor == null ? new ForkJoinPool(importThreads) : null;
+        Executor executor = pool != null ? pool : importExecutor;
         try {
-            content = mapper.writeValueAsBytes(eventList);
+            long total = 0;
+            List<File> archives = new ArrayList<>();
+            for (File file : files) {
+                // the converted archives don't have the user properties or the hours of the events
+                ArchiveCache cache = cacheDirectory != null && users == null ? new ArchiveCache(new File(cacheDirectory), file) : null;
+                if (cache != null && cache.isComplete() && !ArchiveIndex.hasEntriesOutside(file, start, end)) {
+                    total += cache.importEvents(sink, ids, filter, executor, importThreads, rakamBatchSize);
+                    LOGGER.info("Imported converted archive %s", file.getName());
+                    onArchiveDone.accept(file);
+                }
+                else {
+                    archives.add(file);
+                }
+            }
+
+            Predicate<ZipArchiveEntry> entryFilter = start == null && end == null ? null : entry -> ArchiveIndex.isInRange(entry.getName(), start, end);
+            ArchiveImportScheduler scheduler = new ArchiveImportScheduler(amplitudeImporter, sink, ids, filter, quarantine, users,
+                    entryFilter, executor, importThreads, rakamBatchSize);
+            total += scheduler.importArchives(archives, onArchiveDone);
+            return total;
         }
-        catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
+        finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
         }
-        return content;
     }
 
-    private void tryRakam(OkHttpClient client, byte[] content, int tryCount)
+    private static void moveArchive(File file, File out)
     {
-        Response response = null;
         try {
-            MediaType mediaType = MediaType.parse("application/json");
-            RequestBody body = RequestBody.create(mediaType, content);
-            Request request = new Request.Builder()
-                    .url(rakamAddress + "/event/bulk")
-                    .post(body)
-                    .build();
-
-            response = client.newCall(request).execute();
-            String string = response.body().string();
-            response.close();
-
-            if (response.code() != 200) {
-                throw new RuntimeException(string);
+            Files.move(file.toPath(), new File(out, file.getName()).toPath());
+            File index = ArchiveIndex.getFile(file);
+            if (index.exists()) {
+                Files.move(index.toPath(), new File(out, index.getName()).toPath(), REPLACE_EXISTING);
             }
         }
         catch (IOException e) {
-            if (response != null) {
-                response.close();
-            }
-
-            if (tryCount == 0) {
-                throw new RuntimeException(e);
-            }
-            tryRakam(client, content, tryCount - 1);
+            LOGGER.error(e, "Unable to move %s to %s", file.getName(), out);
         }
     }
 
-    public static InputStream generateRequest(String apiKey, String secretKey, Map<String, String> build, int tryCount)
+    private static List<File> listArchives(File directory)
+    {
+        List<File> files = new ArrayList<>(Arrays.asList(directory.listFiles((dir, name) -> name.endsWith(".zip"))));
+        files.sort(Comparator.comparingLong(File::lastModified));
+        return files;
+    }
+
+    public static InputStream generateRequest(String address, String apiKey, String secretKey, Map<String, String> build, int tryCount)
     {
         try {
-            return generateRequest(apiKey, secretKey, build);
+            return generateRequest(address, apiKey, secretKey, build);
         }
         catch (Exception e) {
             if (tryCount == 0) {
                 throw new RuntimeException(e);
             }
-            return generateRequest(apiKey, secretKey, build, tryCount - 1);
+            return generateRequest(address, apiKey, secretKey, build, tryCount - 1);
         }
     }
 
-    public static InputStream generateRequest(String apiKey, String secretKey, Map<String, String> build)
+    public static InputStream generateRequest(String address, String apiKey, String secretKey, Map<String, String> build)
             throws IOException
     {
-        String encodedUrlString = build.entrySet().stream().map(e -> {
-            try {
-                return e.getKey() + "=" + URLEncoder.encode(e.getValue(), "UTF-8");
-            }
-            catch (UnsupportedEncodingException e1) {
-                return e.getValue();
-            }
-        }).collect(Collectors.joining("&"));
-        HttpsURLConnection connection = (HttpsURLConnection) new URL("https://amplitude.com/api/2/export?" + encodedUrlString).openConnection();
+        HttpURLConnection connection = openConnection(address, apiKey, secretKey, build);
 
         try {
-            connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString((apiKey + ":" + secretKey).getBytes(StandardCharsets.UTF_8)));
             return connection.getInputStream();
         }
         catch (IOException e) {
@@ -325,4 +601,20 @@ public class AmplitudeEventImporter
             throw new RuntimeException(new String(connection.getResponseCode() + " -> " + new String(ByteStreams.toByteArray(connection.getErrorStream()))), e);
         }
     }
+
+    public static HttpURLConnection openConnection(String address, String apiKey, String secretKey, Map<String, String> build)
+            throws IOException
+    {
+        String encodedUrlString = build.entrySet().stream().map(e -> {
+            try {
+                return e.getKey() + "=" + URLEncoder.encode(e.getValue(), "UTF-8");
+            }
+            catch (UnsupportedEncodingException e1) {
+                return e.getValue();
+            }
+        }).collect(Collectors.joining("&"));
+        HttpURLConnection connection = (HttpURLConnection) new URL(address + "/api/2/export?" + encodedUrlString).openConnection();
+        connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString((apiKey + ":" + secretKey).getBytes(StandardCharsets.UTF_8)));
+        return connection;
+    }
 }
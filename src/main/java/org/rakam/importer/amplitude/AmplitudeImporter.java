@@ -9,20 +9,24 @@ import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.rakam.importer.Event;
-
-import javax.net.ssl.HttpsURLConnection;
+import org.rakam.importer.EventIdSet;
+import org.rakam.importer.Quarantine;
+import org.rakam.importer.metrics.MeteredInputStream;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
-import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -41,9 +45,21 @@ import java.util.zip.GZIPInputStream;
 
 import static com.google.common.io.ByteStreams.toByteArray;
 import static java.lang.String.format;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static java.time.format.DateTimeFormatter.ISO_DATE;
-import static org.rakam.importer.amplitude.AmplitudeEventImporter.generateRequest;
+import static org.rakam.importer.amplitude.AmplitudeEventImporter.openConnection;
 import static org.rakam.importer.amplitude.AmplitudeEventImporter.mapper;
+import static org.rakam.importer.metrics.StageMetrics.DOWNLOADED_BYTES;
+import static org.rakam.importer.metrics.StageMetrics.DOWNLOAD_RETRIES;
+import static org.rakam.importer.metrics.StageMetrics.DROPPED_ATTRIBUTION_EVENTS;
+import static org.rakam.importer.metrics.StageMetrics.DROPPED_DUPLICATE_EVENTS;
+import static org.rakam.importer.metrics.StageMetrics.DROPPED_FILTERED_EVENTS;
+import static org.rakam.importer.metrics.StageMetrics.INFLATED_BYTES;
+import static org.rakam.importer.metrics.StageMetrics.LINES_PARSED;
+import static org.rakam.importer.metrics.StageMetrics.PARSE_ERRORS;
 
 public class AmplitudeImporter
 {
@@ -51,21 +67,33 @@ public class AmplitudeImporter
 
     private final static Logger LOGGER = Logger.get(AmplitudeImporter.class);
 
+    // the download is transferred in chunks so that the progress is visible in the metrics
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    public static final String DEFAULT_ADDRESS = "https://amplitude.com";
+
+    private final String address;
     private final String apiKey;
     private final String secretKey;
 
     public AmplitudeImporter(String apiKey, String secretKey)
     {
+        this(DEFAULT_ADDRESS, apiKey, secretKey);
+    }
+
+    public AmplitudeImporter(String address, String apiKey, String secretKey)
+    {
+        this.address = address;
         this.apiKey = apiKey;
         this.secretKey = secretKey;
     }
 
     public Map.Entry<List<Map.Entry<LocalDateTime, LocalDateTime>>, Long> getTasks(LocalDateTime startDate, LocalDateTime endDate, int maxBatchSize)
     {
-        HttpsURLConnection connection = null;
+        HttpURLConnection connection = null;
 
         try {
-            connection = (HttpsURLConnection) new URL("https://amplitude.com/api/2/events/segmentation?e={%22event_type%22:%22_all%22}&i=30&m=totals&start=" + DATE_FORMAT.format(startDate) + "&end=" + DATE_FORMAT.format(endDate)).openConnection();
+            connection = (HttpURLConnection) new URL(address + "/api/2/events/segmentation?e=%7B%22event_type%22:%22_all%22%7D&i=30&m=totals&start=" + DATE_FORMAT.format(startDate) + "&end=" + DATE_FORMAT.format(endDate)).openConnection();
 
             connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString((apiKey + ":" + secretKey).getBytes(StandardCharsets.UTF_8)));
             JsonNode node = mapper.readTree(toByteArray(connection.getInputStream()));
@@ -187,6 +215,16 @@ public class AmplitudeImporter
 
     public void downloadEvents(File directory, LocalDateTime startDate, LocalDateTime endDate, int tryCount)
     {
+        File file = getArchiveFile(directory, startDate, endDate);
+        if (file.exists()) {
+            if (isValidArchive(file)) {
+                LOGGER.info("Archive %s is already downloaded, skipping..", file.getName());
+                return;
+            }
+            LOGGER.warn("Archive %s is corrupted, downloading it again..", file.getName());
+            file.delete();
+        }
+
         Map<String, String> build = ImmutableMap.<String, String>builder()
                 .put("start", DATE_FORMAT.format(startDate))
                 .put("end", DATE_FORMAT.format(endDate)).build();
@@ -194,50 +232,104 @@ public class AmplitudeImporter
         LOGGER.info("Downloading data from Amplitude for time period %s and %s..",
                 ISO_DATE.format(startDate), ISO_DATE.format(endDate));
 
-        byte[] buffer = new byte[64 * 1024];
+        // the response is written to a temporary file first so that an interrupted download can be resumed
+        // and an incomplete archive is never visible under the final name
+        File partFile = new File(directory, file.getName() + ".part");
 
-        InputStream input = null;
         try {
-            input = generateRequest(apiKey, secretKey, build, 3);
-            if (input == null) {
+            HttpURLConnection connection = openConnection(address, apiKey, secretKey, build);
+            long offset = partFile.length();
+            if (offset > 0) {
+                connection.setRequestProperty("Range", format("bytes=%d-", offset));
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == 404) {
                 return;
             }
+            if (responseCode == 416) {
+                // the server has nothing beyond what we already have, the part file is complete.
+                offset = -1;
+            }
+            else if (responseCode != 206) {
+                if (responseCode != 200) {
+                    InputStream errorStream = connection.getErrorStream();
+                    throw new IOException(format("%d -> %s", responseCode, errorStream == null ? "" : new String(toByteArray(errorStream))));
+                }
+                if (offset > 0) {
+                    LOGGER.info("Amplitude doesn't support resuming downloads, downloading %s from the beginning..", file.getName());
+                }
+                offset = 0;
+            }
+            else {
+                LOGGER.info("Resuming download of %s from byte %d..", file.getName(), offset);
+            }
 
-            File file = new File(directory, format("%s-%s.zip", startDate.toString(), endDate.toString()));
-            OutputStream output = new FileOutputStream(file);
-            try {
-                int bytesRead;
-                while ((bytesRead = input.read(buffer)) != -1) {
-                    output.write(buffer, 0, bytesRead);
+            if (offset >= 0) {
+                try (InputStream input = connection.getInputStream();
+                        ReadableByteChannel source = Channels.newChannel(input);
+                        FileChannel target = FileChannel.open(partFile.toPath(), CREATE, WRITE)) {
+                    target.truncate(offset);
+                    long position = offset;
+                    long transferred;
+                    while ((transferred = target.transferFrom(source, position, TRANSFER_CHUNK_SIZE)) > 0) {
+                        position += transferred;
+                        DOWNLOADED_BYTES.add(transferred);
+                    }
+                    target.force(true);
                 }
             }
-            finally {
-                output.close();
+            else {
+                connection.disconnect();
             }
+
+            if (!isValidArchive(partFile)) {
+                partFile.delete();
+                throw new IOException(format("Downloaded archive %s is corrupted", file.getName()));
+            }
+
+            Files.move(partFile.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
         }
         catch (IOException e) {
             if (tryCount == 0) {
                 throw new RuntimeException(e);
             }
+            LOGGER.warn(e, "Error while downloading %s, retrying..", file.getName());
+            DOWNLOAD_RETRIES.increment();
             downloadEvents(directory, startDate, endDate, tryCount - 1);
         }
-        finally {
-            if (input != null) {
-                try {
-                    input.close();
-                }
-                catch (IOException e) {
-                    if (tryCount == 0) {
-                        throw new RuntimeException(e);
-                    }
+    }
 
-                    downloadEvents(directory, startDate, endDate, tryCount - 1);
+    public static File getArchiveFile(File directory, LocalDateTime startDate, LocalDateTime endDate)
+    {
+        return new File(directory, format("%s-%s.zip", startDate.toString(), endDate.toString()));
+    }
+
+    public static boolean isValidArchive(File file)
+    {
+        // ZipFile reads the central directory at the end of the archive, it fails for truncated files.
+        try (ZipFile zipFile = new ZipFile(file)) {
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                if (entry.getCompressedSize() < 0 || !zipFile.canReadEntryData(entry)) {
+                    return false;
                 }
             }
+            return true;
+        }
+        catch (IOException e) {
+            return false;
         }
     }
 
-    public void importEvents(File file, Supplier<Event> iterator)
+    /**
+     * @param ids the ids of the events that are already imported, the events whose uuid is in the set are skipped. Nullable.
+     * @param filter selects the events that are imported, all events are imported if it's null.
+     * @param quarantine keeps the lines that can't be parsed, they are only counted if it's null.
+     * @param users collects the user properties of the events, they are ignored if it's null.
+     */
+    public void importEvents(File file, EventIdSet ids, EventFilter filter, Quarantine quarantine, UserPropertiesAggregator users, Supplier<Event> iterator)
     {
         ZipFile zipFile;
         try {
@@ -247,89 +339,129 @@ public class AmplitudeImporter
             throw new RuntimeException(e);
         }
 
-        Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
-
         try {
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
             while (entries.hasMoreElements()) {
-                ZipArchiveEntry entry = entries.nextElement();
-                InputStream zis = zipFile.getInputStream(entry);
+                importEntry(zipFile, file.getName(), entries.nextElement(), ids, filter, quarantine, users, iterator);
+            }
+        }
+        finally {
+            try {
+                zipFile.close();
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Imports the events in a gzipped entry of the archive. The entries of a {@link ZipFile} can be read concurrently.
+     * The lines that can't be parsed are quarantined and skipped, if the entry itself is corrupted the rest of it is skipped.
+     * Errors of the consumer are propagated.
+     *
+     * @param archiveName the name of the archive that is recorded with the quarantined lines
+     * @return the number of lines of the entry, -1 if the entry is corrupted
+     */
+    public long importEntry(ZipFile zipFile, String archiveName, ZipArchiveEntry entry, EventIdSet ids, EventFilter filter, Quarantine quarantine, UserPropertiesAggregator users, Supplier<Event> iterator)
+    {
+        LineNumberReader scanner = null;
+        try (InputStream zis = zipFile.getInputStream(entry)) {
+            InputStream gzipStream = new MeteredInputStream(new GZIPInputStream(zis, 64 * 1024), INFLATED_BYTES);
+            scanner = new LineNumberReader(new InputStreamReader(gzipStream));
+            String line;
+            while ((line = scanner.readLine()) != null) {
+                LINES_PARSED.increment();
+                if (filter != null && !filter.accept(line)) {
+                    DROPPED_FILTERED_EVENTS.increment();
+                    continue;
+                }
 
+                AmplitudeEvent read;
                 try {
-                    InputStream gzipStream = new GZIPInputStream(zis, Ints.checkedCast(entry.getSize()));
-                    LineNumberReader scanner = new LineNumberReader(new InputStreamReader(gzipStream));
-                    String line = scanner.readLine();
-                    while (line != null) {
-                        AmplitudeEvent read = null;
-                        try {
-                            read = mapper.readValue(line, AmplitudeEvent.class);
-                        }
-                        catch (IOException e) {
-                            LOGGER.warn(e, "Invalid JSON");
-                        }
-                        line = scanner.readLine();
+                    read = mapper.readValue(line, AmplitudeEvent.class);
+                }
+                catch (IOException e) {
+                    PARSE_ERRORS.increment();
+                    if (quarantine != null) {
+                        quarantine.add(archiveName, entry.getName(), scanner.getLineNumber(), line, e);
+                    }
+                    continue;
+                }
 
-                        if (read.is_attribution_event) {
-                            read.user_properties.isEmpty();
-                            continue;
-                        }
-
-                        Event event = iterator.get();
-
-                        event.collection = read.event_type != null ? read.event_type : read.amplitude_event_type;
-
-                        Map<String, Object> record = new HashMap<>();
-                        event.properties = record;
-
-                        if (read.revenue != null) {
-                            record.put("revenue", read.device_carrier);
-                        }
-
-                        record.put("_device_carrier", read.device_carrier);
-                        record.put("_city", read.city);
-                        record.put("_region", read.region);
-                        record.put("_country", read.country);
-                        record.put("_user", read.user_id);
-                        record.put("_id", read.uuid);
-                        record.put("_time", read.event_time);
-                        record.put("_platform", read.platform);
-                        record.put("_os_version", read.os_version);
-                        record.put("_os", read.os_name);
-                        record.put("__ip", read.ip_address);
-                        record.put("_library", read.library);
-                        record.put("_device_family", read.device_type);
-                        record.put("_device_manufacturer", read.device_manufacturer);
-                        record.put("_longitude", read.location_lng);
-                        record.put("_latitude", read.location_lat);
-                        record.put("_os_name", read.os_name);
-                        record.put("_device_brand", read.device_brand);
-                        record.put("_device_id", read.device_id);
-                        record.put("_language", read.language);
-                        record.put("_device_model", read.device_model);
-                        record.put("_adid", read.adid);
-                        record.put("_session_id", read.session_id);
-                        record.put("_device_family", read.device_family);
-                        record.put("_idfa", read.idfa);
-                        record.put("_dma", read.dma);
-
-                        for (Map.Entry<String, Object> item : read.event_properties.entrySet()) {
-                            record.put(item.getKey(), item.getValue());
-                        }
+                // the attribution events are not imported but they carry the user properties that are set by the attribution providers
+                if (users != null) {
+                    users.add(read.user_id, read.event_time, read.user_properties);
+                }
+
+                if (read.is_attribution_event) {
+                    DROPPED_ATTRIBUTION_EVENTS.increment();
+                    continue;
+                }
+
+                if (ids != null && read.uuid != null && !ids.add(read.uuid)) {
+                    DROPPED_DUPLICATE_EVENTS.increment();
+                    continue;
+                }
+
+                Event event = iterator.get();
+
+                event.collection = read.event_type != null ? read.event_type : read.amplitude_event_type;
+
+                Map<String, Object> record = new HashMap<>();
+                event.properties = record;
+
+                if (read.revenue != null) {
+                    record.put("revenue", read.revenue);
+                }
+
+                record.put("_device_carrier", read.device_carrier);
+                record.put("_city", read.city);
+                record.put("_region", read.region);
+                record.put("_country", read.country);
+                record.put("_user", read.user_id);
+                record.put("_id", read.uuid);
+                record.put("_time", read.event_time);
+                record.put("_client_upload_time", read.client_upload_time);
+                record.put("_platform", read.platform);
+                record.put("_os_version", read.os_version);
+                record.put("_os", read.os_name);
+                record.put("__ip", read.ip_address);
+                record.put("_library", read.library);
+                record.put("_device_family", read.device_type);
+                record.put("_device_manufacturer", read.device_manufacturer);
+                record.put("_longitude", read.location_lng);
+                record.put("_latitude", read.location_lat);
+                record.put("_os_name", read.os_name);
+                record.put("_device_brand", read.device_brand);
+                record.put("_device_id", read.device_id);
+                record.put("_language", read.language);
+                record.put("_device_model", read.device_model);
+                record.put("_adid", read.adid);
+                record.put("_session_id", read.session_id);
+                record.put("_device_family", read.device_family);
+                record.put("_idfa", read.idfa);
+                record.put("_dma", read.dma);
+
+                if (read.event_properties != null) {
+                    for (Map.Entry<String, Object> item : read.event_properties.entrySet()) {
+                        record.put(item.getKey(), item.getValue());
                     }
                 }
-                catch (Exception e) {
-                    LOGGER.warn(e, "Corrupted sub archive. skipping..");
+
+                if (filter != null) {
+                    filter.dropProperties(record);
                 }
             }
+            return scanner.getLineNumber();
         }
-        catch (Exception e) {
-            LOGGER.error(e, "Error while reading file");
-        } finally {
-            try {
-                zipFile.close();
-            }
-            catch (IOException e) {
-                throw new RuntimeException(e);
+        catch (IOException e) {
+            PARSE_ERRORS.increment();
+            if (quarantine != null) {
+                quarantine.add(archiveName, entry.getName(), scanner == null ? 0 : scanner.getLineNumber() + 1, null, e);
             }
+            LOGGER.warn("Corrupted sub archive %s of %s, skipping the rest of it: %s", entry.getName(), archiveName, e.getMessage());
+            return -1;
         }
     }
-}
\ No newline at end of file
+}
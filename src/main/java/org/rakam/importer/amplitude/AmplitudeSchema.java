@@ -0,0 +1,58 @@
+package org.rakam.importer.amplitude;
+
+import com.google.common.collect.ImmutableList;
+import io.rakam.client.model.SchemaField;
+
+import java.util.List;
+
+import static io.rakam.client.model.SchemaField.TypeEnum.DOUBLE;
+import static io.rakam.client.model.SchemaField.TypeEnum.LONG;
+import static io.rakam.client.model.SchemaField.TypeEnum.STRING;
+import static io.rakam.client.model.SchemaField.TypeEnum.TIMESTAMP;
+
+/**
+ * The Rakam fields that every Amplitude event is mapped to, event properties are added to the collections as they are.
+ */
+public final class AmplitudeSchema
+{
+    public static final List<SchemaField> FIELDS = ImmutableList.of(
+            field("revenue", DOUBLE),
+            field("_device_carrier", STRING),
+            field("_city", STRING),
+            field("_region", STRING),
+            field("_country", STRING),
+            field("_user", STRING),
+            field("_id", STRING),
+            field("_time", TIMESTAMP),
+            field("_client_upload_time", TIMESTAMP),
+            field("_platform", STRING),
+            field("_os_version", STRING),
+            field("_os", STRING),
+            field("__ip", STRING),
+            field("_library", STRING),
+            field("_device_family", STRING),
+            field("_device_manufacturer", STRING),
+            field("_longitude", DOUBLE),
+            field("_latitude", DOUBLE),
+            field("_os_name", STRING),
+            field("_device_brand", STRING),
+            field("_device_id", STRING),
+            field("_language", STRING),
+            field("_device_model", STRING),
+            field("_adid", STRING),
+            field("_session_id", LONG),
+            field("_idfa", STRING),
+            field("_dma", STRING));
+
+    private AmplitudeSchema()
+    {
+    }
+
+    private static SchemaField field(String name, SchemaField.TypeEnum type)
+    {
+        SchemaField schemaField = new SchemaField();
+        schemaField.setName(name);
+        schemaField.setType(type);
+        return schemaField;
+    }
+}
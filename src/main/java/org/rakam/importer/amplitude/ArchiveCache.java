@@ -0,0 +1,418 @@
+package org.rakam.importer.amplitude;
+
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+import io.rakam.client.model.User;
+import org.rakam.importer.Event;
+import org.rakam.importer.EventIdSet;
+import org.rakam.importer.ValueInput;
+import org.rakam.importer.ValueOutput;
+import org.rakam.importer.metrics.Metrics;
+import org.rakam.importer.sink.Sink;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static org.rakam.importer.metrics.StageMetrics.CACHE_READ_BYTES;
+import static org.rakam.importer.metrics.StageMetrics.DROPPED_DUPLICATE_EVENTS;
+import static org.rakam.importer.metrics.StageMetrics.DROPPED_FILTERED_EVENTS;
+
+/**
+ * The events of a downloaded archive after they are decoded and mapped, so that the archive can be imported again without
+ * inflating and parsing it. The events are kept in {@code <archive>.events} as length-prefixed blocks, each block starts with
+ * the dictionary of the collection names, property keys and string values that its events refer to by their index, so a string
+ * that is repeated in a block is stored and decoded once. The values are encoded by {@link ValueOutput}.
+ * <p>
+ * {@code <archive>.index} has the offsets of the blocks and the size and modification time of the archive. It's written once
+ * all the blocks are written, a cache without an index or with the index of a different archive is ignored.
+ * The blocks are memory-mapped and decoded in parallel when the events are imported.
+ */
+public class ArchiveCache
+{
+    private final static Logger LOGGER = Logger.get(ArchiveCache.class);
+
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private static final int MAGIC = 0x52414b31;
+
+    private final File archive;
+    private final File data;
+    private final File index;
+
+    public ArchiveCache(File directory, File archive)
+    {
+        this.archive = archive;
+        this.data = new File(directory, archive.getName() + ".events");
+        this.index = new File(directory, archive.getName() + ".index");
+    }
+
+    /**
+     * Returns true if all the events of the archive are written to the cache.
+     */
+    public boolean isComplete()
+    {
+        if (!index.exists()) {
+            return false;
+        }
+        try {
+            readIndex();
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Removes the existing cache of the archive and returns a sink that writes the events to the cache.
+     * The cache is complete once {@link Writer#commit()} is called, closing the writer without committing leaves it incomplete.
+     */
+    public Writer createWriter(int blockSize)
+    {
+        index.delete();
+        data.getParentFile().mkdirs();
+        try {
+            return new Writer(blockSize);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Writes the events of the cache to the sink. The blocks are decoded on the executor, each thread writes its own batches.
+     *
+     * @param ids the ids of the events that are already imported, the events whose {@code _id} is in the set are skipped. Nullable.
+     * @param filter selects the events that are imported, all events are imported if it's null.
+     * @param threads the number of threads of the executor
+     * @return number of events that are written to the sink
+     */
+    public long importEvents(Sink sink, EventIdSet ids, EventFilter filter, Executor executor, int threads, int batchSize)
+    {
+        List<Block> blocks;
+        try {
+            blocks = readIndex();
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        // the batch size is shared by the workers to keep the memory usage the same as a single worker
+        int workerBatchSize = Math.max(1, batchSize / threads);
+        ThreadLocal<Event[]> batches = ThreadLocal.withInitial(() -> new Event[workerBatchSize]);
+        AtomicLong total = new AtomicLong();
+        AtomicInteger queued = new AtomicInteger(blocks.size());
+        CountDownLatch done = new CountDownLatch(blocks.size());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Metrics.gauge("importer_queued_cache_blocks", "Blocks of the converted archives that are waiting for an import thread", queued::get);
+
+        try (FileChannel channel = FileChannel.open(data.toPath(), READ)) {
+            for (Block block : blocks) {
+                executor.execute(() -> {
+                    queued.decrementAndGet();
+                    try {
+                        if (failure.get() == null) {
+                            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, block.offset, block.length);
+                            total.addAndGet(importBlock(buffer, block.events, sink, ids, filter, batches.get()));
+                            CACHE_READ_BYTES.add(block.length);
+                        }
+                    }
+                    catch (Throwable e) {
+                        LOGGER.error(e, "Unable to import block at %d of %s", block.offset, data.getName());
+                        failure.compareAndSet(null, e);
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+
+        if (failure.get() != null) {
+            throw new RuntimeException("Unable to import the converted archive " + archive.getName(), failure.get());
+        }
+        return total.get();
+    }
+
+    private static long importBlock(ByteBuffer buffer, int eventCount, Sink sink, EventIdSet ids, EventFilter filter, Event[] batch)
+            throws IOException
+    {
+        DictionaryInput input = new DictionaryInput(buffer);
+
+        int size = 0;
+        long total = 0;
+        for (int i = 0; i < eventCount; i++) {
+            String collection = input.readReference();
+            int properties = input.readVarInt();
+
+            Event event = batch[size];
+            if (event == null) {
+                event = batch[size] = new Event();
+                event.properties = new HashMap<>(properties * 2);
+            }
+            else {
+                event.properties.clear();
+            }
+            event.collection = collection;
+            for (int j = 0; j < properties; j++) {
+                String key = input.readReference();
+                event.properties.put(key, input.readValue());
+            }
+
+            if (filter != null) {
+                if (!filter.accept(event)) {
+                    DROPPED_FILTERED_EVENTS.increment();
+                    continue;
+                }
+                filter.dropProperties(event.properties);
+            }
+            Object id = event.properties.get("_id");
+            if (ids != null && id instanceof String && !ids.add((String) id)) {
+                DROPPED_DUPLICATE_EVENTS.increment();
+                continue;
+            }
+
+            if (++size == batch.length) {
+                sink.writeEvents(Arrays.asList(batch));
+                total += size;
+                size = 0;
+            }
+        }
+
+        if (size > 0) {
+            sink.writeEvents(Arrays.asList(batch).subList(0, size));
+            total += size;
+        }
+        return total;
+    }
+
+    private List<Block> readIndex()
+            throws IOException
+    {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(index))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Invalid index " + index);
+            }
+            if (input.readLong() != archive.length() || input.readLong() != archive.lastModified()) {
+                throw new IOException("The index doesn't belong to archive " + archive.getName());
+            }
+            int count = input.readInt();
+            List<Block> blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                blocks.add(new Block(input.readLong(), input.readInt(), input.readInt()));
+            }
+            if (data.length() != (blocks.isEmpty() ? 0 : blocks.get(count - 1).offset + blocks.get(count - 1).length)) {
+                throw new IOException("Incomplete cache " + data);
+            }
+            return blocks;
+        }
+    }
+
+    /**
+     * Encodes the events into the blocks of the cache. The calls are serialized, the events are usually decoded by several threads.
+     */
+    public class Writer
+            implements Sink
+    {
+        private final int blockSize;
+        private final OutputStream output;
+        private final List<Block> blocks = new ArrayList<>();
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private final List<String> dictionaryKeys = new ArrayList<>();
+        private final ValueOutput body = new ValueOutput(64 * 1024)
+        {
+            @Override
+            protected void writeStringValue(String value)
+            {
+                writeVarLong(reference(value));
+            }
+        };
+        private long offset;
+        private int events;
+
+        private Writer(int blockSize)
+                throws IOException
+        {
+            this.blockSize = blockSize;
+            this.output = new BufferedOutputStream(new FileOutputStream(data), 64 * 1024);
+        }
+
+        @Override
+        public synchronized void writeEvents(List<Event> batch)
+        {
+            try {
+                for (Event event : batch) {
+                    body.writeVarLong(reference(event.collection));
+                    body.writeVarLong(event.properties.size());
+                    for (Map.Entry<String, Object> entry : event.properties.entrySet()) {
+                        body.writeVarLong(reference(entry.getKey()));
+                        body.writeValue(entry.getValue());
+                    }
+                    events++;
+                    if (body.size() >= blockSize) {
+                        writeBlock();
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        private int reference(String key)
+        {
+            Integer reference = dictionary.get(key);
+            if (reference == null) {
+                reference = dictionaryKeys.size();
+                dictionary.put(key, reference);
+                dictionaryKeys.add(key);
+            }
+            return reference;
+        }
+
+        private void writeBlock()
+                throws IOException
+        {
+            ValueOutput header = new ValueOutput(64 * 1024);
+            header.writeInt(dictionaryKeys.size());
+            for (String key : dictionaryKeys) {
+                header.writeString(key);
+            }
+
+            header.writeTo(output);
+            body.writeTo(output);
+            int length = header.size() + body.size();
+            blocks.add(new Block(offset, length, events));
+            offset += length;
+
+            body.reset();
+            dictionary.clear();
+            dictionaryKeys.clear();
+            events = 0;
+        }
+
+        @Override
+        public void writeUsers(List<User> users)
+        {
+            throw new UnsupportedOperationException("The converted archives only have the events");
+        }
+
+        @Override
+        public synchronized void flush()
+        {
+        }
+
+        /**
+         * Writes the last block and the index, the cache is used by the next imports afterwards.
+         */
+        public synchronized void commit()
+        {
+            try {
+                if (events > 0) {
+                    writeBlock();
+                }
+                output.close();
+
+                File temporary = new File(index.getPath() + ".tmp");
+                try (DataOutputStream indexOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                    indexOutput.writeInt(MAGIC);
+                    indexOutput.writeLong(archive.length());
+                    indexOutput.writeLong(archive.lastModified());
+                    indexOutput.writeInt(blocks.size());
+                    for (Block block : blocks) {
+                        indexOutput.writeLong(block.offset);
+                        indexOutput.writeInt(block.length);
+                        indexOutput.writeInt(block.events);
+                    }
+                }
+                Files.move(temporary.toPath(), index.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+                LOGGER.info("Converted archive %s to %d blocks (%d bytes)", archive.getName(), blocks.size(), offset);
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            try {
+                output.close();
+            }
+            catch (IOException e) {
+                LOGGER.warn(e, "Unable to close %s", data.getName());
+            }
+        }
+    }
+
+    private static class DictionaryInput
+            extends ValueInput
+    {
+        private final String[] dictionary;
+
+        public DictionaryInput(ByteBuffer buffer)
+        {
+            super(buffer);
+            String[] dictionary = new String[buffer.getInt()];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = readString();
+            }
+            this.dictionary = dictionary;
+        }
+
+        public String readReference()
+        {
+            return dictionary[readVarInt()];
+        }
+
+        @Override
+        protected String readStringValue()
+        {
+            return readReference();
+        }
+    }
+
+    private static class Block
+    {
+        private final long offset;
+        private final int length;
+        private final int events;
+
+        public Block(long offset, int length, int events)
+        {
+            this.offset = offset;
+            this.length = length;
+            this.events = events;
+        }
+    }
+}
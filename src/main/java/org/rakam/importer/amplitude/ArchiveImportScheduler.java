@@ -0,0 +1,262 @@
+package org.rakam.importer.amplitude;
+
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.rakam.importer.Event;
+import org.rakam.importer.EventIdSet;
+import org.rakam.importer.Quarantine;
+import org.rakam.importer.metrics.Metrics;
+import org.rakam.importer.sink.Sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Imports the entries of the downloaded archives in parallel. Each gzipped entry of an archive is a unit of work,
+ * the units are submitted to the executor in descending size order so that the largest entries don't end up being processed last.
+ * The executor is a work-stealing pool of the importer or the queue of the job on the shared threads of a batch run.
+ * <p>
+ * Each unit sends its events to the sink before it completes, an archive is acknowledged once all of its units are completed.
+ * The {@link ArchiveIndex} of an archive is written once all of its entries are read if it doesn't have one.
+ */
+public class ArchiveImportScheduler
+{
+    private final static Logger LOGGER = Logger.get(ArchiveImportScheduler.class);
+
+    private final AmplitudeImporter importer;
+    private final Sink sink;
+    private final EventIdSet ids;
+    private final EventFilter filter;
+    private final Quarantine quarantine;
+    private final UserPropertiesAggregator users;
+    private final Predicate<ZipArchiveEntry> entryFilter;
+    private final Executor executor;
+    private final int threads;
+    private final ThreadLocal<Event[]> batches;
+
+    /**
+     * @param users collects the user properties of the events, nullable
+     * @param entryFilter selects the entries of the archives that are imported, all entries are imported if it's null
+     * @param threads the number of threads of the executor that run the units of this scheduler
+     */
+    public ArchiveImportScheduler(AmplitudeImporter importer, Sink sink, EventIdSet ids, EventFilter filter, Quarantine quarantine, UserPropertiesAggregator users,
+            Predicate<ZipArchiveEntry> entryFilter, Executor executor, int threads, int batchSize)
+    {
+        this.importer = importer;
+        this.sink = sink;
+        this.ids = ids;
+        this.filter = filter;
+        this.quarantine = quarantine;
+        this.users = users;
+        this.entryFilter = entryFilter;
+        this.executor = executor;
+        this.threads = threads;
+        // the batch size is shared by the workers to keep the memory usage the same as a single worker
+        int workerBatchSize = Math.max(1, batchSize / threads);
+        this.batches = ThreadLocal.withInitial(() -> {
+            Event[] batch = new Event[workerBatchSize];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = new Event();
+            }
+            return batch;
+        });
+    }
+
+    /**
+     * @param onArchiveDone called with the archives whose events are all written to the sink, it's not called for the archives
+     * whose entries are skipped by the entry filter since the rest of their events are not imported
+     * @return number of events that are written to the sink
+     */
+    public long importArchives(List<File> files, Consumer<File> onArchiveDone)
+    {
+        List<Archive> archives = new ArrayList<>();
+        List<Unit> units = new ArrayList<>();
+        try {
+            for (File file : files) {
+                Archive archive = new Archive(file, new ZipFile(file));
+                archives.add(archive);
+                Enumeration<ZipArchiveEntry> entries = archive.zipFile.getEntries();
+                while (entries.hasMoreElements()) {
+                    ZipArchiveEntry entry = entries.nextElement();
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    if (entryFilter != null && !entryFilter.test(entry)) {
+                        archive.skippedEntries = true;
+                        continue;
+                    }
+                    Unit unit = new Unit(archive, entry);
+                    units.add(unit);
+                    archive.units.add(unit);
+                }
+                archive.remainingUnits.set(archive.units.size());
+            }
+        }
+        catch (IOException e) {
+            archives.forEach(Archive::close);
+            throw Throwables.propagate(e);
+        }
+
+        units.sort(Comparator.comparingLong((Unit unit) -> unit.entry.getCompressedSize()).reversed());
+        LOGGER.info("Importing %d entries of %d archives using %d threads", units.size(), archives.size(), threads);
+        int skipped = archives.stream().mapToInt(archive -> archive.skippedEntries ? 1 : 0).sum();
+        if (skipped > 0) {
+            LOGGER.info("Skipping the entries of %d archives that are not selected", skipped);
+        }
+
+        AtomicLong total = new AtomicLong();
+        AtomicInteger queued = new AtomicInteger(units.size());
+        CountDownLatch done = new CountDownLatch(units.size());
+        Metrics.gauge("importer_queued_archive_entries", "Archive entries that are waiting for an import thread", queued::get);
+        try {
+            for (Unit unit : units) {
+                executor.execute(() -> {
+                    queued.decrementAndGet();
+                    try {
+                        run(unit, total, onArchiveDone);
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                });
+            }
+            // archives without any entries have nothing to wait for
+            archives.stream().filter(archive -> archive.units.isEmpty()).forEach(archive -> complete(archive, onArchiveDone));
+
+            done.await();
+        }
+        catch (InterruptedException e) {
+            // the units that are not started yet are skipped
+            archives.forEach(archive -> archive.failure = e);
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+        finally {
+            archives.forEach(Archive::close);
+        }
+
+        for (Archive archive : archives) {
+            if (archive.failure != null) {
+                throw new RuntimeException("Unable to import archive " + archive.file.getName(), archive.failure);
+            }
+        }
+
+        return total.get();
+    }
+
+    private void run(Unit unit, AtomicLong total, Consumer<File> onArchiveDone)
+    {
+        Archive archive = unit.archive;
+        if (archive.failure != null) {
+            return;
+        }
+
+        try {
+            LOGGER.debug("Processing %s of %s (%d bytes)", unit.entry.getName(), archive.file.getName(), unit.entry.getCompressedSize());
+
+            Event[] batch = batches.get();
+            int[] idx = {0};
+            unit.lines = importer.importEntry(archive.zipFile, archive.file.getName(), unit.entry, ids, filter, quarantine, users, () -> {
+                if (idx[0] == batch.length) {
+                    sink.writeEvents(Arrays.asList(batch));
+                    total.addAndGet(batch.length);
+                    idx[0] = 1;
+                    return batch[0];
+                }
+                return batch[idx[0]++];
+            });
+
+            if (idx[0] > 0) {
+                sink.writeEvents(Arrays.asList(batch).subList(0, idx[0]));
+                total.addAndGet(idx[0]);
+            }
+        }
+        catch (Throwable e) {
+            LOGGER.error(e, "Unable to import %s of %s", unit.entry.getName(), archive.file.getName());
+            archive.failure = e;
+            return;
+        }
+
+        if (archive.remainingUnits.decrementAndGet() == 0) {
+            complete(archive, onArchiveDone);
+        }
+    }
+
+    private void complete(Archive archive, Consumer<File> onArchiveDone)
+    {
+        archive.close();
+        if (!archive.skippedEntries && archive.units.stream().allMatch(unit -> unit.lines >= 0) && ArchiveIndex.read(archive.file) == null) {
+            ArchiveIndex index = new ArchiveIndex();
+            archive.units.forEach(unit -> index.add(unit.entry, unit.lines));
+            try {
+                index.write(archive.file);
+            }
+            catch (RuntimeException e) {
+                LOGGER.warn(e, "Unable to write the index of archive %s", archive.file.getName());
+            }
+        }
+        if (archive.skippedEntries) {
+            LOGGER.info("Imported the selected entries of archive %s", archive.file.getName());
+            return;
+        }
+        LOGGER.info("Imported archive %s", archive.file.getName());
+        onArchiveDone.accept(archive.file);
+    }
+
+    private static class Archive
+    {
+        private final File file;
+        private final ZipFile zipFile;
+        private final AtomicInteger remainingUnits = new AtomicInteger();
+        private final List<Unit> units = new ArrayList<>();
+        private boolean skippedEntries;
+        private volatile Throwable failure;
+        private boolean closed;
+
+        public Archive(File file, ZipFile zipFile)
+        {
+            this.file = file;
+            this.zipFile = zipFile;
+        }
+
+        public synchronized void close()
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                zipFile.close();
+            }
+            catch (IOException e) {
+                LOGGER.warn(e, "Unable to close archive %s", file.getName());
+            }
+        }
+    }
+
+    private static class Unit
+    {
+        private final Archive archive;
+        private final ZipArchiveEntry entry;
+        private volatile long lines = -1;
+
+        public Unit(Archive archive, ZipArchiveEntry entry)
+        {
+            this.archive = archive;
+            this.entry = entry;
+        }
+    }
+}
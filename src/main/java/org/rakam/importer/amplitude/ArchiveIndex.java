@@ -0,0 +1,230 @@
+package org.rakam.importer.amplitude;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * The hour and the number of events of each entry of a downloaded archive, kept in {@code <archive>.entries} next to the archive.
+ * Amplitude exports an entry per hour such as {@code 187/187_2016-01-05_7#0.json.gz}, the hour is read from the name of the entry
+ * so the entries outside of an import range are skipped without inflating them. The events are counted when the archive is read
+ * for the first time, after that {@code count} answers from the index.
+ * <p>
+ * An index whose archive has a different size or modification time is ignored.
+ */
+public class ArchiveIndex
+{
+    private final static Logger LOGGER = Logger.get(ArchiveIndex.class);
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    private static final Pattern ENTRY_HOUR = Pattern.compile("_(\\d{4}-\\d{2}-\\d{2})_(\\d{1,2})#");
+
+    public long archiveLength;
+    public long archiveLastModified;
+    public List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Returns the UTC hour of the events of the entry, or null if the name is not in the format of the Amplitude exports.
+     */
+    public static LocalDateTime getHour(String entryName)
+    {
+        Matcher matcher = ENTRY_HOUR.matcher(entryName);
+        if (!matcher.find()) {
+            return null;
+        }
+        return LocalDate.parse(matcher.group(1)).atTime(Integer.parseInt(matcher.group(2)), 0);
+    }
+
+    /**
+     * Returns true if the hour of the entry is between {@code start}, inclusive, and {@code end}, exclusive.
+     * The entries whose hour is unknown are always in the range.
+     *
+     * @param start nullable
+     * @param end nullable
+     */
+    public static boolean isInRange(String entryName, LocalDateTime start, LocalDateTime end)
+    {
+        LocalDateTime hour = getHour(entryName);
+        return hour == null || ((start == null || !hour.isBefore(start)) && (end == null || hour.isBefore(end)));
+    }
+
+    /**
+     * Returns true if the archive has entries whose hour is not in the range.
+     *
+     * @param start nullable
+     * @param end nullable
+     */
+    public static boolean hasEntriesOutside(File archive, LocalDateTime start, LocalDateTime end)
+    {
+        if (start == null && end == null) {
+            return false;
+        }
+
+        ArchiveIndex index = read(archive);
+        if (index != null) {
+            return index.entries.stream().anyMatch(entry -> !isInRange(entry.name, start, end));
+        }
+        // the names of the entries are in the central directory, the entries are not read
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+            while (entries.hasMoreElements()) {
+                if (!isInRange(entries.nextElement().getName(), start, end)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    public static File getFile(File archive)
+    {
+        return new File(archive.getParentFile(), archive.getName() + ".entries");
+    }
+
+    /**
+     * Returns the index of the archive, null if it's not built yet or it belongs to a different archive.
+     */
+    public static ArchiveIndex read(File archive)
+    {
+        File file = getFile(archive);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            ArchiveIndex index = mapper.readValue(file, ArchiveIndex.class);
+            if (index.archiveLength != archive.length() || index.archiveLastModified != archive.lastModified()) {
+                return null;
+            }
+            return index;
+        }
+        catch (IOException e) {
+            LOGGER.warn("Ignoring the unreadable index of %s: %s", archive.getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the index of the archive, it's built by counting the lines of the entries if it doesn't exist.
+     */
+    public static ArchiveIndex load(File archive)
+    {
+        ArchiveIndex index = read(archive);
+        if (index != null) {
+            return index;
+        }
+
+        index = new ArchiveIndex();
+        boolean complete = true;
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+
+                long events = 0;
+                try (InputStream input = new GZIPInputStream(zipFile.getInputStream(entry), 64 * 1024)) {
+                    LineNumberReader reader = new LineNumberReader(new InputStreamReader(input));
+                    while (reader.readLine() != null) {
+                        events++;
+                    }
+                }
+                catch (IOException e) {
+                    LOGGER.error(e, "Error while reading %s of %s", entry.getName(), archive.getName());
+                    complete = false;
+                }
+                index.add(entry, events);
+            }
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        // the counts of a corrupted entry are not kept, they would be wrong once the archive is downloaded again
+        if (complete) {
+            index.write(archive);
+        }
+        return index;
+    }
+
+    public void add(ZipArchiveEntry entry, long events)
+    {
+        LocalDateTime hour = getHour(entry.getName());
+        entries.add(new Entry(entry.getName(), hour == null ? null : hour.toString(), events, entry.getCompressedSize()));
+    }
+
+    public void write(File archive)
+    {
+        archiveLength = archive.length();
+        archiveLastModified = archive.lastModified();
+
+        File file = getFile(archive);
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            mapper.writeValue(temporary, this);
+            Files.move(temporary.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Returns the number of events of the entries whose hour is in the range.
+     *
+     * @param start nullable
+     * @param end nullable
+     */
+    public long countEvents(LocalDateTime start, LocalDateTime end)
+    {
+        return entries.stream()
+                .filter(entry -> isInRange(entry.name, start, end))
+                .mapToLong(entry -> entry.events)
+                .sum();
+    }
+
+    public static class Entry
+    {
+        public String name;
+        // ISO-8601 UTC hour, null if the name of the entry doesn't have it
+        public String hour;
+        public long events;
+        public long compressedSize;
+
+        public Entry()
+        {
+        }
+
+        public Entry(String name, String hour, long events, long compressedSize)
+        {
+            this.name = name;
+            this.hour = hour;
+            this.events = events;
+            this.compressedSize = compressedSize;
+        }
+    }
+}
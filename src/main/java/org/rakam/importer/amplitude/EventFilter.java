@@ -0,0 +1,166 @@
+package org.rakam.importer.amplitude;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.rakam.importer.Event;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import static org.rakam.importer.TypeCoercion.parseTimestamp;
+import static org.rakam.importer.TypeCoercion.toEpochMillis;
+
+/**
+ * Selects the lines of the Amplitude export that are imported before they are mapped to {@link AmplitudeEvent}s.
+ * <p>
+ * If only a few event types are included, the lines that don't contain any of them as a JSON string are rejected
+ * without being parsed. Otherwise the top level fields are scanned with a streaming parser that skips the nested objects
+ * and stops as soon as {@code event_type} and {@code event_time} are read, so a rejected line costs a fraction of a full decode.
+ * Lines that can't be scanned are accepted, the full decode quarantines them.
+ */
+public class EventFilter
+{
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final Set<String> includeEvents;
+    private final Set<String> excludeEvents;
+    private final Set<String> dropProperties;
+    private final long startMillis;
+    private final long endMillis;
+    private final boolean needsType;
+    private final boolean needsTime;
+    private final String[] includeTokens;
+
+    /**
+     * @param includeEvents the event types that are imported, nullable
+     * @param excludeEvents the event types that are not imported, nullable
+     * @param dropProperties the properties that are removed from the events, nullable
+     * @param startMillis the events before this time are dropped, inclusive
+     * @param endMillis the events at or after this time are dropped
+     */
+    public EventFilter(Set<String> includeEvents, Set<String> excludeEvents, Set<String> dropProperties, long startMillis, long endMillis)
+    {
+        this.includeEvents = includeEvents;
+        this.excludeEvents = excludeEvents;
+        this.dropProperties = dropProperties;
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.needsType = includeEvents != null || excludeEvents != null;
+        this.needsTime = startMillis != Long.MIN_VALUE || endMillis != Long.MAX_VALUE;
+        this.includeTokens = includeEvents != null ? getRawTokens(includeEvents) : null;
+    }
+
+    // the event types are looked up in the raw line only if they can't be escaped differently in the export
+    private static String[] getRawTokens(Set<String> eventTypes)
+    {
+        String[] tokens = new String[eventTypes.size()];
+        int i = 0;
+        for (String eventType : eventTypes) {
+            for (int j = 0; j < eventType.length(); j++) {
+                char c = eventType.charAt(j);
+                if (c < 0x20 || c > 0x7e || c == '"' || c == '\\' || c == '/') {
+                    return null;
+                }
+            }
+            tokens[i++] = '"' + eventType + '"';
+        }
+        return tokens;
+    }
+
+    public boolean accept(String line)
+    {
+        if (includeTokens != null && !containsAny(line, includeTokens)) {
+            return false;
+        }
+        if (!needsType && !needsTime) {
+            return true;
+        }
+
+        String eventType = null;
+        String amplitudeEventType = null;
+        long time = 0;
+        boolean hasTime = false;
+        try (JsonParser parser = FACTORY.createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return true;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (needsType && token == JsonToken.VALUE_STRING && name.equals("event_type")) {
+                    eventType = parser.getText();
+                }
+                else if (needsType && token == JsonToken.VALUE_STRING && name.equals("amplitude_event_type")) {
+                    amplitudeEventType = parser.getText();
+                }
+                else if (needsTime && name.equals("event_time")) {
+                    if (token == JsonToken.VALUE_NUMBER_INT) {
+                        time = toEpochMillis(parser.getLongValue());
+                        hasTime = true;
+                    }
+                    else if (token == JsonToken.VALUE_STRING && parser.getTextLength() > 0) {
+                        time = parseTimestamp(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                        hasTime = true;
+                    }
+                }
+                else {
+                    parser.skipChildren();
+                }
+
+                if ((!needsType || eventType != null) && (!needsTime || hasTime)) {
+                    break;
+                }
+            }
+        }
+        catch (IOException | IllegalArgumentException e) {
+            return true;
+        }
+
+        return accept(eventType != null ? eventType : amplitudeEventType, hasTime, time);
+    }
+
+    /**
+     * Selects an event that is already mapped, e.g. an event of a converted archive.
+     */
+    public boolean accept(Event event)
+    {
+        Object time = event.properties.get("_time");
+        return accept(event.collection, time instanceof Long, time instanceof Long ? (Long) time : 0);
+    }
+
+    private boolean accept(String type, boolean hasTime, long time)
+    {
+        if (needsType) {
+            if (includeEvents != null && (type == null || !includeEvents.contains(type))) {
+                return false;
+            }
+            if (excludeEvents != null && type != null && excludeEvents.contains(type)) {
+                return false;
+            }
+        }
+
+        return !hasTime || (time >= startMillis && time < endMillis);
+    }
+
+    public void dropProperties(Map<String, Object> record)
+    {
+        if (dropProperties != null) {
+            for (String property : dropProperties) {
+                record.remove(property);
+            }
+        }
+    }
+
+    private static boolean containsAny(String line, String[] tokens)
+    {
+        for (String token : tokens) {
+            if (line.contains(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
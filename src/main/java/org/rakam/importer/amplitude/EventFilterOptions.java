@@ -0,0 +1,49 @@
+package org.rakam.importer.amplitude;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import io.airlift.airline.Option;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Set;
+
+public class EventFilterOptions
+{
+    @Option(name = "--include-events", description = "Comma separated event types that are imported, the others are dropped")
+    public String includeEvents;
+
+    @Option(name = "--exclude-events", description = "Comma separated event types that are not imported")
+    public String excludeEvents;
+
+    @Option(name = "--drop-properties", description = "Comma separated properties that are removed from the events, e.g. _city,$referrer")
+    public String dropProperties;
+
+    @Option(name = "--exact-window", description = "Drop the events whose time is not between --start and --end, the exported windows may be wider")
+    public boolean exactWindow;
+
+    /**
+     * @param start the start of the import window, inclusive. Nullable.
+     * @param end the end of the import window, exclusive. Nullable.
+     * @return null if all events are imported as they are
+     */
+    public EventFilter createFilter(LocalDateTime start, LocalDateTime end)
+    {
+        boolean filterWindow = exactWindow && (start != null || end != null);
+        if (includeEvents == null && excludeEvents == null && dropProperties == null && !filterWindow) {
+            return null;
+        }
+
+        return new EventFilter(split(includeEvents), split(excludeEvents), split(dropProperties),
+                filterWindow && start != null ? start.toInstant(ZoneOffset.UTC).toEpochMilli() : Long.MIN_VALUE,
+                filterWindow && end != null ? end.toInstant(ZoneOffset.UTC).toEpochMilli() : Long.MAX_VALUE);
+    }
+
+    private static Set<String> split(String value)
+    {
+        if (value == null) {
+            return null;
+        }
+        return ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(value));
+    }
+}
@@ -0,0 +1,284 @@
+package org.rakam.importer.amplitude;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+import io.rakam.client.model.User;
+import org.rakam.importer.SortedRuns;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the latest {@code user_properties} of every user of the imported Amplitude events, the properties of the event with the
+ * latest {@code event_time} win. The properties are kept encoded, when their estimated size exceeds {@code maxMemoryBytes}
+ * the map is swapped with an empty one and its users are written to a spill file sorted by the user id without holding the lock.
+ * {@link #emit(Consumer)} merges the spill files with the users in memory, so each user is written once.
+ */
+public class UserPropertiesAggregator
+        implements Closeable
+{
+    private final static Logger LOGGER = Logger.get(UserPropertiesAggregator.class);
+    private final static ObjectMapper mapper = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> PROPERTIES_TYPE = new TypeReference<Map<String, Object>>() {};
+
+    // rough size of the map entry, the key and the snapshot objects
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final SortedRuns<Snapshot> spills;
+    private final long maxMemoryBytes;
+    private final int batchSize;
+
+    // guarded by this
+    private Map<String, Snapshot> users = new HashMap<>();
+    private long memoryBytes;
+    private boolean spilling;
+    private Throwable failure;
+
+    public UserPropertiesAggregator(File spillDirectory, long maxMemoryBytes, int batchSize)
+    {
+        this.spills = new SortedRuns<>(spillDirectory, "users-", ".spill", Comparator.comparing(snapshot -> snapshot.userId), new SnapshotCodec());
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.batchSize = batchSize;
+    }
+
+    public void add(String userId, Long eventTime, Map<String, Object> properties)
+    {
+        if (userId == null || properties == null || properties.isEmpty()) {
+            return;
+        }
+
+        long time = eventTime == null ? Long.MIN_VALUE : eventTime;
+        synchronized (this) {
+            Snapshot existing = users.get(userId);
+            if (existing != null && existing.time > time) {
+                return;
+            }
+        }
+
+        byte[] encoded;
+        try {
+            encoded = mapper.writeValueAsBytes(properties);
+        }
+        catch (JsonProcessingException e) {
+            throw Throwables.propagate(e);
+        }
+
+        Map<String, Snapshot> spilled;
+        File spill;
+        synchronized (this) {
+            checkFailure();
+            Snapshot existing = users.get(userId);
+            if (existing != null) {
+                // another thread may have stored a later snapshot while the properties were being encoded
+                if (existing.time > time) {
+                    return;
+                }
+                memoryBytes -= existing.properties.length;
+            }
+            else {
+                memoryBytes += ENTRY_OVERHEAD + userId.length() * 2;
+            }
+            users.put(userId, new Snapshot(userId, time, encoded));
+            memoryBytes += encoded.length;
+            if (memoryBytes <= maxMemoryBytes) {
+                return;
+            }
+
+            // only one map is spilled at a time so that the memory stays bounded if the disk is slower than the import threads
+            waitForSpill();
+            spilled = users;
+            users = new HashMap<>();
+            memoryBytes = 0;
+            spilling = true;
+            spill = spills.reserve();
+        }
+
+        try {
+            spills.write(spill, new ArrayList<>(spilled.values()));
+            LOGGER.info("Spilled the properties of %d users", spilled.size());
+        }
+        catch (Throwable e) {
+            synchronized (this) {
+                failure = e;
+            }
+            throw e;
+        }
+        finally {
+            synchronized (this) {
+                spilling = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the latest properties of every user to the consumer in batches and clears the aggregator.
+     *
+     * @return the number of users
+     */
+    public synchronized long emit(Consumer<List<User>> consumer)
+    {
+        waitForSpill();
+        Merger merger = new Merger(consumer);
+        try {
+            checkFailure();
+            spills.merge(new ArrayList<>(users.values()), merger);
+            return merger.finish();
+        }
+        finally {
+            clear();
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        waitForSpill();
+        clear();
+        spills.close();
+    }
+
+    // guarded by this
+    private void waitForSpill()
+    {
+        try {
+            while (spilling) {
+                wait();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+    }
+
+    // guarded by this
+    private void checkFailure()
+    {
+        if (failure != null) {
+            throw new RuntimeException("Unable to spill the user properties", failure);
+        }
+    }
+
+    // guarded by this
+    private void clear()
+    {
+        users = new HashMap<>();
+        memoryBytes = 0;
+        failure = null;
+        spills.clear();
+    }
+
+    private static class Snapshot
+    {
+        private final String userId;
+        private final long time;
+        private final byte[] properties;
+
+        public Snapshot(String userId, long time, byte[] properties)
+        {
+            this.userId = userId;
+            this.time = time;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * Writes the latest properties of the users in batches, the snapshots of a user are consecutive since they are sorted by the user id.
+     */
+    private class Merger
+            implements Consumer<Snapshot>
+    {
+        private final Consumer<List<User>> consumer;
+        private List<User> batch = new ArrayList<>(batchSize);
+        private Snapshot current;
+        private long count;
+
+        public Merger(Consumer<List<User>> consumer)
+        {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void accept(Snapshot snapshot)
+        {
+            if (current != null && current.userId.equals(snapshot.userId)) {
+                // the same user may be in several spill files
+                if (snapshot.time >= current.time) {
+                    current = snapshot;
+                }
+                return;
+            }
+            emitCurrent();
+            current = snapshot;
+        }
+
+        public long finish()
+        {
+            emitCurrent();
+            if (!batch.isEmpty()) {
+                consumer.accept(batch);
+            }
+            return count;
+        }
+
+        private void emitCurrent()
+        {
+            if (current == null) {
+                return;
+            }
+
+            User user = new User();
+            user.setId(current.userId);
+            try {
+                user.setProperties(mapper.readValue(current.properties, PROPERTIES_TYPE));
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+            batch.add(user);
+            count++;
+            if (batch.size() == batchSize) {
+                consumer.accept(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+    }
+
+    private static class SnapshotCodec
+            implements SortedRuns.Codec<Snapshot>
+    {
+        @Override
+        public void write(DataOutputStream output, Snapshot snapshot)
+                throws IOException
+        {
+            output.writeUTF(snapshot.userId);
+            output.writeLong(snapshot.time);
+            output.writeInt(snapshot.properties.length);
+            output.write(snapshot.properties);
+        }
+
+        @Override
+        public Snapshot read(DataInputStream input)
+                throws IOException
+        {
+            String userId = input.readUTF();
+            long time = input.readLong();
+            byte[] properties = new byte[input.readInt()];
+            input.readFully(properties);
+            return new Snapshot(userId, time, properties);
+        }
+    }
+}
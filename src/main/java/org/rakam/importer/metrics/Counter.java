@@ -0,0 +1,63 @@
+package org.rakam.importer.metrics;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter, the updates are striped across cells so that the hot loops of different threads don't contend.
+ */
+public class Counter
+        implements Metric
+{
+    private final String name;
+    private final String help;
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name, String help)
+    {
+        this.name = name;
+        this.help = help;
+    }
+
+    public void increment()
+    {
+        value.increment();
+    }
+
+    public void add(long delta)
+    {
+        value.add(delta);
+    }
+
+    public long get()
+    {
+        return value.sum();
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public String getHelp()
+    {
+        return help;
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder builder)
+    {
+        builder.append("# TYPE ").append(name).append(" counter\n");
+        builder.append(name).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    public Map<String, Object> getAttributes()
+    {
+        return ImmutableMap.of(name, get());
+    }
+}
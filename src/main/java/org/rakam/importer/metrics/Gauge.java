@@ -0,0 +1,56 @@
+package org.rakam.importer.metrics;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+public class Gauge
+        implements Metric
+{
+    private final String name;
+    private final String help;
+    private volatile LongSupplier supplier;
+
+    Gauge(String name, String help, LongSupplier supplier)
+    {
+        this.name = name;
+        this.help = help;
+        this.supplier = supplier;
+    }
+
+    void setSupplier(LongSupplier supplier)
+    {
+        this.supplier = supplier;
+    }
+
+    public long get()
+    {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public String getHelp()
+    {
+        return help;
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder builder)
+    {
+        builder.append("# TYPE ").append(name).append(" gauge\n");
+        builder.append(name).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    public Map<String, Object> getAttributes()
+    {
+        return ImmutableMap.of(name, get());
+    }
+}
@@ -0,0 +1,89 @@
+package org.rakam.importer.metrics;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with fixed exponential buckets from 1ms to ~65s, reported in seconds.
+ */
+public class Histogram
+        implements Metric
+{
+    private static final long[] BOUNDS_NANOS = new long[17];
+
+    static {
+        for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+            BOUNDS_NANOS[i] = 1_000_000L << i;
+        }
+    }
+
+    private final String name;
+    private final String help;
+    // the last bucket is +Inf
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram(String name, String help)
+    {
+        this.name = name;
+        this.help = help;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void observe(long nanos)
+    {
+        int bucket = 0;
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sumNanos.add(nanos);
+    }
+
+    public long getCount()
+    {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public String getHelp()
+    {
+        return help;
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder builder)
+    {
+        builder.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            String bound = i < BOUNDS_NANOS.length ? Double.toString(BOUNDS_NANOS[i] / 1e9) : "+Inf";
+            builder.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        builder.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+        builder.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    @Override
+    public Map<String, Object> getAttributes()
+    {
+        long count = getCount();
+        double sum = sumNanos.sum() / 1e9;
+        return ImmutableMap.of(name + "_count", count, name + "_sum", sum, name + "_mean", count == 0 ? 0.0 : sum / count);
+    }
+}
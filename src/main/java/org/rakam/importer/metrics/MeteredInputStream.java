@@ -0,0 +1,51 @@
+package org.rakam.importer.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes that are read from the stream.
+ */
+public class MeteredInputStream
+        extends FilterInputStream
+{
+    private final Counter counter;
+
+    public MeteredInputStream(InputStream in, Counter counter)
+    {
+        super(in);
+        this.counter = counter;
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        int value = super.read();
+        if (value != -1) {
+            counter.increment();
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+            throws IOException
+    {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+            counter.add(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n)
+            throws IOException
+    {
+        long skipped = super.skip(n);
+        counter.add(skipped);
+        return skipped;
+    }
+}
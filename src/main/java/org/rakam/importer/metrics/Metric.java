@@ -0,0 +1,17 @@
+package org.rakam.importer.metrics;
+
+import java.util.Map;
+
+public interface Metric
+{
+    String getName();
+
+    String getHelp();
+
+    void writePrometheus(StringBuilder builder);
+
+    /**
+     * The values that are exposed as the attributes of the JMX bean.
+     */
+    Map<String, Object> getAttributes();
+}
@@ -0,0 +1,118 @@
+package org.rakam.importer.metrics;
+
+import com.google.common.base.Throwables;
+import com.sun.net.httpserver.HttpServer;
+import io.airlift.log.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Process wide registry of the metrics of the import stages. The metrics are created once and kept in static fields
+ * of the classes that update them, the registry is exposed as a single JMX bean and optionally in Prometheus text format over HTTP.
+ */
+public final class Metrics
+{
+    private final static Logger LOGGER = Logger.get(Metrics.class);
+    private static final String OBJECT_NAME = "org.rakam.importer:type=Metrics";
+
+    private static final ConcurrentSkipListMap<String, Metric> METRICS = new ConcurrentSkipListMap<>();
+
+    static {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new MetricsMBean(METRICS), new ObjectName(OBJECT_NAME));
+        }
+        catch (JMException e) {
+            LOGGER.warn(e, "Unable to register the metrics bean");
+        }
+    }
+
+    private Metrics()
+    {
+    }
+
+    public static Counter counter(String name, String help)
+    {
+        return (Counter) METRICS.computeIfAbsent(name, key -> new Counter(name, help));
+    }
+
+    public static Histogram histogram(String name, String help)
+    {
+        return (Histogram) METRICS.computeIfAbsent(name, key -> new Histogram(name, help));
+    }
+
+    /**
+     * Registers a gauge that is read when the metrics are collected, registering the same name again replaces the supplier.
+     */
+    public static Gauge gauge(String name, String help, LongSupplier supplier)
+    {
+        Gauge gauge = (Gauge) METRICS.computeIfAbsent(name, key -> new Gauge(name, help, supplier));
+        gauge.setSupplier(supplier);
+        return gauge;
+    }
+
+    public static Collection<Metric> getMetrics()
+    {
+        return METRICS.values();
+    }
+
+    public static String toPrometheusText()
+    {
+        StringBuilder builder = new StringBuilder(4096);
+        for (Metric metric : METRICS.values()) {
+            builder.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+            metric.writePrometheus(builder);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Serves the metrics at {@code /metrics} in the Prometheus text format. The dispatcher thread of the server is a daemon thread,
+     * so the server doesn't keep the JVM alive after the command finishes.
+     */
+    public static HttpServer startHttpServer(String host, int port)
+    {
+        HttpServer server;
+        try {
+            server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheusText().getBytes(UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        // the dispatcher thread inherits the daemon status of the thread that starts the server
+        Thread starter = new Thread(server::start, "metrics-server-starter");
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            server.stop(0);
+            throw Throwables.propagate(e);
+        }
+        LOGGER.info("Serving metrics at http://%s:%d/metrics", host, server.getAddress().getPort());
+        return server;
+    }
+}
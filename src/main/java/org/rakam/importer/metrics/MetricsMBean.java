@@ -0,0 +1,86 @@
+package org.rakam.importer.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes each metric as a read-only attribute, the attributes are listed when the bean info is requested
+ * so the metrics that are registered later are also visible.
+ */
+class MetricsMBean
+        implements DynamicMBean
+{
+    private final Map<String, Metric> metrics;
+
+    MetricsMBean(Map<String, Metric> metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Object getAttribute(String attribute)
+            throws AttributeNotFoundException
+    {
+        for (Metric metric : metrics.values()) {
+            Object value = metric.getAttributes().get(attribute);
+            if (value != null) {
+                return value;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+    {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes)
+    {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            }
+            catch (AttributeNotFoundException e) {
+                // skip unknown attributes as the contract requires
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+    {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo()
+    {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Metric metric : metrics.values()) {
+            metric.getAttributes().forEach((name, value) ->
+                    attributes.add(new MBeanAttributeInfo(name, value.getClass().getName(), metric.getHelp(), true, false, false)));
+        }
+        return new MBeanInfo(getClass().getName(), "Rakam importer metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,22 @@
+package org.rakam.importer.metrics;
+
+import io.airlift.airline.Option;
+
+public class MetricsOptions
+{
+    @Option(name = "--metrics.port", description = "Port of the HTTP endpoint that serves the metrics in Prometheus text format, disabled by default")
+    public Integer port;
+
+    @Option(name = "--metrics.host", description = "Address that the metrics endpoint binds to")
+    public String host = "127.0.0.1";
+
+    /**
+     * Starts the metrics endpoint if it's enabled, the metrics are always available over JMX.
+     */
+    public void start()
+    {
+        if (port != null) {
+            Metrics.startHttpServer(host, port);
+        }
+    }
+}
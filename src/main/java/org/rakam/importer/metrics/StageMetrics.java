@@ -0,0 +1,41 @@
+package org.rakam.importer.metrics;
+
+/**
+ * The metrics that are shared by the importers of the different services.
+ * The rates such as downloaded bytes per second are derived from the counters by the monitoring system.
+ */
+public final class StageMetrics
+{
+    public static final Counter DOWNLOADED_BYTES = Metrics.counter("importer_downloaded_bytes_total",
+            "Bytes downloaded from the export APIs of the source services");
+    public static final Counter DOWNLOAD_RETRIES = Metrics.counter("importer_download_retries_total",
+            "Export downloads that are retried after an error");
+    public static final Counter INFLATED_BYTES = Metrics.counter("importer_inflated_bytes_total",
+            "Bytes decompressed from the downloaded archives");
+    public static final Counter CACHE_READ_BYTES = Metrics.counter("importer_cache_read_bytes_total",
+            "Bytes read from the converted archives");
+    public static final Counter LINES_PARSED = Metrics.counter("importer_lines_parsed_total",
+            "Lines read from the exports");
+    public static final Counter PARSE_ERRORS = Metrics.counter("importer_parse_errors_total",
+            "Lines that are skipped because they are not valid JSON");
+    public static final Counter DROPPED_ATTRIBUTION_EVENTS = Metrics.counter("importer_dropped_attribution_events_total",
+            "Amplitude attribution events that are not imported");
+    public static final Counter DROPPED_DUPLICATE_EVENTS = Metrics.counter("importer_dropped_duplicate_events_total",
+            "Events that are not imported because their id is already imported");
+    public static final Counter DROPPED_FILTERED_EVENTS = Metrics.counter("importer_dropped_filtered_events_total",
+            "Events that are not imported because of their type or time");
+    public static final Counter DROPPED_BLACKLISTED_PROPERTIES = Metrics.counter("importer_dropped_blacklisted_properties_total",
+            "Blacklisted properties that are removed from the events");
+    public static final Counter DROPPED_UNCHANGED_USERS = Metrics.counter("importer_dropped_unchanged_users_total",
+            "Users that are not sent because their properties didn't change since they were sent");
+    public static final Histogram BATCH_ENCODE_TIME = Metrics.histogram("importer_batch_encode_seconds",
+            "Time spent serializing a batch for the sink");
+    public static final Histogram RAKAM_REQUEST_TIME = Metrics.histogram("importer_rakam_request_seconds",
+            "Latency of the requests that are sent to Rakam");
+    public static final Counter RAKAM_RETRIES = Metrics.counter("importer_rakam_retries_total",
+            "Requests to Rakam that are retried after an error");
+
+    private StageMetrics()
+    {
+    }
+}
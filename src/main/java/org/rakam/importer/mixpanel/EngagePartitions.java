@@ -0,0 +1,147 @@
+package org.rakam.importer.mixpanel;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Splits the people export into engage queries by the {@code $last_seen} of the people, each query has its own session so
+ * the partitions are paged concurrently. The ranges are split into days of equal length, the first partition also has the people
+ * that are seen before the range or never seen when there is no last seen filter, and the last one is open-ended.
+ * <p>
+ * The partitions and the ones that are finished are kept in {@code <source>.partitions} under the state directory, so a rerun with
+ * the same last seen filter skips the finished partitions. The file is removed once all the partitions are finished.
+ */
+public class EngagePartitions
+{
+    private final static Logger LOGGER = Logger.get(EngagePartitions.class);
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    private static final String LAST_SEEN = "properties[\"$last_seen\"]";
+
+    // ISO-8601 date of the last seen filter, null if all the people are exported
+    public String lastSeen;
+    public List<String> selectors = new ArrayList<>();
+    public List<String> completed = new ArrayList<>();
+
+    private File file;
+
+    /**
+     * Returns the partitions of the last run if it's not finished yet and it has the same last seen filter,
+     * otherwise a new set of partitions between {@code since} and today.
+     *
+     * @param lastSeen nullable, the people that are seen before it are not exported
+     * @param since the start of the ranges if there is no last seen filter
+     */
+    public static EngagePartitions load(File directory, String source, LocalDate lastSeen, LocalDate since, int partitions)
+    {
+        File file = new File(directory, source.replaceAll("[^a-zA-Z0-9_.-]", "_") + ".partitions");
+        String lastSeenValue = lastSeen == null ? null : lastSeen.toString();
+        if (file.exists()) {
+            try {
+                EngagePartitions existing = mapper.readValue(file, EngagePartitions.class);
+                if (Objects.equals(existing.lastSeen, lastSeenValue)) {
+                    existing.file = file;
+                    LOGGER.info("Resuming the people export of %s, %d of %d partitions are already finished",
+                            source, existing.completed.size(), existing.selectors.size());
+                    return existing;
+                }
+            }
+            catch (IOException e) {
+                LOGGER.warn("Ignoring the unreadable partitions of %s: %s", source, e.getMessage());
+            }
+        }
+
+        EngagePartitions created = new EngagePartitions();
+        created.lastSeen = lastSeenValue;
+        created.selectors = createSelectors(lastSeen == null ? since : lastSeen, LocalDate.now(ZoneOffset.UTC).plusDays(1), partitions, lastSeen == null);
+        created.file = file;
+        directory.mkdirs();
+        created.write();
+        return created;
+    }
+
+    /**
+     * Returns the selectors of the ranges between {@code start} and {@code end}, the last range is open-ended.
+     * An empty selector matches all the people.
+     *
+     * @param unseen whether the first range also has the people that are seen before {@code start} or never seen
+     */
+    public static List<String> createSelectors(LocalDate start, LocalDate end, int partitions, boolean unseen)
+    {
+        long days = Math.max(1, ChronoUnit.DAYS.between(start, end));
+        int count = (int) Math.min(partitions, days);
+
+        List<String> selectors = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            LocalDate lower = i == 0 && unseen ? null : start.plusDays(days * i / count);
+            LocalDate upper = i == count - 1 ? null : start.plusDays(days * (i + 1) / count);
+            selectors.add(createSelector(lower, upper, i == 0 && unseen));
+        }
+        return selectors;
+    }
+
+    private static String createSelector(LocalDate lower, LocalDate upper, boolean unseen)
+    {
+        List<String> conditions = new ArrayList<>(2);
+        if (lower != null) {
+            conditions.add(String.format("%s >= datetime(%d)", LAST_SEEN, lower.atStartOfDay().toEpochSecond(ZoneOffset.UTC)));
+        }
+        if (upper != null) {
+            conditions.add(String.format("%s < datetime(%d)", LAST_SEEN, upper.atStartOfDay().toEpochSecond(ZoneOffset.UTC)));
+        }
+        String range = conditions.stream().collect(Collectors.joining(" and "));
+        if (unseen && !range.isEmpty()) {
+            return String.format("not defined(%s) or (%s)", LAST_SEEN, range);
+        }
+        return range;
+    }
+
+    @JsonIgnore
+    public synchronized List<String> getPending()
+    {
+        return selectors.stream().filter(selector -> !completed.contains(selector)).collect(Collectors.toList());
+    }
+
+    /**
+     * Records the partition as finished, it's skipped if the export is run again before all the partitions are finished.
+     */
+    public synchronized void complete(String selector)
+    {
+        completed.add(selector);
+        if (completed.size() == selectors.size()) {
+            file.delete();
+        }
+        else {
+            write();
+        }
+    }
+
+    // guarded by this
+    private void write()
+    {
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            mapper.writeValue(temporary, this);
+            Files.move(temporary.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+}
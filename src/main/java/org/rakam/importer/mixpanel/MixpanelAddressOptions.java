@@ -0,0 +1,22 @@
+package org.rakam.importer.mixpanel;
+
+import io.airlift.airline.Option;
+
+public class MixpanelAddressOptions
+{
+    @Option(name = "--mixpanel.address", description = "Mixpanel API url, can be changed for testing against a local server")
+    public String address = MixpanelImporter.DEFAULT_ADDRESS;
+
+    @Option(name = "--mixpanel.data-address", description = "Mixpanel raw export API url")
+    public String dataAddress = MixpanelImporter.DEFAULT_DATA_ADDRESS;
+
+    public MixpanelImporter createImporter(String apiKey, String apiSecret)
+    {
+        return new MixpanelImporter(withTrailingSlash(address), withTrailingSlash(dataAddress), apiKey, apiSecret);
+    }
+
+    private static String withTrailingSlash(String address)
+    {
+        return address.endsWith("/") ? address : address + "/";
+    }
+}
@@ -5,6 +5,8 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import io.airlift.airline.Command;
 import io.airlift.airline.Option;
 
+import javax.inject.Inject;
+
 @Command(name = "explain-events", description = "Mixpanel importer")
 public class MixpanelEventExplainer implements Runnable {
     private final static ObjectMapper mapper = new ObjectMapper();
@@ -18,9 +20,12 @@ public class MixpanelEventExplainer implements Runnable {
     @Option(name="--mixpanel.api-secret", description = "Api secret", required = true)
     public String apiSecret;
 
+    @Inject
+    public MixpanelAddressOptions addressOptions = new MixpanelAddressOptions();
+
     @Override
     public void run() {
-        MixpanelImporter mixpanel = new MixpanelImporter(apiKey, apiSecret);
+        MixpanelImporter mixpanel = addressOptions.createImporter(apiKey, apiSecret);
         try {
             System.out.println(mapper.writeValueAsString(mixpanel.mapEventFields()));
         } catch (java.io.IOException e) {
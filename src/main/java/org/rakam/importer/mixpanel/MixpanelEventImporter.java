@@ -3,13 +3,33 @@ package org.rakam.importer.mixpanel;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.airlift.airline.Arguments;
 import io.airlift.airline.Command;
 import io.airlift.airline.Option;
 import io.airlift.log.Logger;
-
-import javax.xml.bind.DatatypeConverter;
+import io.rakam.client.model.SchemaField;
+import okhttp3.OkHttpClient;
+import org.rakam.importer.DeduplicationOptions;
+import org.rakam.importer.EventBatcher;
+import org.rakam.importer.EventIdSet;
+import org.rakam.importer.HttpClients;
+import org.rakam.importer.IoExecutorOptions;
+import org.rakam.importer.Quarantine;
+import org.rakam.importer.QuarantineOptions;
+import org.rakam.importer.SharedTaskQueue;
+import org.rakam.importer.SyncScheduler;
+import org.rakam.importer.WatermarkStore;
+import org.rakam.importer.WorkerOptions;
+import org.rakam.importer.metrics.MetricsOptions;
+import org.rakam.importer.sink.RakamSink;
+import org.rakam.importer.sink.Sink;
+import org.rakam.importer.sink.SinkOptions;
+
+import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -21,13 +41,26 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.Period;
+import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static com.google.common.io.ByteStreams.toByteArray;
@@ -46,10 +79,16 @@ public class MixpanelEventImporter implements Runnable {
     @Option(name="--mixpanel.api-secret", description = "Api secret", required = true)
     public String apiSecret;
 
-    @Option(name="--rakam.project.write-key", description = "Project", required = true)
+    @Inject
+    public MixpanelAddressOptions addressOptions = new MixpanelAddressOptions();
+
+    @Option(name="--rakam.project.write-key", description = "Project")
     public String rakamWriteKey;
 
-    @Option(name="--rakam.address", description = "Rakam cluster url", required = true)
+    @Option(name="--rakam.project.master-key", description = "Master key of the project, the schemas of the collections are registered before the import if it's set")
+    public String rakamMasterKey;
+
+    @Option(name="--rakam.address", description = "Rakam cluster url")
     public String rakamAddress;
 
     @Option(name="--start", description = "Mixpanel event start date")
@@ -70,9 +109,43 @@ public class MixpanelEventImporter implements Runnable {
     @Option(name="--mixpanel.project.timezone", description = "Mixpanel project utc.")
     public Integer projectTimezone;
 
+    @Option(name="--rakam-batch-size", description = "Maximum number of events in a Rakam request")
+    public int rakamBatchSize = 10000;
+
+    @Option(name="--rakam-batch-bytes", description = "Size of the Mixpanel records in a Rakam request after which the request is sent")
+    public long rakamBatchBytes = 1024 * 1024;
+
+    @Option(name="--rakam.senders", description = "Number of threads that send the event batches while the exports are being parsed")
+    public int senderThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name="--sync.interval", description = "Keep importing new days periodically (ISO-8601 duration)")
+    public String syncInterval;
+
+    @Option(name="--state.directory", description = "Directory that keeps the sync watermarks")
+    public String stateDirectory = "./state";
+
+    @Inject
+    public SinkOptions sinkOptions = new SinkOptions();
+
+    @Inject
+    public MetricsOptions metricsOptions = new MetricsOptions();
+
+    @Inject
+    public DeduplicationOptions deduplicationOptions = new DeduplicationOptions();
+
+    @Inject
+    public QuarantineOptions quarantineOptions = new QuarantineOptions();
+
+    @Inject
+    public WorkerOptions workerOptions = new WorkerOptions();
+
+    @Inject
+    public IoExecutorOptions ioOptions = new IoExecutorOptions();
+
     @Override
     public void run() {
-        MixpanelImporter mixpanelImporter = new MixpanelImporter(apiKey, apiSecret);
+        metricsOptions.start();
+        MixpanelImporter mixpanelImporter = addressOptions.createImporter(apiKey, apiSecret);
 
         if(schemaFile != null) {
             if(schema != null) {
@@ -138,61 +211,164 @@ public class MixpanelEventImporter implements Runnable {
             projectTimezone *= 60 * 60;
         }
 
-        final LocalDate finalStart = start;
-        final LocalDate finalEnd = end;
-        if(fields != null) {
-            fields.entrySet().parallelStream().filter(c -> collections == null || !collections.contains(c.getKey())).forEach(entry -> {
-                try {
-                    mixpanelImporter.importEventsFromMixpanel(entry.getKey(), entry.getValue().rakamCollection, entry.getValue().mapping, finalStart, finalEnd, projectTimezone,
-                            (events) -> {
-//                                EventContext context = new EventContext();
-//                                context.setApiKey(rakamWriteKey);
-//                                EventList eventList = new EventList();
-//                                eventList.setApi(context);
-//                                eventList.setEvents(events);
-                            });
-                } catch (Exception e) {
-                    LOGGER.error(e, "Unable to import collection "+entry.getKey());
+        OkHttpClient client = HttpClients.newBuilder()
+                .connectTimeout(30, TimeUnit.MINUTES)
+                .readTimeout(30, TimeUnit.MINUTES).build();
+        Map<String, Table> schemaTables = fields;
+        if(schemaTables == null && rakamMasterKey != null && "rakam".equals(sinkOptions.sink)) {
+            // the properties are imported as they are, their types are registered as explain-events maps them
+            try {
+                schemaTables = mixpanelImporter.mapEventFields();
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        Map<String, List<SchemaField>> schemas = schemaTables == null ? ImmutableMap.of() : schemaTables.values().stream()
+                .collect(Collectors.toMap(table -> table.rakamCollection, table -> ImmutableList.copyOf(table.mapping.values()), (first, second) -> first));
+        try (Sink sink = sinkOptions.createSink(() -> new RakamSink(client, rakamAddress, rakamWriteKey, "/event/batch"),
+                collection -> schemas.getOrDefault(collection, ImmutableList.of()), rakamMasterKey);
+                EventIdSet ids = deduplicationOptions.createIdSet();
+                Quarantine quarantine = quarantineOptions.createQuarantine()) {
+            ExecutorService senders = Executors.newFixedThreadPool(senderThreads, new ThreadFactoryBuilder().setNameFormat("rakam-sender-%d").setDaemon(true).build());
+            // the exports mostly wait for Mixpanel, so they run on the I/O executor in batch runs too
+            ExecutorService exports = ioOptions.createExecutor("mixpanel-export");
+            try {
+                // each export fills one batch while the previous one is being sent
+                run(mixpanelImporter, exports, sink, () -> new EventBatcher(sink::writeEvents, senders, rakamBatchSize, rakamBatchBytes, 2),
+                        ids, quarantine, fields, start, end);
+            } finally {
+                senders.shutdownNow();
+                exports.shutdownNow();
+            }
+        }
+    }
+
+    private void run(MixpanelImporter mixpanelImporter, Executor exports, Sink sink, Supplier<EventBatcher> batchers, EventIdSet ids, Quarantine quarantine, Map<String, Table> fields, LocalDate start, LocalDate end) {
+        if(workerOptions.isEnabled()) {
+            work(mixpanelImporter, exports, sink, batchers, ids, quarantine, fields, start, end);
+            return;
+        }
+
+        if(syncInterval != null) {
+            WatermarkStore watermarks = new WatermarkStore(new File(stateDirectory));
+            String source = "mixpanel-events-" + apiKey;
+            if(watermarks.get(source) == null) {
+                watermarks.commit(source, start.atStartOfDay());
+            }
+
+            SyncScheduler.schedule(source, watermarks, Duration.parse(syncInterval), () -> {
+                LocalDate from = watermarks.get(source).toLocalDate();
+                // only the days that are complete in the timezone of the project, the export days are in that timezone
+                LocalDate until = LocalDate.now(ZoneOffset.ofTotalSeconds(projectTimezone)).minusDays(1);
+                if(from.isAfter(until)) {
+                    return;
+                }
+
+                importEvents(mixpanelImporter, exports, batchers, ids, quarantine, fields, from, until);
+                sink.flush();
+                if(ids != null) {
+                    ids.save();
                 }
+                watermarks.commit(source, until.plusDays(1).atStartOfDay());
             });
+            return;
+        }
+
+        importEvents(mixpanelImporter, exports, batchers, ids, quarantine, fields, start, end);
+        sink.flush();
+        if(ids != null) {
+            ids.save();
+        }
+        LOGGER.info("Done importing events, %d malformed records are quarantined.", quarantine.getCount());
+    }
+
+    /**
+     * Imports a day at a time with the other processes that share the worker directory.
+     */
+    private void work(MixpanelImporter mixpanelImporter, Executor exports, Sink sink, Supplier<EventBatcher> batchers, EventIdSet ids, Quarantine quarantine, Map<String, Table> fields, LocalDate start, LocalDate end) {
+        try (SharedTaskQueue queue = workerOptions.createQueue()) {
+            List<Map.Entry<LocalDateTime, LocalDateTime>> days = new ArrayList<>();
+            for (LocalDate day = start; !day.isAfter(end); day = day.plusDays(1)) {
+                days.add(new AbstractMap.SimpleImmutableEntry<>(day.atStartOfDay(), day.plusDays(1).atStartOfDay()));
+            }
+            queue.plan(days);
+
+            SharedTaskQueue.Task task;
+            while((task = queue.claim()) != null) {
+                LOGGER.info("Claimed task %s", task);
+                try {
+                    LocalDate day = task.getStart().toLocalDate();
+                    importEvents(mixpanelImporter, exports, batchers, ids, quarantine, fields, day, task.getEnd().toLocalDate().minusDays(1));
+                    sink.flush();
+                    if(ids != null) {
+                        ids.save();
+                    }
+                } catch (RuntimeException e) {
+                    // the day isn't marked as done, another worker imports it again
+                    LOGGER.error(e, "Unable to import task %s, releasing it", task);
+                    queue.release(task);
+                    throw e;
+                }
+                queue.complete(task);
+                LOGGER.info("Completed task %s, %d of %d tasks are completed.", task, queue.getCompletedTaskCount(), queue.getTaskCount());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Runs the export of each event type as a task of the executor, the exports mostly wait for Mixpanel.
+     * The other event types are still imported if one of them fails, the failure is thrown once all of them are finished.
+     */
+    private void importEvents(MixpanelImporter mixpanelImporter, Executor exports, Supplier<EventBatcher> batchers, EventIdSet ids, Quarantine quarantine, Map<String, Table> fields, LocalDate start, LocalDate end) {
+        Map<String, Table> tables;
+        if(fields != null) {
+            tables = fields;
         } else {
+            tables = new LinkedHashMap<>();
             try {
-                mixpanelImporter.getCollections().stream().filter(c -> collections == null || !collections.contains(c)).forEach(collection -> {
-                    try {
-                        mixpanelImporter.importEventsFromMixpanel(collection, convertRakamName(collection), null, finalStart, finalEnd, projectTimezone,
-                                (events) -> {
-//                                    EventContext context = new EventContext();
-//                                    context.setApiKey(rakamWriteKey);
-//
-//                                    EventList eventList = new EventList();
-//                                    eventList.setApi(context);
-//                                    eventList.setEvents(events);
-//
-//                                    try {
-//                                        eventApi.batchEvents(eventList);
-//                                    } catch (ApiException e) {
-//                                        LOGGER.error(e);
-//                                    }
-                                });
-                    } catch (Exception e) {
-                        LOGGER.error(e, "Unable to import collection "+collection);
-                    }
-                });
+                for (String collection : mixpanelImporter.getCollections()) {
+                    tables.put(collection, new Table(convertRakamName(collection), null));
+                }
             } catch (IOException e) {
-                e.printStackTrace();
+                throw Throwables.propagate(e);
+            }
+        }
+
+        List<Exception> failures = new CopyOnWriteArrayList<>();
+        CompletableFuture<?>[] imports = tables.entrySet().stream().filter(c -> collections == null || !collections.contains(c.getKey())).map(entry -> CompletableFuture.runAsync(() -> {
+            try {
+                mixpanelImporter.importEventsFromMixpanel(entry.getKey(), entry.getValue().rakamCollection, entry.getValue().mapping, start, end, projectTimezone, ids, quarantine,
+                        batchers.get());
+            } catch (Exception e) {
+                LOGGER.error(e, "Unable to import collection "+entry.getKey());
+                failures.add(e);
             }
+        }, exports)).toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(imports).join();
+
+        if(!failures.isEmpty()) {
+            RuntimeException exception = new RuntimeException(String.format("Unable to import %d of %d collections between %s and %s",
+                    failures.size(), imports.length, start, end));
+            failures.forEach(exception::addSuppressed);
+            throw exception;
         }
     }
 
-    public static byte[] generateRequestAndParse(String path, String apiKey, String secretKey, Map<String, String> build) {
+    public static byte[] generateRequestAndParse(String address, String path, String apiKey, String secretKey, Map<String, String> build) {
         try {
-            return toByteArray(generateRequest(path, apiKey, secretKey, build));
+            return toByteArray(generateRequest(address, path, apiKey, secretKey, build));
         } catch (IOException e) {
             throw Throwables.propagate(e);
         }
     }
 
-    public static InputStream generateRequest(String path, String apiKey, String secretKey, Map<String, String> build) {
+    /**
+     * @param address base url of the API, e.g. https://mixpanel.com/api/2.0/
+     */
+    public static InputStream generateRequest(String address, String path, String apiKey, String secretKey, Map<String, String> build) {
         build = ImmutableMap.<String, String>builder().putAll(build)
                 .put("expire", Long.toString(Instant.now().plus(2, ChronoUnit.HOURS).getEpochSecond()))
                 .put("api_key", apiKey)
@@ -205,7 +381,7 @@ public class MixpanelEventImporter implements Runnable {
         String signature;
         try {
             MessageDigest md = MessageDigest.getInstance("MD5");
-            signature = DatatypeConverter.printHexBinary(md.digest(collect.getBytes(Charset.forName("UTF-8"))));
+            signature = BaseEncoding.base16().encode(md.digest(collect.getBytes(Charset.forName("UTF-8"))));
         } catch (NoSuchAlgorithmException e) {
             throw Throwables.propagate(e);
         }
@@ -218,7 +394,7 @@ public class MixpanelEventImporter implements Runnable {
             }
         }).collect(Collectors.joining("&")) + "&sig=" + signature;
         try {
-            return new URL(String.format("https://%smixpanel.com/api/2.0/%s/?", path.equals("export") ? "data." : "", path) + encodedUrlString).openStream();
+            return new URL(address + path + "/?" + encodedUrlString).openStream();
         } catch (IOException e) {
             throw Throwables.propagate(e);
         }
@@ -2,15 +2,22 @@ package org.rakam.importer.mixpanel;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import io.airlift.log.Logger;
-import io.rakam.client.model.Event;
 import io.rakam.client.model.SchemaField;
 import io.rakam.client.model.User;
 import io.rakam.client.model.UserContext;
+import org.rakam.importer.Event;
+import org.rakam.importer.EventBatcher;
+import org.rakam.importer.EventIdSet;
+import org.rakam.importer.Quarantine;
+import org.rakam.importer.metrics.MeteredInputStream;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,6 +34,12 @@ import java.util.stream.Collectors;
 
 import static com.google.common.io.ByteStreams.toByteArray;
 import static java.time.format.DateTimeFormatter.ISO_DATE;
+import static org.rakam.importer.TypeCoercion.coerce;
+import static org.rakam.importer.metrics.StageMetrics.DOWNLOADED_BYTES;
+import static org.rakam.importer.metrics.StageMetrics.DROPPED_BLACKLISTED_PROPERTIES;
+import static org.rakam.importer.metrics.StageMetrics.DROPPED_DUPLICATE_EVENTS;
+import static org.rakam.importer.metrics.StageMetrics.LINES_PARSED;
+import static org.rakam.importer.metrics.StageMetrics.PARSE_ERRORS;
 import static org.rakam.importer.mixpanel.MixpanelEventImporter.*;
 
 public class MixpanelImporter
@@ -35,17 +48,44 @@ public class MixpanelImporter
 
     private final static List<String> BLACKLIST = ImmutableList.of("$lib_version");
 
+    private final static String INSERT_ID = "$insert_id";
+
     private final static Logger LOGGER = Logger.get(MixpanelImporter.class);
 
+    public static final String DEFAULT_ADDRESS = "https://mixpanel.com/api/2.0/";
+    public static final String DEFAULT_DATA_ADDRESS = "https://data.mixpanel.com/api/2.0/";
+
+    private final String address;
+    private final String dataAddress;
     private final String apiKey;
     private final String secretKey;
 
     public MixpanelImporter(String apiKey, String secretKey)
     {
+        this(DEFAULT_ADDRESS, DEFAULT_DATA_ADDRESS, apiKey, secretKey);
+    }
+
+    /**
+     * @param dataAddress base url of the raw export API which is served from a different host
+     */
+    public MixpanelImporter(String address, String dataAddress, String apiKey, String secretKey)
+    {
+        this.address = address;
+        this.dataAddress = dataAddress;
         this.apiKey = apiKey;
         this.secretKey = secretKey;
     }
 
+    private InputStream request(String path, Map<String, String> params)
+    {
+        return generateRequest(path.equals("export") ? dataAddress : address, path, apiKey, secretKey, params);
+    }
+
+    private byte[] requestAndParse(String path, Map<String, String> params)
+    {
+        return generateRequestAndParse(address, path, apiKey, secretKey, params);
+    }
+
     private boolean hasAttribute(Map<String, SchemaField> fieldMap, String name)
     {
         return fieldMap.entrySet().stream().anyMatch(a -> a.getValue().getName().equals(name));
@@ -58,14 +98,14 @@ public class MixpanelImporter
                 .put("type", "general")
                 .put("limit", "4000").build();
 
-        String[] events = mapper.readValue(generateRequestAndParse("events/names", apiKey, secretKey, build), String[].class);
+        String[] events = mapper.readValue(requestAndParse("events/names", build), String[].class);
         return Arrays.asList(events);
     }
 
     public Map<String, SchemaField> mapPeopleFields()
             throws IOException
     {
-        byte[] bytes = generateRequestAndParse("engage/properties", apiKey, secretKey, ImmutableMap.of());
+        byte[] bytes = requestAndParse("engage/properties", ImmutableMap.of());
         MixpanelPeopleField read = mapper.readValue(bytes, MixpanelPeopleField.class);
         return read.results.entrySet().stream()
                 .collect(Collectors.toMap(e -> e.getKey(), e -> createSchemaField(e.getKey(), MixpanelType.fromMixpanelType(e.getValue().type).type)));
@@ -94,7 +134,7 @@ public class MixpanelImporter
         for (String event : getCollections()) {
             Map<String, TopType> read;
             try {
-                byte[] bytes = toByteArray(generateRequest("events/properties/toptypes", apiKey, secretKey,
+                byte[] bytes = toByteArray(request("events/properties/toptypes",
                         ImmutableMap.of(
                                 "event", event,
                                 "type", "general",
@@ -131,10 +171,10 @@ public class MixpanelImporter
                 }
                 fieldMap.put(schemaField.getName(), f);
             }
-            fieldMap.put("time", createSchemaField("_time", SchemaField.TypeEnum.LONG));
-            fieldMap.put("$referrer", createSchemaField("_referrer", SchemaField.TypeEnum.LONG));
-            fieldMap.put("$referring_domain", createSchemaField("_referring_domain", SchemaField.TypeEnum.LONG));
-            fieldMap.put("mp_lib", createSchemaField("mp_lib", SchemaField.TypeEnum.LONG));
+            fieldMap.put("time", createSchemaField("_time", SchemaField.TypeEnum.TIMESTAMP));
+            fieldMap.put("$referrer", createSchemaField("_referrer", SchemaField.TypeEnum.STRING));
+            fieldMap.put("$referring_domain", createSchemaField("_referring_domain", SchemaField.TypeEnum.STRING));
+            fieldMap.put("mp_lib", createSchemaField("mp_lib", SchemaField.TypeEnum.STRING));
             fieldMap.put("distinct_id", createSchemaField("distinct_id", SchemaField.TypeEnum.STRING));
             fieldMap.put("$search_engine", createSchemaField("search_engine", SchemaField.TypeEnum.STRING));
         }
@@ -193,7 +233,7 @@ public class MixpanelImporter
 
     }
 
-    public void importEventsFromMixpanel(String mixpanelEventType, String rakamCollection, Map<String, SchemaField> properties, LocalDate startDate, LocalDate endDate, int projectTimezoneOffset, Consumer<List<Event>> consumer)
+    public void importEventsFromMixpanel(String mixpanelEventType, String rakamCollection, Map<String, SchemaField> properties, LocalDate startDate, LocalDate endDate, int projectTimezoneOffset, EventIdSet ids, Quarantine quarantine, EventBatcher batcher)
             throws IOException
     {
 
@@ -204,112 +244,272 @@ public class MixpanelImporter
 
         LOGGER.info("Sending export request to Mixpanel for time period %s and %s..",
                 ISO_DATE.format(startDate), ISO_DATE.format(endDate));
-        InputStream export = generateRequest("export", apiKey, secretKey, build);
-        Scanner scanner = new Scanner(export);
-        scanner.useDelimiter("\n");
-        Map<String, String> nameCache = properties == null ? new HashMap() : null;
+        InputStream export = new MeteredInputStream(request("export", build), DOWNLOADED_BYTES);
 
         LOGGER.info("Mixpanel returned events performed between %s and %s. Started processing data and sending to Rakam..",
                 ISO_DATE.format(startDate), ISO_DATE.format(endDate));
-//        Event[] batchRecords = new Event[10000];
+        String source = String.format("export of %s between %s and %s", mixpanelEventType, ISO_DATE.format(startDate), ISO_DATE.format(endDate));
+        importEvents(export, source, rakamCollection, properties, projectTimezoneOffset, ids, quarantine, batcher);
+    }
 
-//        for (int i = 0; i < batchRecords.length; i++) {
-//            Event event = batchRecords[i] = new Event();
-//            event.setCollection(rakamCollection);
-//            event.setProperties(new HashMap<>());
-//        }
+    /**
+     * Processes the NDJSON response of the export endpoint into the events of the batcher and flushes it.
+     * The lines that can't be parsed are quarantined and skipped.
+     *
+     * @param source the description of the request that is recorded with the quarantined lines
+     * @param quarantine keeps the lines that can't be parsed, they are only counted if it's null.
+     */
+    public void importEvents(InputStream export, String source, String rakamCollection, Map<String, SchemaField> properties, int projectTimezoneOffset, EventIdSet ids,
+            Quarantine quarantine, EventBatcher batcher)
+            throws IOException
+    {
+        Scanner scanner = new Scanner(export);
+        scanner.useDelimiter("\n");
+        Map<String, String> nameCache = properties == null ? new HashMap<>() : null;
 
-        int idx = 0, batch = 0;
+        long lineNumber = 0;
         while (scanner.hasNext()) {
-            MixpanelEvent read = mapper.readValue(scanner.next(), MixpanelEvent.class);
-//            Map record = (Map) batchRecords[idx++].getProperties();
+            String line = scanner.next();
+            lineNumber++;
+            LINES_PARSED.increment();
+
+            Event event = batcher.next(line.length());
+            event.collection = rakamCollection;
+            Map<String, Object> record = event.properties;
+
+            if (properties != null) {
+                // only the mapped properties are materialized, the others are skipped at token level
+                String insertId;
+                try (JsonParser parser = mapper.getFactory().createParser(line)) {
+                    insertId = readMappedProperties(parser, properties, projectTimezoneOffset, record);
+                }
+                catch (IOException | IllegalArgumentException e) {
+                    batcher.discard();
+                    quarantine(quarantine, source, lineNumber, line, e);
+                    continue;
+                }
+                if (ids != null && insertId != null && !ids.add(insertId)) {
+                    DROPPED_DUPLICATE_EVENTS.increment();
+                    batcher.discard();
+                }
+                continue;
+            }
+
+            MixpanelEvent read;
+            try {
+                read = mapper.readValue(line, MixpanelEvent.class);
+            }
+            catch (IOException e) {
+                batcher.discard();
+                quarantine(quarantine, source, lineNumber, line, e);
+                continue;
+            }
+            Object insertId = read.properties.get(INSERT_ID);
+            if (ids != null && insertId != null && !ids.add(insertId.toString())) {
+                DROPPED_DUPLICATE_EVENTS.increment();
+                batcher.discard();
+                continue;
+            }
+
+            Object time = read.properties.get("time");
+            long utcTime;
+            try {
+                utcTime = toUtcMillis(time, projectTimezoneOffset);
+            }
+            catch (IllegalArgumentException e) {
+                batcher.discard();
+                quarantine(quarantine, source, lineNumber, line, e);
+                continue;
+            }
 
             for (Map.Entry<String, Object> entry : read.properties.entrySet()) {
-//                if (idx == batchRecords.length) {
-//                    LOGGER.info("Sending event batch to Rakam. Offset: %d, Current Batch: %d",
-//                            batch++ * batchRecords.length, batchRecords.length);
-//                    consumer.accept(Arrays.asList(batchRecords));
-//                    idx = 0;
-//                }
+                Object value = entry.getKey().equals("time") ? utcTime : entry.getValue();
 
-                Object value;
-                if (entry.getKey().equals("time")) {
-                    // adjust timezone to utc
-                    value = ((Number) entry.getValue()).intValue() - projectTimezoneOffset;
+                if (BLACKLIST.contains(entry.getKey())) {
+                    DROPPED_BLACKLISTED_PROPERTIES.increment();
+                    continue;
                 }
-                else {
-                    value = entry.getValue();
+
+                String key = nameCache.get(entry.getKey());
+                if (key == null) {
+                    key = convertRakamName(entry.getKey());
+                    if (key.equals("time")) {
+                        key = "_time";
+                    }
+                    nameCache.put(entry.getKey(), key);
                 }
+                record.put(key, value);
+            }
+        }
 
-                if (BLACKLIST.contains(entry.getKey())) {
+        batcher.flush();
+    }
+
+    private static void quarantine(Quarantine quarantine, String source, long lineNumber, String line, Exception e)
+    {
+        PARSE_ERRORS.increment();
+        if (quarantine != null) {
+            quarantine.add(source, null, lineNumber, line, e);
+        }
+    }
+
+    /**
+     * Reads the mapped properties of the event into the record and returns the {@code $insert_id} of the event if it has one.
+     */
+    static String readMappedProperties(JsonParser parser, Map<String, SchemaField> properties, int projectTimezoneOffset, Map<String, Object> record)
+            throws IOException
+    {
+        String insertId = null;
+
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException("Expected an event object", parser.getCurrentLocation());
+        }
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            if (parser.nextToken() != JsonToken.START_OBJECT || !name.equals("properties")) {
+                parser.skipChildren();
+                continue;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                parser.nextToken();
+
+                if (key.equals(INSERT_ID) && parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+                    insertId = parser.getText();
+                }
+
+                if (BLACKLIST.contains(key)) {
+                    DROPPED_BLACKLISTED_PROPERTIES.increment();
+                    parser.skipChildren();
                     continue;
                 }
 
-                if (properties != null) {
-                    SchemaField schemaField = properties.get(entry.getKey());
-                    if (schemaField == null) {
-                        continue;
-                    }
-//                    record.put(schemaField.getName(), value);
+                SchemaField schemaField = properties.get(key);
+                if (schemaField == null) {
+                    parser.skipChildren();
+                    continue;
+                }
+
+                Object value;
+                if (key.equals("time")) {
+                    value = toUtcMillis(readValue(parser), projectTimezoneOffset);
                 }
                 else {
-                    String key = nameCache.get(entry.getKey());
-                    if (key == null) {
-                        key = convertRakamName(entry.getKey());
-                        if (key.equals("time")) {
-                            key = "_time";
-                        }
-                        nameCache.put(entry.getKey(), key);
-                    }
-//                    record.put(key, value);
+                    value = coerce(readValue(parser), schemaField.getType());
                 }
+                record.put(schemaField.getName(), value);
             }
         }
+        return insertId;
+    }
+
+    /**
+     * Adjusts the time of an event to UTC, Mixpanel sends the time in seconds in the timezone of the project.
+     *
+     * @throws IllegalArgumentException if the time is missing or not a number
+     */
+    static long toUtcMillis(Object time, int projectTimezoneOffset)
+    {
+        Object seconds = coerce(time, SchemaField.TypeEnum.LONG);
+        if (!(seconds instanceof Long)) {
+            throw new IllegalArgumentException("Invalid event time: " + time);
+        }
+        return ((Long) seconds - projectTimezoneOffset) * 1000;
+    }
 
-//        LOGGER.info("Sending last event batch to Rakam. Offset: %d, Current Batch: %d",
-//                batch * batchRecords.length, idx);
-//        consumer.accept(Arrays.asList(Arrays.copyOfRange(batchRecords, 0, idx)));
+    private static Object readValue(JsonParser parser)
+            throws IOException
+    {
+        switch (parser.getCurrentToken()) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                return parser.readValueAs(Object.class);
+        }
     }
 
     public void importPeopleFromMixpanel(Map<String, SchemaField> properties, LocalDate lastSeen, Consumer<List<User>> consumer)
             throws IOException
     {
-        ImmutableMap<String, String> build = lastSeen == null ? ImmutableMap.<String, String>of() :
-                ImmutableMap.of("selector", String.format("datetime(%d) >= properties[\"$last_seen\"]", lastSeen.atStartOfDay().toEpochSecond(ZoneOffset.UTC)));
-
         LOGGER.info("Requesting users " + (lastSeen != null ? "last seen at " + ISO_DATE.format(lastSeen) : "") + "from Mixpanel..");
-        EngageResult engage = mapper.readValue(generateRequestAndParse("engage", apiKey, secretKey, build), EngageResult.class);
+        importPeopleFromMixpanel(properties, lastSeen == null ? null : createLastSeenSelector(lastSeen), consumer);
+    }
 
-        LOGGER.info("Mixpanel returned %d people. There are %d people in total. Started to process people data..", engage.results.size(), engage.total);
+    /**
+     * Pages through the people that match the selector in one engage session and writes each page to the consumer.
+     *
+     * @param selector the segmentation expression of the engage endpoint, all the people are exported if it's null
+     * @return the number of people
+     */
+    public long importPeopleFromMixpanel(Map<String, SchemaField> properties, String selector, Consumer<List<User>> consumer)
+            throws IOException
+    {
+        ImmutableMap<String, String> build = selector == null ? ImmutableMap.<String, String>of() : ImmutableMap.of("selector", selector);
+        EngageResult engage = mapper.readValue(requestAndParse("engage", build), EngageResult.class);
 
-        do {
-            final EngageResult finalEngage = engage;
-            List<User> collect = engage.results.stream().map(r -> {
-                Map<String, Object> userProps;
-                if (properties == null) {
-                    userProps = r.properties.entrySet().stream()
-                            .filter(e -> e.getValue() != null)
-                            .collect(Collectors.toMap(e -> convertRakamName(e.getKey()), e -> e.getValue()));
-                }
-                else {
-                    userProps = r.properties.entrySet().stream()
-                            .filter(e -> properties.containsKey(e.getKey()))
-                            .filter(e -> e.getValue() != null)
-                            .collect(Collectors.toMap(e -> properties.get(e.getKey()).getName(), e -> e.getValue()));
-                }
+        LOGGER.info("Mixpanel returned %d people. There are %d people in total. Started to process people data..", engage.results.size(), engage.total);
 
-                User user = new User();
-                user.setId(r.id);
-                user.setProperties(userProps);
-                return user;
-            }).collect(Collectors.toList());
-            LOGGER.info("Sending people data batch to Rakam. Current page: %d, Total processed people: %d",
-                    finalEngage.page, (finalEngage.page * finalEngage.page_size) + finalEngage.results.size());
+        long people = 0;
+        while (!engage.results.isEmpty()) {
+            List<User> collect = convertPeople(engage.results, properties);
+            people += engage.results.size();
+            LOGGER.info("Sending people data batch to Rakam. Current page: %d, Total processed people: %d", engage.page, people);
             consumer.accept(collect);
 
-            engage = mapper.readValue(generateRequestAndParse("engage", apiKey, secretKey,
-                    ImmutableMap.of("session_id", engage.session_id, "page", Long.toString(engage.page + 1))), EngageResult.class);
+            // the last page is not full, there is no need to ask for the next one
+            if (engage.results.size() < engage.page_size) {
+                break;
+            }
+            engage = mapper.readValue(requestAndParse("engage", ImmutableMap.of("session_id", engage.session_id, "page", Long.toString(engage.page + 1))), EngageResult.class);
         }
-        while (engage.results.size() > 0 && engage.results.size() >= engage.page_size);
+        return people;
+    }
+
+    /**
+     * Returns the engage selector of the people that are seen at or after the start of the UTC day.
+     */
+    public static String createLastSeenSelector(LocalDate lastSeen)
+    {
+        return String.format("properties[\"$last_seen\"] >= datetime(%d)", lastSeen.atStartOfDay().toEpochSecond(ZoneOffset.UTC));
+    }
+
+    /**
+     * Converts a page of the engage endpoint to Rakam users.
+     *
+     * @param properties the mapping of the Mixpanel people properties, all the properties are converted if it's null
+     */
+    public static List<User> convertPeople(List<EngageResult.Person> people, Map<String, SchemaField> properties)
+    {
+        return people.stream().map(r -> {
+            Map<String, Object> userProps;
+            if (properties == null) {
+                userProps = r.properties.entrySet().stream()
+                        .filter(e -> e.getValue() != null)
+                        .collect(Collectors.toMap(e -> convertRakamName(e.getKey()), e -> e.getValue()));
+            }
+            else {
+                userProps = r.properties.entrySet().stream()
+                        .filter(e -> properties.containsKey(e.getKey()))
+                        .filter(e -> e.getValue() != null)
+                        .collect(Collectors.toMap(e -> properties.get(e.getKey()).getName(), e -> coerce(e.getValue(), properties.get(e.getKey()).getType())));
+            }
+
+            User user = new User();
+            user.setId(r.id);
+            user.setProperties(userProps);
+            return user;
+        }).collect(Collectors.toList());
     }
-}
\ No newline at end of file
+}
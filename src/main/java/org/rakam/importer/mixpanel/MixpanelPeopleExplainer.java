@@ -6,6 +6,8 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import io.airlift.airline.Command;
 import io.airlift.airline.Option;
 
+import javax.inject.Inject;
+
 import java.io.IOException;
 
 @Command(name = "explain-people", description = "Mixpanel people schema explainer")
@@ -21,9 +23,12 @@ public class MixpanelPeopleExplainer implements Runnable {
     @Option(name="--mixpanel.api-secret", description = "Api secret", required = true)
     public String apiSecret;
 
+    @Inject
+    public MixpanelAddressOptions addressOptions = new MixpanelAddressOptions();
+
     @Override
     public void run() {
-        MixpanelImporter mixpanel = new MixpanelImporter(apiKey, apiSecret);
+        MixpanelImporter mixpanel = addressOptions.createImporter(apiKey, apiSecret);
         try {
             System.out.println(mapper.writeValueAsString(mixpanel.mapPeopleFields()));
         } catch (JsonProcessingException e) {
@@ -3,22 +3,38 @@ package org.rakam.importer.mixpanel;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import io.airlift.airline.Command;
 import io.airlift.airline.Option;
 import io.airlift.log.Logger;
-import io.rakam.ApiClient;
-import io.rakam.ApiException;
-import io.rakam.auth.ApiKeyAuth;
-import io.rakam.client.api.UserApi;
 import io.rakam.client.model.SchemaField;
-import io.rakam.client.model.UserCreateUsers;
+import io.rakam.client.model.User;
+import org.rakam.importer.ChangeDetectionOptions;
+import org.rakam.importer.HttpClients;
+import org.rakam.importer.IoExecutorOptions;
+import org.rakam.importer.SyncScheduler;
+import org.rakam.importer.UserFingerprintSet;
+import org.rakam.importer.WatermarkStore;
+import org.rakam.importer.metrics.MetricsOptions;
+import org.rakam.importer.sink.RakamSink;
+import org.rakam.importer.sink.Sink;
+import org.rakam.importer.sink.SinkOptions;
+
+import javax.inject.Inject;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 
 @Command(name = "import-people", description = "Mixpanel importer")
 public class MixpanelPeopleImporter implements Runnable {
@@ -32,13 +48,16 @@ public class MixpanelPeopleImporter implements Runnable {
     @Option(name="--mixpanel.api-secret", description = "Api secret", required = true)
     public String apiSecret;
 
-    @Option(name="--rakam.address", description = "Rakam cluster url", required = true)
+    @Inject
+    public MixpanelAddressOptions addressOptions = new MixpanelAddressOptions();
+
+    @Option(name="--rakam.address", description = "Rakam cluster url")
     public String rakamAddress;
 
     @Option(name="--mixpanel.project.timezone", description = "Rakam cluster url", required = true)
     public Integer projectTimezone;
 
-    @Option(name="--rakam.project.write-key", description = "Project", required = true)
+    @Option(name="--rakam.project.write-key", description = "Project")
     public String rakamWriteKey;
 
     @Option(name="--schema.file", description = "Mixpanel people schema file")
@@ -50,9 +69,34 @@ public class MixpanelPeopleImporter implements Runnable {
     @Option(name="--last-seen", description = "Mixpanel people lastSeen filter as date (YYYY-mm-dd)")
     public String lastSeen;
 
+    @Option(name="--sync.interval", description = "Keep importing the people seen since the last sync periodically (ISO-8601 duration)")
+    public String syncInterval;
+
+    @Option(name="--state.directory", description = "Directory that keeps the sync watermarks")
+    public String stateDirectory = "./state";
+
+    @Option(name="--people.partitions", description = "Number of engage queries by the last seen date of the people that are paged concurrently")
+    public int partitions = 1;
+
+    @Option(name="--people.partitions.since", description = "Start of the last seen ranges of the partitions if --last-seen is not set, one year ago by default (YYYY-mm-dd)")
+    public String partitionsSince;
+
+    @Inject
+    public SinkOptions sinkOptions = new SinkOptions();
+
+    @Inject
+    public MetricsOptions metricsOptions = new MetricsOptions();
+
+    @Inject
+    public IoExecutorOptions ioOptions = new IoExecutorOptions();
+
+    @Inject
+    public ChangeDetectionOptions changeDetectionOptions = new ChangeDetectionOptions();
+
     @Override
     public void run() {
-        MixpanelImporter mixpanelEventImporter = new MixpanelImporter(apiKey, apiSecret);
+        metricsOptions.start();
+        MixpanelImporter mixpanelEventImporter = addressOptions.createImporter(apiKey, apiSecret);
 
         if(schemaFile != null) {
             if(schema != null) {
@@ -84,28 +128,99 @@ public class MixpanelPeopleImporter implements Runnable {
             lastSeenDate = null;
         }
 
-        ApiClient apiClient = new ApiClient();
-        ((ApiKeyAuth) apiClient.getAuthentication("write_key")).setApiKey(rakamWriteKey);
+        List<SchemaField> userFields = fields == null ? ImmutableList.of() : ImmutableList.copyOf(fields.values());
+        try (Sink sink = sinkOptions.createSink(() -> new RakamSink(HttpClients.newBuilder().build(), rakamAddress, rakamWriteKey, "/event/batch"),
+                collection -> userFields, null);
+                UserFingerprintSet fingerprints = changeDetectionOptions.createFingerprintSet()) {
+            run(mixpanelEventImporter, sink, fingerprints, fields, lastSeenDate);
+        }
+    }
+
+    private void run(MixpanelImporter mixpanelEventImporter, Sink sink, UserFingerprintSet fingerprints, Map<String, SchemaField> fields, LocalDate lastSeenDate) {
+        Consumer<List<User>> users;
+        if(fingerprints != null) {
+            users = batch -> fingerprints.writeChanged(batch, sink::writeUsers);
+        } else {
+            users = sink::writeUsers;
+        }
+
+        if(syncInterval != null) {
+            WatermarkStore watermarks = new WatermarkStore(new File(stateDirectory));
+            String source = "mixpanel-people-" + apiKey;
+            if(watermarks.get(source) == null && lastSeenDate != null) {
+                watermarks.commit(source, lastSeenDate.atStartOfDay());
+            }
 
-        apiClient.setBasePath(rakamAddress);
-        UserApi userApi = new UserApi(apiClient);
+            SyncScheduler.schedule(source, watermarks, Duration.parse(syncInterval), () -> {
+                LocalDateTime watermark = watermarks.get(source);
+                LocalDateTime runStart = LocalDateTime.now(ZoneOffset.UTC);
+                try {
+                    // the filter works on days so the day of the watermark is fetched again
+                    importPeople(mixpanelEventImporter, sink, users, fields, watermark == null ? null : watermark.toLocalDate());
+                    sink.flush();
+                } catch (RuntimeException e) {
+                    // the users that may not be delivered are sent again by the next iteration
+                    if(fingerprints != null) {
+                        fingerprints.rollback();
+                    }
+                    throw e;
+                }
+                if(fingerprints != null) {
+                    fingerprints.save();
+                }
+                watermarks.commit(source, runStart);
+            });
+            return;
+        }
+
+        importPeople(mixpanelEventImporter, sink, users, fields, lastSeenDate);
+        sink.flush();
+        if(fingerprints != null) {
+            fingerprints.save();
+        }
+    }
+
+    private void importPeople(MixpanelImporter mixpanelEventImporter, Sink sink, Consumer<List<User>> users, Map<String, SchemaField> fields, LocalDate lastSeenDate) {
+        if(partitions > 1) {
+            importPartitions(mixpanelEventImporter, sink, users, fields, lastSeenDate);
+            return;
+        }
 
         try {
-            mixpanelEventImporter.importPeopleFromMixpanel(fields, lastSeenDate,
-                    (users) -> {
-                        UserCreateUsers createReq = new UserCreateUsers();
-                        createReq.setUsers(users);
-
-                        try {
-                            userApi.createUsers(createReq);
-                        } catch (ApiException e) {
-                            LOGGER.error(e);
-                        }
-                    });
+            mixpanelEventImporter.importPeopleFromMixpanel(fields, lastSeenDate, users);
         } catch (IOException e) {
-            e.printStackTrace();
+            throw Throwables.propagate(e);
         }
     }
 
-
+    /**
+     * Runs the engage query of each partition that is not finished yet as a task of the executor, each partition is recorded
+     * once its people are flushed to the sink.
+     */
+    private void importPartitions(MixpanelImporter mixpanelEventImporter, Sink sink, Consumer<List<User>> users, Map<String, SchemaField> fields, LocalDate lastSeenDate) {
+        LocalDate since = partitionsSince != null ? LocalDate.parse(partitionsSince) : LocalDate.now(ZoneOffset.UTC).minusYears(1);
+        EngagePartitions engagePartitions = EngagePartitions.load(new File(stateDirectory), "mixpanel-people-" + apiKey, lastSeenDate, since, partitions);
+        List<String> pending = engagePartitions.getPending();
+        LOGGER.info("Exporting %d of %d people partitions from Mixpanel..", pending.size(), engagePartitions.selectors.size());
+
+        // the engage queries mostly wait for Mixpanel, so they run on the I/O executor in batch runs too
+        ExecutorService exports = ioOptions.createExecutor("mixpanel-engage");
+        try {
+            CompletableFuture<?>[] imports = pending.stream().map(selector -> CompletableFuture.runAsync(() -> {
+                long people;
+                try {
+                    people = mixpanelEventImporter.importPeopleFromMixpanel(fields, selector.isEmpty() ? null : selector, users);
+                } catch (IOException e) {
+                    throw Throwables.propagate(e);
+                }
+                sink.flush();
+                engagePartitions.complete(selector);
+                LOGGER.info("Finished the people partition '%s' with %d people", selector, people);
+            }, exports)).toArray(CompletableFuture[]::new);
+            // the failed partitions are not recorded, they are exported again by the next run
+            CompletableFuture.allOf(imports).join();
+        } finally {
+            exports.shutdownNow();
+        }
+    }
 }
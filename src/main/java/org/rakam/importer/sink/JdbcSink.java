@@ -0,0 +1,549 @@
+package org.rakam.importer.sink;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import io.rakam.client.model.SchemaField;
+import io.rakam.client.model.User;
+import org.rakam.importer.Event;
+import org.rakam.importer.metrics.Metrics;
+import org.rakam.importer.TypeCoercion;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+import static org.rakam.importer.metrics.StageMetrics.BATCH_ENCODE_TIME;
+
+/**
+ * Inserts the data into a relational database. Each collection is written to a table that is created from the schema of the collection,
+ * the properties that are not in the schema are stored as a JSON object in the {@code _properties} column.
+ * <p>
+ * The rows are inserted with multi-row prepared statements that are executed in JDBC batches by a pool of writers,
+ * each writer has its own connection and commits after every {@code commitSize} rows.
+ * <p>
+ * The users are upserted by deleting the rows of their ids and inserting the new ones in the same transaction,
+ * the upserts are serialized so that two writers don't insert the same user. The timestamps are stored in UTC.
+ */
+public class JdbcSink
+        implements Sink
+{
+    private final static Logger LOGGER = Logger.get(JdbcSink.class);
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    public static final String USERS_TABLE = "_users";
+    private static final String USER_ID_COLUMN = "_user";
+    private static final String EXTRA_COLUMN = "_properties";
+
+    // most of the databases limit the number of parameters of a statement to 32K or 64K
+    private static final int MAX_PARAMETERS = 32_000;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int rowsPerStatement;
+    private final int commitSize;
+    private final String stringType;
+    private final Function<String, List<SchemaField>> schemas;
+    private final Map<String, TableWriter> tables = new ConcurrentHashMap<>();
+    private final List<Writer> writers = new ArrayList<>();
+    private final BlockingQueue<Writer> idleWriters = new LinkedBlockingQueue<>();
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final Connection ddlConnection;
+    private final Object userLock = new Object();
+    private final String quote;
+    private volatile Throwable failure;
+
+    public JdbcSink(String url, String user, String password, int writerCount, int rowsPerStatement, int commitSize, String stringType, Function<String, List<SchemaField>> schemas)
+    {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.rowsPerStatement = rowsPerStatement;
+        this.commitSize = commitSize;
+        this.stringType = stringType;
+        this.schemas = schemas;
+        this.executor = Executors.newFixedThreadPool(writerCount, new ThreadFactoryBuilder().setNameFormat("jdbc-sink-%d").build());
+        this.maxInFlight = writerCount * 2;
+        this.inFlight = new Semaphore(maxInFlight);
+        Metrics.gauge("importer_jdbc_sink_queue_depth", "Row chunks that are waiting for the database writers",
+                () -> maxInFlight - inFlight.availablePermits());
+
+        try {
+            this.ddlConnection = openConnection();
+            this.ddlConnection.setAutoCommit(true);
+            this.quote = ddlConnection.getMetaData().getIdentifierQuoteString().trim();
+            for (int i = 0; i < writerCount; i++) {
+                Connection connection = openConnection();
+                connection.setAutoCommit(false);
+                Writer writer = new Writer(connection);
+                writers.add(writer);
+                idleWriters.add(writer);
+            }
+        }
+        catch (SQLException e) {
+            throw new RuntimeException("Unable to connect to " + url, e);
+        }
+    }
+
+    @Override
+    public void writeEvents(List<Event> events)
+    {
+        Map<TableWriter, List<Object[]>> chunks = new HashMap<>();
+        long start = System.nanoTime();
+        for (Event event : events) {
+            TableWriter table = getTable(event.collection);
+            chunks.computeIfAbsent(table, k -> new ArrayList<>()).add(table.toRow(null, event.properties));
+        }
+        BATCH_ENCODE_TIME.observe(System.nanoTime() - start);
+
+        chunks.forEach(this::submit);
+    }
+
+    @Override
+    public void writeUsers(List<User> users)
+    {
+        TableWriter table = getTable(USERS_TABLE);
+        // the last properties of a user win if the user is in the batch more than once
+        Map<String, Object[]> rows = new LinkedHashMap<>();
+        for (User user : users) {
+            rows.put(String.valueOf(user.getId()), table.toRow(user.getId(), user.getProperties()));
+        }
+        submit(table, new ArrayList<>(rows.values()));
+    }
+
+    @Override
+    public void flush()
+    {
+        inFlight.acquireUninterruptibly(maxInFlight);
+        try {
+            checkFailure();
+            for (Writer writer : writers) {
+                writer.commit();
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+        finally {
+            inFlight.release(maxInFlight);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            flush();
+        }
+        finally {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            for (Writer writer : writers) {
+                closeQuietly(writer.connection);
+            }
+            closeQuietly(ddlConnection);
+        }
+    }
+
+    private void submit(TableWriter table, List<Object[]> rows)
+    {
+        checkFailure();
+        inFlight.acquireUninterruptibly();
+        executor.execute(() -> {
+            Writer writer = idleWriters.poll();
+            try {
+                if (table.deleteUser != null) {
+                    writer.upsert(table, rows);
+                }
+                else {
+                    writer.insert(table, rows);
+                }
+            }
+            catch (Throwable e) {
+                LOGGER.error(e, "Unable to insert rows into %s", table.name);
+                failure = e;
+            }
+            finally {
+                idleWriters.add(writer);
+                inFlight.release();
+            }
+        });
+    }
+
+    private void checkFailure()
+    {
+        if (failure != null) {
+            throw new RuntimeException("Unable to write to the database", failure);
+        }
+    }
+
+    private Connection openConnection()
+            throws SQLException
+    {
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    private TableWriter getTable(String collection)
+    {
+        TableWriter table = tables.get(collection);
+        if (table != null) {
+            return table;
+        }
+
+        synchronized (ddlConnection) {
+            return tables.computeIfAbsent(collection, this::createTable);
+        }
+    }
+
+    private TableWriter createTable(String name)
+    {
+        Map<String, SchemaField.TypeEnum> columns = new LinkedHashMap<>();
+        if (name.equals(USERS_TABLE)) {
+            columns.put(USER_ID_COLUMN, SchemaField.TypeEnum.STRING);
+        }
+        for (SchemaField field : schemas.apply(name)) {
+            columns.putIfAbsent(field.getName(), field.getType());
+        }
+        columns.put(EXTRA_COLUMN, SchemaField.TypeEnum.STRING);
+
+        try {
+            DatabaseMetaData metaData = ddlConnection.getMetaData();
+            boolean exists;
+            try (ResultSet rs = metaData.getTables(null, null, name, null)) {
+                exists = rs.next();
+            }
+
+            if (!exists) {
+                String definition = columns.entrySet().stream()
+                        .map(e -> quote(e.getKey()) + " " + getSqlType(e.getValue()))
+                        .collect(Collectors.joining(", "));
+                try (Statement statement = ddlConnection.createStatement()) {
+                    statement.execute(format("CREATE TABLE %s (%s)", quote(name), definition));
+                }
+                LOGGER.info("Created table %s with %d columns", name, columns.size());
+
+                if (name.equals(USERS_TABLE)) {
+                    try (Statement statement = ddlConnection.createStatement()) {
+                        statement.execute(format("CREATE INDEX %s ON %s (%s)", quote(USERS_TABLE + USER_ID_COLUMN), quote(name), quote(USER_ID_COLUMN)));
+                    }
+                    catch (SQLException e) {
+                        LOGGER.warn("Unable to index the user ids of %s, the upserts scan the table: %s", name, e.getMessage());
+                    }
+                }
+            }
+        }
+        catch (SQLException e) {
+            throw new RuntimeException("Unable to create table " + name, e);
+        }
+
+        return new TableWriter(name, columns);
+    }
+
+    private String getSqlType(SchemaField.TypeEnum type)
+    {
+        if (type == null) {
+            return stringType;
+        }
+        switch (type) {
+            case LONG:
+                return "BIGINT";
+            case DOUBLE:
+                return "DOUBLE PRECISION";
+            case BOOLEAN:
+                return "BOOLEAN";
+            case TIMESTAMP:
+                return "TIMESTAMP";
+            default:
+                return stringType;
+        }
+    }
+
+    private static int getJdbcType(SchemaField.TypeEnum type)
+    {
+        if (type == null) {
+            return Types.VARCHAR;
+        }
+        switch (type) {
+            case LONG:
+                return Types.BIGINT;
+            case DOUBLE:
+                return Types.DOUBLE;
+            case BOOLEAN:
+                return Types.BOOLEAN;
+            case TIMESTAMP:
+                return Types.TIMESTAMP;
+            default:
+                return Types.VARCHAR;
+        }
+    }
+
+    private String quote(String identifier)
+    {
+        return quote + identifier.replace(quote, quote + quote) + quote;
+    }
+
+    private static void closeQuietly(Connection connection)
+    {
+        try {
+            connection.close();
+        }
+        catch (SQLException e) {
+            // ignore
+        }
+    }
+
+    private class TableWriter
+    {
+        private final String name;
+        private final Map<String, Integer> columnIndexes = new HashMap<>();
+        private final SchemaField.TypeEnum[] types;
+        private final int[] jdbcTypes;
+        private final int extraIndex;
+        private final int rowsPerStatement;
+        private final String multiRowInsert;
+        private final String singleRowInsert;
+        // null if the table is not upserted
+        private final String deleteUser;
+
+        public TableWriter(String name, Map<String, SchemaField.TypeEnum> columns)
+        {
+            this.name = name;
+            this.types = columns.values().toArray(new SchemaField.TypeEnum[0]);
+            this.jdbcTypes = new int[types.length];
+            int i = 0;
+            for (String column : columns.keySet()) {
+                jdbcTypes[i] = getJdbcType(types[i]);
+                columnIndexes.put(column, i++);
+            }
+            this.extraIndex = columnIndexes.get(EXTRA_COLUMN);
+            this.rowsPerStatement = Math.max(1, Math.min(JdbcSink.this.rowsPerStatement, MAX_PARAMETERS / types.length));
+
+            String columnList = columns.keySet().stream().map(JdbcSink.this::quote).collect(Collectors.joining(", "));
+            String values = "(" + String.join(", ", Collections.nCopies(types.length, "?")) + ")";
+            this.singleRowInsert = format("INSERT INTO %s (%s) VALUES %s", quote(name), columnList, values);
+            StringBuilder builder = new StringBuilder(singleRowInsert);
+            for (int row = 1; row < this.rowsPerStatement; row++) {
+                builder.append(", ").append(values);
+            }
+            this.multiRowInsert = builder.toString();
+            this.deleteUser = name.equals(USERS_TABLE) ? format("DELETE FROM %s WHERE %s = ?", quote(name), quote(USER_ID_COLUMN)) : null;
+        }
+
+        public Object[] toRow(Object userId, Map<String, Object> properties)
+        {
+            Object[] row = new Object[types.length];
+            Map<String, Object> extra = null;
+            if (userId != null) {
+                row[columnIndexes.get(USER_ID_COLUMN)] = userId.toString();
+            }
+
+            if (properties != null) {
+                for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                    if (entry.getValue() == null) {
+                        continue;
+                    }
+                    Integer index = columnIndexes.get(entry.getKey());
+                    if (index == null || index == extraIndex) {
+                        if (extra == null) {
+                            extra = new HashMap<>();
+                        }
+                        extra.put(entry.getKey(), entry.getValue());
+                        continue;
+                    }
+                    Object value = toJdbcValue(entry.getValue(), types[index]);
+                    if (value == null) {
+                        // keep the values that don't match the type of their column
+                        if (extra == null) {
+                            extra = new HashMap<>();
+                        }
+                        extra.put(entry.getKey(), entry.getValue());
+                        continue;
+                    }
+                    row[index] = value;
+                }
+            }
+
+            if (extra != null) {
+                row[extraIndex] = toJson(extra);
+            }
+            return row;
+        }
+
+        // returns null if the value can't be stored in a column of the given type
+        private Object toJdbcValue(Object value, SchemaField.TypeEnum type)
+        {
+            Object coerced = TypeCoercion.coerce(value, type);
+            if (coerced instanceof Map || coerced instanceof List) {
+                return type == SchemaField.TypeEnum.STRING || type == null ? toJson(coerced) : null;
+            }
+            if (type == null) {
+                return coerced.toString();
+            }
+
+            switch (type) {
+                case TIMESTAMP:
+                    // bound with a UTC calendar, the zone of the JVM is not applied
+                    return coerced instanceof Long ? new Timestamp((Long) coerced) : null;
+                case LONG:
+                case DOUBLE:
+                    return coerced instanceof Number ? coerced : null;
+                case BOOLEAN:
+                    return coerced instanceof Boolean ? coerced : null;
+                default:
+                    return coerced.toString();
+            }
+        }
+
+        private void bind(PreparedStatement statement, int offset, Object[] row, Calendar utc)
+                throws SQLException
+        {
+            for (int i = 0; i < row.length; i++) {
+                if (row[i] == null) {
+                    statement.setNull(offset + i + 1, jdbcTypes[i]);
+                }
+                else if (row[i] instanceof Timestamp) {
+                    statement.setTimestamp(offset + i + 1, (Timestamp) row[i], utc);
+                }
+                else {
+                    statement.setObject(offset + i + 1, row[i]);
+                }
+            }
+        }
+    }
+
+    private static String toJson(Object value)
+    {
+        try {
+            return mapper.writeValueAsString(value);
+        }
+        catch (JsonProcessingException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private class Writer
+    {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private final Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        private long uncommitted;
+
+        public Writer(Connection connection)
+        {
+            this.connection = connection;
+        }
+
+        public void insert(TableWriter table, List<Object[]> rows)
+                throws SQLException
+        {
+            int fullStatements = rows.size() / table.rowsPerStatement;
+            if (fullStatements > 0) {
+                PreparedStatement statement = getStatement(table.multiRowInsert);
+                for (int i = 0; i < fullStatements; i++) {
+                    for (int row = 0; row < table.rowsPerStatement; row++) {
+                        table.bind(statement, row * table.types.length, rows.get(i * table.rowsPerStatement + row), utc);
+                    }
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+
+            int remaining = fullStatements * table.rowsPerStatement;
+            if (remaining < rows.size()) {
+                PreparedStatement statement = getStatement(table.singleRowInsert);
+                for (int row = remaining; row < rows.size(); row++) {
+                    table.bind(statement, 0, rows.get(row), utc);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+
+            uncommitted += rows.size();
+            if (uncommitted >= commitSize) {
+                commit();
+            }
+        }
+
+        /**
+         * Replaces the rows of the users, the rows must have distinct ids. The transaction is committed before the lock is released
+         * so the other writers see the new rows.
+         */
+        public void upsert(TableWriter table, List<Object[]> rows)
+                throws SQLException
+        {
+            int idIndex = table.columnIndexes.get(USER_ID_COLUMN);
+            synchronized (userLock) {
+                try {
+                    PreparedStatement delete = getStatement(table.deleteUser);
+                    for (Object[] row : rows) {
+                        delete.setString(1, (String) row[idIndex]);
+                        delete.addBatch();
+                    }
+                    delete.executeBatch();
+                    insert(table, rows);
+                    connection.commit();
+                    uncommitted = 0;
+                }
+                catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                }
+            }
+        }
+
+        public void commit()
+                throws SQLException
+        {
+            if (uncommitted > 0) {
+                connection.commit();
+                uncommitted = 0;
+            }
+        }
+
+        private PreparedStatement getStatement(String sql)
+                throws SQLException
+        {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.rakam.importer.sink;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.base.Throwables;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import io.rakam.client.model.User;
+import org.rakam.importer.Event;
+import org.rakam.importer.TypeCoercion;
+import org.rakam.importer.metrics.Metrics;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static java.lang.String.format;
+import static org.rakam.importer.metrics.StageMetrics.BATCH_ENCODE_TIME;
+
+/**
+ * Writes the events as gzipped NDJSON files partitioned by collection and event time,
+ * e.g. {@code <directory>/<collection>/2016-01-05/part-<run>-00000.ndjson.gz}.
+ * <p>
+ * The events are encoded on the calling thread, compressing and writing is done on a pool of single threaded writers.
+ * Each partition is always written by the same writer so a partition has only one open file at a time.
+ * The files are created with the {@code .inprogress} suffix and renamed when they reach the maximum size or the sink is flushed.
+ */
+public class LocalFileSink
+        implements Sink
+{
+    private final static Logger LOGGER = Logger.get(LocalFileSink.class);
+    private final static ObjectWriter writer = new ObjectMapper().writer();
+
+    private static final String USERS_PARTITION = "_users";
+    private static final String UNKNOWN_TIME = "unknown";
+
+    private final File directory;
+    private final DateTimeFormatter partitionFormat;
+    private final long maxFileSize;
+    private final String runId;
+    private final ExecutorService[] writers;
+    private final List<Map<String, PartitionWriter>> partitions;
+    private final Semaphore inFlight;
+    private volatile Throwable failure;
+
+    public LocalFileSink(File directory, ChronoUnit partitionUnit, long maxFileSize, int threads)
+    {
+        this.directory = directory;
+        this.partitionFormat = DateTimeFormatter.ofPattern(partitionUnit == ChronoUnit.HOURS ? "yyyy-MM-dd'T'HH" : "yyyy-MM-dd").withZone(ZoneOffset.UTC);
+        this.maxFileSize = maxFileSize;
+        this.runId = UUID.randomUUID().toString().substring(0, 8);
+        this.writers = new ExecutorService[threads];
+        this.partitions = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            writers[i] = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("file-sink-" + i).build());
+            partitions.add(new HashMap<>());
+        }
+        // bounds the memory used by the encoded chunks that are waiting for their writers
+        int maxInFlight = threads * 4;
+        this.inFlight = new Semaphore(maxInFlight);
+        Metrics.gauge("importer_file_sink_queue_depth", "Encoded chunks that are waiting for the file writers",
+                () -> maxInFlight - inFlight.availablePermits());
+        directory.mkdirs();
+    }
+
+    @Override
+    public void writeEvents(List<Event> events)
+    {
+        Map<String, ByteArrayOutputStream> chunks = new HashMap<>();
+        long start = System.nanoTime();
+        try {
+            for (Event event : events) {
+                String partition = sanitize(event.collection) + File.separator + getTimePartition(event.properties.get("_time"));
+                ByteArrayOutputStream chunk = chunks.computeIfAbsent(partition, k -> new ByteArrayOutputStream(64 * 1024));
+                writer.writeValue(chunk, event.properties);
+                chunk.write('\n');
+            }
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        BATCH_ENCODE_TIME.observe(System.nanoTime() - start);
+
+        chunks.forEach((partition, chunk) -> submit(partition, chunk.toByteArray()));
+    }
+
+    @Override
+    public void writeUsers(List<User> users)
+    {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(64 * 1024);
+        try {
+            for (User user : users) {
+                Map<String, Object> record = new LinkedHashMap<>();
+                record.put("id", user.getId());
+                record.put("properties", user.getProperties());
+                writer.writeValue(chunk, record);
+                chunk.write('\n');
+            }
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        submit(USERS_PARTITION, chunk.toByteArray());
+    }
+
+    @Override
+    public void flush()
+    {
+        for (int i = 0; i < writers.length; i++) {
+            Map<String, PartitionWriter> partitionWriters = partitions.get(i);
+            try {
+                writers[i].submit(() -> {
+                    for (PartitionWriter partitionWriter : partitionWriters.values()) {
+                        partitionWriter.roll();
+                    }
+                    return null;
+                }).get();
+            }
+            catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        checkFailure();
+    }
+
+    @Override
+    public void close()
+    {
+        for (ExecutorService executor : writers) {
+            executor.shutdown();
+        }
+
+        try {
+            for (ExecutorService executor : writers) {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+
+        // the writer threads are terminated, it's safe to close the files from this thread
+        for (Map<String, PartitionWriter> partitionWriters : partitions) {
+            for (PartitionWriter partitionWriter : partitionWriters.values()) {
+                try {
+                    partitionWriter.roll();
+                }
+                catch (IOException e) {
+                    LOGGER.error(e, "Unable to close partition file");
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    private void submit(String partition, byte[] chunk)
+    {
+        checkFailure();
+        int writerId = (partition.hashCode() & Integer.MAX_VALUE) % writers.length;
+        Map<String, PartitionWriter> partitionWriters = partitions.get(writerId);
+
+        inFlight.acquireUninterruptibly();
+        writers[writerId].execute(() -> {
+            try {
+                partitionWriters.computeIfAbsent(partition, PartitionWriter::new).write(chunk);
+            }
+            catch (Throwable e) {
+                failure = e;
+            }
+            finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void checkFailure()
+    {
+        if (failure != null) {
+            throw new RuntimeException("Unable to write to the file sink", failure);
+        }
+    }
+
+    private String getTimePartition(Object time)
+    {
+        try {
+            if (time instanceof Number) {
+                return partitionFormat.format(Instant.ofEpochMilli(((Number) time).longValue()));
+            }
+            if (time instanceof String) {
+                return partitionFormat.format(Instant.ofEpochMilli(TypeCoercion.parseTimestamp((String) time)));
+            }
+        }
+        catch (IllegalArgumentException e) {
+            // fall through
+        }
+        return UNKNOWN_TIME;
+    }
+
+    private static String sanitize(String name)
+    {
+        return name == null ? "_unknown" : name.replaceAll("[^a-zA-Z0-9_.-]", "_");
+    }
+
+    private class PartitionWriter
+    {
+        private final File partitionDirectory;
+        private int part;
+        private File file;
+        private CountingOutputStream counter;
+        private OutputStream output;
+
+        public PartitionWriter(String partition)
+        {
+            this.partitionDirectory = new File(directory, partition);
+        }
+
+        public void write(byte[] chunk)
+                throws IOException
+        {
+            if (output == null) {
+                partitionDirectory.mkdirs();
+                file = new File(partitionDirectory, format("part-%s-%05d.ndjson.gz.inprogress", runId, part++));
+                counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+                output = new GZIPOutputStream(counter, 64 * 1024);
+            }
+
+            output.write(chunk);
+
+            if (counter.getCount() >= maxFileSize) {
+                roll();
+            }
+        }
+
+        public void roll()
+                throws IOException
+        {
+            if (output == null) {
+                return;
+            }
+
+            output.close();
+            output = null;
+            String name = file.getName();
+            if (!file.renameTo(new File(partitionDirectory, name.substring(0, name.length() - ".inprogress".length())))) {
+                throw new IOException("Unable to rename " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package org.rakam.importer.sink;
+
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import io.rakam.client.model.User;
+import org.rakam.importer.Event;
+import org.rakam.importer.metrics.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Keeps the encoded batches of a {@link RakamSink} in segment files on disk and delivers them to Rakam on a pool of senders,
+ * so the importers don't wait for Rakam and the batches that are not delivered when the process stops are sent in the next run.
+ * <p>
+ * A segment starts with a header that has the path of the requests, the batches are appended as length-prefixed records.
+ * Once a segment reaches its maximum size or the sink is flushed, it's sealed and delivered by one of the senders in record order.
+ * The offset of the first record that is not delivered yet is kept in a {@code .ack} file next to the segment, the segment is deleted
+ * when all of its records are delivered. A batch may be sent twice if the process stops between sending it and writing the offset.
+ * <p>
+ * The writers block when the size of the batches that are not delivered exceeds {@code maxPendingBytes}, the current segment is
+ * sealed before they wait so that it can be delivered.
+ * The users are sent to Rakam directly.
+ */
+public class OutboxSink
+        implements Sink
+{
+    private final static Logger LOGGER = Logger.get(OutboxSink.class);
+
+    private static final int MAGIC = 0x4f555442;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".outbox";
+
+    private final RakamSink sink;
+    private final File directory;
+    private final long segmentSize;
+    private final long maxPendingBytes;
+    private final ExecutorService senders;
+
+    // guarded by this
+    private Segment current;
+    private long nextSegment;
+    private long pendingBytes;
+    private int pendingSegments;
+    private Throwable failure;
+
+    public OutboxSink(RakamSink sink, File directory, long segmentSize, long maxPendingBytes, int senders)
+    {
+        this.sink = sink;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxPendingBytes = maxPendingBytes;
+        this.senders = Executors.newFixedThreadPool(senders, new ThreadFactoryBuilder().setNameFormat("outbox-sender-%d").setDaemon(true).build());
+        Metrics.gauge("importer_outbox_pending_bytes", "Size of the batches in the outbox that are not delivered to Rakam", this::getPendingBytes);
+
+        directory.mkdirs();
+        replay();
+    }
+
+    private synchronized void replay()
+    {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            throw new IllegalArgumentException(directory + " is not a directory");
+        }
+
+        List<File> segments = new ArrayList<>(Arrays.asList(files));
+        segments.sort(Comparator.comparingLong(OutboxSink::getSequence));
+        for (File segment : segments) {
+            nextSegment = Math.max(nextSegment, getSequence(segment) + 1);
+            pendingBytes += Math.max(0, segment.length() - readAckedOffset(segment));
+            submit(segment);
+        }
+
+        if (!segments.isEmpty()) {
+            LOGGER.info("Replaying %d undelivered outbox segments (%d bytes) from %s", segments.size(), pendingBytes, directory);
+        }
+    }
+
+    @Override
+    public void writeEvents(List<Event> events)
+    {
+        append(sink.generateContent(events));
+    }
+
+    @Override
+    public void writeUsers(List<User> users)
+    {
+        sink.writeUsers(users);
+    }
+
+    private synchronized void append(byte[] content)
+    {
+        try {
+            if (pendingBytes >= maxPendingBytes && current != null) {
+                // the senders only deliver the sealed segments, the writers would wait for the current one forever
+                seal();
+            }
+            while (pendingBytes >= maxPendingBytes && failure == null) {
+                wait();
+            }
+            checkFailure();
+
+            if (current == null) {
+                current = new Segment(new File(directory, SEGMENT_PREFIX + nextSegment++ + SEGMENT_SUFFIX), sink.getEventPath());
+                pendingBytes += current.size;
+            }
+            current.append(content);
+            pendingBytes += content.length + 4;
+
+            if (current.size >= segmentSize) {
+                seal();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Waits until all the batches that are written so far are delivered to Rakam.
+     */
+    @Override
+    public synchronized void flush()
+    {
+        try {
+            if (current != null) {
+                seal();
+            }
+            while (pendingSegments > 0 && failure == null) {
+                wait();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        checkFailure();
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            flush();
+        }
+        finally {
+            senders.shutdownNow();
+        }
+    }
+
+    public synchronized long getPendingBytes()
+    {
+        return pendingBytes;
+    }
+
+    // guarded by this
+    private void seal()
+            throws IOException
+    {
+        current.close();
+        submit(current.file);
+        current = null;
+    }
+
+    // guarded by this
+    private void submit(File segment)
+    {
+        pendingSegments++;
+        senders.execute(() -> deliver(segment));
+    }
+
+    private void deliver(File segment)
+    {
+        File ackFile = getAckFile(segment);
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 64 * 1024));
+                RandomAccessFile ack = new RandomAccessFile(ackFile, "rw")) {
+            String path;
+            try {
+                if (input.readInt() != MAGIC) {
+                    throw new IllegalStateException(segment + " is not an outbox segment");
+                }
+                path = input.readUTF();
+            }
+            catch (EOFException e) {
+                // the process stopped while the segment was being created
+                released(segment.length());
+                path = null;
+            }
+
+            if (path != null) {
+                sendRecords(segment, input, ack, path);
+            }
+        }
+        catch (Throwable e) {
+            LOGGER.error(e, "Unable to deliver outbox segment %s, it will be sent again in the next run", segment.getName());
+            synchronized (this) {
+                if (failure == null) {
+                    failure = e;
+                }
+                pendingSegments--;
+                notifyAll();
+            }
+            return;
+        }
+
+        segment.delete();
+        ackFile.delete();
+        synchronized (this) {
+            pendingSegments--;
+            notifyAll();
+        }
+    }
+
+    private void sendRecords(File segment, DataInputStream input, RandomAccessFile ack, String path)
+            throws IOException
+    {
+        long offset = 6 + path.getBytes(StandardCharsets.UTF_8).length;
+        if (ack.length() >= 8) {
+            long acked = ack.readLong();
+            ByteStreams.skipFully(input, acked - offset);
+            offset = acked;
+        }
+        else {
+            // the header is counted as pending until the delivery of the segment starts
+            released(offset);
+        }
+
+        while (true) {
+            byte[] content;
+            try {
+                content = new byte[input.readInt()];
+                input.readFully(content);
+            }
+            catch (EOFException e) {
+                if (offset < segment.length()) {
+                    // the process stopped while the last batch was being written
+                    LOGGER.warn("Outbox segment %s is truncated at offset %d, the rest of it is dropped", segment.getName(), offset);
+                    released(segment.length() - offset);
+                }
+                return;
+            }
+
+            sink.send(path, content);
+            offset += content.length + 4;
+            ack.seek(0);
+            ack.writeLong(offset);
+            released(content.length + 4);
+        }
+    }
+
+    private synchronized void released(long bytes)
+    {
+        pendingBytes -= bytes;
+        notifyAll();
+    }
+
+    // guarded by this
+    private void checkFailure()
+    {
+        if (failure != null) {
+            throw new RuntimeException("Unable to deliver the outbox to Rakam", failure);
+        }
+    }
+
+    private static long readAckedOffset(File segment)
+    {
+        File ackFile = getAckFile(segment);
+        if (ackFile.length() < 8) {
+            return 0;
+        }
+        try (DataInputStream input = new DataInputStream(new FileInputStream(ackFile))) {
+            return input.readLong();
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static File getAckFile(File segment)
+    {
+        return new File(segment.getPath() + ".ack");
+    }
+
+    private static long getSequence(File segment)
+    {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static class Segment
+    {
+        private final File file;
+        private final FileChannel channel;
+        private final ByteBuffer length = ByteBuffer.allocate(4);
+        private long size;
+
+        public Segment(File file, String path)
+                throws IOException
+        {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), CREATE_NEW, WRITE);
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(header);
+            output.writeInt(MAGIC);
+            output.writeUTF(path);
+            write(ByteBuffer.wrap(header.toByteArray()));
+        }
+
+        public void append(byte[] content)
+                throws IOException
+        {
+            length.clear();
+            length.putInt(content.length).flip();
+            write(length);
+            write(ByteBuffer.wrap(content));
+        }
+
+        private void write(ByteBuffer buffer)
+                throws IOException
+        {
+            while (buffer.hasRemaining()) {
+                size += channel.write(buffer);
+            }
+        }
+
+        public void close()
+                throws IOException
+        {
+            channel.force(true);
+            channel.close();
+        }
+    }
+}
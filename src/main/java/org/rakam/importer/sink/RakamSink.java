@@ -0,0 +1,214 @@
+package org.rakam.importer.sink;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+import io.rakam.ApiClient;
+import io.rakam.ApiException;
+import io.rakam.auth.ApiKeyAuth;
+import io.rakam.client.api.UserApi;
+import io.rakam.client.model.SchemaField;
+import io.rakam.client.model.User;
+import io.rakam.client.model.UserCreateUsers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.rakam.importer.Event;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.rakam.importer.metrics.StageMetrics.BATCH_ENCODE_TIME;
+import static org.rakam.importer.metrics.StageMetrics.RAKAM_REQUEST_TIME;
+import static org.rakam.importer.metrics.StageMetrics.RAKAM_RETRIES;
+
+public class RakamSink
+        implements Sink
+{
+    private final static Logger LOGGER = Logger.get(RakamSink.class);
+    private final static ObjectMapper mapper = new ObjectMapper();
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final String SCHEMA_PATH = "/project/schema/add";
+
+    private final OkHttpClient client;
+    private final String rakamAddress;
+    private final String apiKey;
+    private final String eventPath;
+    private final UserApi userApi;
+    private final AtomicLong total = new AtomicLong();
+
+    public RakamSink(OkHttpClient client, String rakamAddress, String apiKey, String eventPath)
+    {
+        checkArgument(rakamAddress != null, "--rakam.address is required when the data is sent to Rakam");
+        checkArgument(apiKey != null, "Rakam api key is required when the data is sent to Rakam");
+        this.client = client;
+        this.rakamAddress = rakamAddress;
+        this.apiKey = apiKey;
+        this.eventPath = eventPath;
+
+        ApiClient apiClient = new ApiClient();
+        ((ApiKeyAuth) apiClient.getAuthentication("write_key")).setApiKey(apiKey);
+        apiClient.setBasePath(rakamAddress);
+        this.userApi = new UserApi(apiClient);
+    }
+
+    @Override
+    public void writeEvents(List<Event> events)
+    {
+        LOGGER.info("Sending event batch to Rakam. Current batch: %d, Previous total: %d", events.size(), total.get());
+        send(eventPath, generateContent(events));
+        total.addAndGet(events.size());
+    }
+
+    /**
+     * Upserts the users, the request is retried like {@link #send(String, byte[])}.
+     */
+    @Override
+    public void writeUsers(List<User> users)
+    {
+        UserCreateUsers createReq = new UserCreateUsers();
+        createReq.setUsers(users);
+
+        for (int attempt = 0; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                userApi.createUsers(createReq);
+                return;
+            }
+            catch (ApiException e) {
+                // the connection errors don't have a status code
+                if (e.getCode() != 0 && e.getCode() != 429 && e.getCode() < 500) {
+                    throw new RuntimeException(e.getCode() + " -> " + e.getResponseBody(), e);
+                }
+                LOGGER.warn("Unable to send users to Rakam (%d), retrying: %s", e.getCode(), e.getCode() == 0 ? e.getMessage() : e.getResponseBody());
+            }
+            finally {
+                RAKAM_REQUEST_TIME.observe(System.nanoTime() - start);
+            }
+            backoff(attempt);
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+
+    /**
+     * Encodes the events as the body of the bulk request.
+     */
+    public byte[] generateContent(List<Event> batchRecords)
+    {
+        HashMap<Object, Object> context = new HashMap<>();
+        context.put("api_key", apiKey);
+
+        HashMap<Object, Object> eventList = new HashMap<>();
+        eventList.put("api", context);
+        eventList.put("events", batchRecords);
+        byte[] content;
+        long start = System.nanoTime();
+        try {
+            content = mapper.writeValueAsBytes(eventList);
+        }
+        catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+        BATCH_ENCODE_TIME.observe(System.nanoTime() - start);
+        return content;
+    }
+
+    /**
+     * Creates the collection in Rakam or adds the fields that it doesn't have yet, so the event batches don't change the schema.
+     */
+    public void addFields(String masterKey, String collection, List<SchemaField> fields)
+    {
+        List<Map<String, String>> fieldList = new ArrayList<>(fields.size());
+        for (SchemaField field : fields) {
+            Map<String, String> value = new HashMap<>();
+            value.put("name", field.getName());
+            value.put("type", String.valueOf(field.getType()));
+            fieldList.add(value);
+        }
+
+        HashMap<Object, Object> request = new HashMap<>();
+        request.put("collection", collection);
+        request.put("fields", fieldList);
+        try {
+            send(SCHEMA_PATH, mapper.writeValueAsBytes(request), masterKey);
+        }
+        catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sends an encoded batch to the given path of Rakam. The request is retried with a backoff until Rakam accepts it,
+     * the errors other than throttling and server errors are propagated.
+     */
+    public void send(String path, byte[] content)
+    {
+        send(path, content, null);
+    }
+
+    private void send(String path, byte[] content, String masterKey)
+    {
+        RequestBody body = RequestBody.create(MediaType.parse("application/json"), content);
+        Request.Builder builder = new Request.Builder()
+                .url(rakamAddress + path)
+                .post(body);
+        if (masterKey != null) {
+            builder.header("master_key", masterKey);
+        }
+        Request request = builder.build();
+
+        for (int attempt = 0; ; attempt++) {
+            long start = System.nanoTime();
+            try (Response response = client.newCall(request).execute()) {
+                String string = response.body().string();
+                RAKAM_REQUEST_TIME.observe(System.nanoTime() - start);
+
+                if (response.code() == 200) {
+                    return;
+                }
+                if (response.code() != 429 && response.code() < 500) {
+                    throw new RuntimeException(response.code() + " -> " + string);
+                }
+                LOGGER.warn("Rakam returned %d, retrying: %s", response.code(), string);
+            }
+            catch (IOException e) {
+                LOGGER.warn("Error while sending request to Rakam, retrying: %s", e.getMessage());
+            }
+            backoff(attempt);
+        }
+    }
+
+    private static void backoff(int attempt)
+    {
+        RAKAM_RETRIES.increment();
+        try {
+            Thread.sleep(Math.min(MAX_BACKOFF_MILLIS, 100L << Math.min(attempt, 10)));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+    }
+
+    public String getEventPath()
+    {
+        return eventPath;
+    }
+}
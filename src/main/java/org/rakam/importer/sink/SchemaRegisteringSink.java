@@ -0,0 +1,103 @@
+package org.rakam.importer.sink;
+
+import com.google.common.util.concurrent.Futures;
+import io.airlift.log.Logger;
+import io.rakam.client.model.SchemaField;
+import io.rakam.client.model.User;
+import org.rakam.importer.Event;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+
+/**
+ * Adds the fields of a collection to its schema in Rakam before the first batch that has an event of the collection is written,
+ * so Rakam doesn't have to alter the collection while the batches are being ingested and the batches only carry the data.
+ * <p>
+ * A collection whose schema can't be registered is still imported, Rakam adds the fields as the events arrive.
+ */
+public class SchemaRegisteringSink
+        implements Sink
+{
+    private final static Logger LOGGER = Logger.get(SchemaRegisteringSink.class);
+
+    private final Sink sink;
+    private final RakamSink rakamSink;
+    private final String masterKey;
+    private final Function<String, List<SchemaField>> schemas;
+    private final ConcurrentMap<String, FutureTask<?>> registrations = new ConcurrentHashMap<>();
+
+    /**
+     * @param sink the sink that the events are written to, it sends them to {@code rakamSink} directly or through the outbox
+     */
+    public SchemaRegisteringSink(Sink sink, RakamSink rakamSink, String masterKey, Function<String, List<SchemaField>> schemas)
+    {
+        this.sink = sink;
+        this.rakamSink = rakamSink;
+        this.masterKey = masterKey;
+        this.schemas = schemas;
+    }
+
+    @Override
+    public void writeEvents(List<Event> events)
+    {
+        String previous = null;
+        for (Event event : events) {
+            // the events of a batch are usually from a few collections
+            if (event.collection.equals(previous)) {
+                continue;
+            }
+            previous = event.collection;
+            FutureTask<?> registration = registrations.get(event.collection);
+            if (registration == null || !registration.isDone()) {
+                register(event.collection, schemas.apply(event.collection));
+            }
+        }
+        sink.writeEvents(events);
+    }
+
+    private void register(String collection, List<SchemaField> fields)
+    {
+        FutureTask<?> registration = new FutureTask<>(() -> {
+            if (fields.isEmpty()) {
+                return;
+            }
+            try {
+                rakamSink.addFields(masterKey, collection, fields);
+                LOGGER.info("Registered %d fields of collection %s", fields.size(), collection);
+            }
+            catch (RuntimeException e) {
+                LOGGER.warn(e, "Unable to register the schema of collection %s, Rakam will add the fields as the events arrive", collection);
+            }
+        }, null);
+
+        FutureTask<?> existing = registrations.putIfAbsent(collection, registration);
+        if (existing == null) {
+            registration.run();
+        }
+        else {
+            // the other writers of the collection wait until its fields are added
+            Futures.getUnchecked(existing);
+        }
+    }
+
+    @Override
+    public void writeUsers(List<User> users)
+    {
+        sink.writeUsers(users);
+    }
+
+    @Override
+    public void flush()
+    {
+        sink.flush();
+    }
+
+    @Override
+    public void close()
+    {
+        sink.close();
+    }
+}
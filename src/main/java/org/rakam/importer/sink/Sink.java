@@ -0,0 +1,27 @@
+package org.rakam.importer.sink;
+
+import io.rakam.client.model.User;
+import org.rakam.importer.Event;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Destination of the imported data. The importers reuse the event objects once {@link #writeEvents(List)} returns
+ * so the implementations must not keep references to them. The write methods may be called concurrently.
+ */
+public interface Sink
+        extends Closeable
+{
+    void writeEvents(List<Event> events);
+
+    void writeUsers(List<User> users);
+
+    /**
+     * Makes the data that is written so far visible in the destination.
+     */
+    void flush();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,114 @@
+package org.rakam.importer.sink;
+
+import io.airlift.airline.Option;
+import io.rakam.client.model.SchemaField;
+
+import java.io.File;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+public class SinkOptions
+{
+    @Option(name = "--sink", description = "Where the data is written: rakam, file or jdbc")
+    public String sink = "rakam";
+
+    @Option(name = "--sink.directory", description = "Output directory of the file sink")
+    public String directory = "./export";
+
+    @Option(name = "--sink.partition", description = "Event time partition of the file sink and the ordered delivery: hour or day")
+    public String partition = "day";
+
+    @Option(name = "--sink.max-file-size", description = "Compressed size in bytes after which the file sink starts a new file")
+    public long maxFileSize = 256 * 1024 * 1024;
+
+    @Option(name = "--sink.threads", description = "Number of writer threads of the file and jdbc sinks")
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--sink.jdbc.url", description = "JDBC url of the database, the driver must be in the classpath")
+    public String jdbcUrl;
+
+    @Option(name = "--sink.jdbc.user", description = "Database user")
+    public String jdbcUser;
+
+    @Option(name = "--sink.jdbc.password", description = "Database password")
+    public String jdbcPassword;
+
+    @Option(name = "--sink.jdbc.rows-per-statement", description = "Number of rows in a multi-row insert statement")
+    public int jdbcRowsPerStatement = 100;
+
+    @Option(name = "--sink.jdbc.commit-size", description = "Number of rows after which a writer commits its transaction")
+    public int jdbcCommitSize = 50_000;
+
+    @Option(name = "--sink.jdbc.string-type", description = "Column type of the string fields")
+    public String jdbcStringType = "VARCHAR(65535)";
+
+    @Option(name = "--sink.outbox.directory", description = "Directory of the on-disk outbox of the rakam sink, the batches are sent to Rakam directly if it's not set")
+    public String outboxDirectory;
+
+    @Option(name = "--sink.outbox.segment-size", description = "Size in bytes after which the outbox starts a new segment file")
+    public long outboxSegmentSize = 64 * 1024 * 1024;
+
+    @Option(name = "--sink.outbox.max-size", description = "Size in bytes of the undelivered batches after which the importer waits for the outbox")
+    public long outboxMaxSize = 8L * 1024 * 1024 * 1024;
+
+    @Option(name = "--sink.outbox.senders", description = "Number of threads that deliver the outbox segments to Rakam")
+    public int outboxSenders = 4;
+
+    @Option(name = "--sink.sort", description = "Delivers the events in event time order when the import is flushed")
+    public boolean sort;
+
+    @Option(name = "--sink.sort.memory", description = "Size in bytes of the events that are sorted in memory before they are spilled to disk")
+    public long sortMemory = 256 * 1024 * 1024;
+
+    @Option(name = "--sink.sort.directory", description = "Directory of the sorted runs that don't fit in memory")
+    public String sortDirectory = "./sort";
+
+    @Option(name = "--sink.sort.batch-size", description = "Maximum number of events in a batch of the ordered delivery")
+    public int sortBatchSize = 10_000;
+
+    /**
+     * @param schemas the fields of the Rakam collections, used for creating the tables of the jdbc sink
+     * and registering the schemas of the collections in Rakam
+     * @param masterKey the master key of the Rakam project, the schemas are not registered if it's null
+     */
+    public Sink createSink(Supplier<RakamSink> rakamSink, Function<String, List<SchemaField>> schemas, String masterKey)
+    {
+        Sink sink = createSink0(rakamSink, schemas, masterKey);
+        return this.sort ? new SortingSink(sink, new File(sortDirectory), sortMemory, getPartitionUnit(), sortBatchSize) : sink;
+    }
+
+    private Sink createSink0(Supplier<RakamSink> rakamSink, Function<String, List<SchemaField>> schemas, String masterKey)
+    {
+        switch (sink) {
+            case "rakam":
+                if (outboxDirectory != null && outboxMaxSize <= outboxSegmentSize) {
+                    throw new IllegalArgumentException("--sink.outbox.max-size must be larger than --sink.outbox.segment-size");
+                }
+                RakamSink rakam = rakamSink.get();
+                Sink events = outboxDirectory == null ? rakam : new OutboxSink(rakam, new File(outboxDirectory), outboxSegmentSize, outboxMaxSize, outboxSenders);
+                return masterKey == null ? events : new SchemaRegisteringSink(events, rakam, masterKey, schemas);
+            case "file":
+                return new LocalFileSink(new File(directory), getPartitionUnit(), maxFileSize, threads);
+            case "jdbc":
+                if (jdbcUrl == null) {
+                    throw new IllegalArgumentException("--sink.jdbc.url is required for the jdbc sink");
+                }
+                return new JdbcSink(jdbcUrl, jdbcUser, jdbcPassword, threads, jdbcRowsPerStatement, jdbcCommitSize, jdbcStringType, schemas);
+            default:
+                throw new IllegalArgumentException("Unknown sink: " + sink);
+        }
+    }
+
+    private ChronoUnit getPartitionUnit()
+    {
+        if ("hour".equals(partition)) {
+            return ChronoUnit.HOURS;
+        }
+        if ("day".equals(partition)) {
+            return ChronoUnit.DAYS;
+        }
+        throw new IllegalArgumentException("--sink.partition must be one of hour or day");
+    }
+}
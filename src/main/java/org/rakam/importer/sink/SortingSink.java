@@ -0,0 +1,291 @@
+package org.rakam.importer.sink;
+
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+import io.rakam.client.model.User;
+import org.rakam.importer.Event;
+import org.rakam.importer.SortedRuns;
+import org.rakam.importer.TypeCoercion;
+import org.rakam.importer.ValueInput;
+import org.rakam.importer.ValueOutput;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delivers the events in the order of their {@code _time}. The events are encoded and buffered until the sink is flushed,
+ * when their size exceeds {@code maxMemoryBytes} the buffer is swapped with an empty one and sorted and written to a run file
+ * by the writer that filled it, while the other writers keep buffering. {@link #flush()} merges the runs with the buffered events
+ * and writes them to the sink in batches that don't span the time partitions, so Rakam receives each partition in a few contiguous
+ * batches instead of a slice of it in every batch.
+ * <p>
+ * The events whose time can't be read are written first. Events with the same time keep the order they are written in.
+ * The users are written to the sink directly.
+ */
+public class SortingSink
+        implements Sink
+{
+    private final static Logger LOGGER = Logger.get(SortingSink.class);
+
+    // rough size of a buffered record, its array and its reference in the buffer
+    private static final int RECORD_OVERHEAD = 48;
+
+    private final Sink sink;
+    private final SortedRuns<Record> runs;
+    private final long maxMemoryBytes;
+    private final long partitionMillis;
+    private final int batchSize;
+
+    // guarded by this
+    private List<Record> records = new ArrayList<>();
+    private long memoryBytes;
+    private boolean spilling;
+    private Throwable failure;
+
+    public SortingSink(Sink sink, File directory, long maxMemoryBytes, ChronoUnit partitionUnit, int batchSize)
+    {
+        this.sink = sink;
+        this.runs = new SortedRuns<>(directory, "run-", ".sort", Comparator.comparingLong(record -> record.time), new RecordCodec());
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.partitionMillis = partitionUnit.getDuration().toMillis();
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void writeEvents(List<Event> events)
+    {
+        // the events are encoded by the calling threads, only the buffering is serialized
+        List<Record> batch = new ArrayList<>(events.size());
+        ValueOutput output = new ValueOutput(1024);
+        try {
+            for (Event event : events) {
+                output.reset();
+                writeEvent(output, event);
+                batch.add(new Record(getTime(event.properties.get("_time")), output.toByteArray()));
+            }
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        List<Record> spilled;
+        File run;
+        synchronized (this) {
+            checkFailure();
+            for (Record record : batch) {
+                records.add(record);
+                memoryBytes += record.data.length + RECORD_OVERHEAD;
+            }
+            if (memoryBytes <= maxMemoryBytes) {
+                return;
+            }
+
+            // only one buffer is spilled at a time so that the memory stays bounded if the disk is slower than the writers
+            waitForSpill();
+            spilled = records;
+            records = new ArrayList<>();
+            memoryBytes = 0;
+            spilling = true;
+            run = runs.reserve();
+        }
+
+        try {
+            runs.write(run, spilled);
+            LOGGER.info("Spilled %d events (%d bytes) to %s", spilled.size(), run.length(), run.getName());
+        }
+        catch (Throwable e) {
+            synchronized (this) {
+                failure = e;
+            }
+            throw e;
+        }
+        finally {
+            synchronized (this) {
+                spilling = false;
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void writeUsers(List<User> users)
+    {
+        sink.writeUsers(users);
+    }
+
+    /**
+     * Writes the events that are buffered so far to the sink in time order and flushes it.
+     */
+    @Override
+    public synchronized void flush()
+    {
+        waitForSpill();
+        try {
+            checkFailure();
+
+            Event[] batch = new Event[batchSize];
+            int[] size = new int[1];
+            long[] partition = new long[1];
+            long[] total = new long[1];
+            runs.merge(records, record -> {
+                long eventPartition = Math.floorDiv(record.time, partitionMillis);
+                if (size[0] == batch.length || (size[0] > 0 && eventPartition != partition[0])) {
+                    sink.writeEvents(Arrays.asList(batch).subList(0, size[0]));
+                    total[0] += size[0];
+                    size[0] = 0;
+                }
+                partition[0] = eventPartition;
+
+                Event event = batch[size[0]];
+                if (event == null) {
+                    event = batch[size[0]] = new Event();
+                    event.properties = new HashMap<>();
+                }
+                try {
+                    readEvent(new ValueInput(ByteBuffer.wrap(record.data)), event);
+                }
+                catch (IOException e) {
+                    throw Throwables.propagate(e);
+                }
+                size[0]++;
+            });
+            if (size[0] > 0) {
+                sink.writeEvents(Arrays.asList(batch).subList(0, size[0]));
+                total[0] += size[0];
+            }
+
+            if (total[0] > 0) {
+                LOGGER.info("Wrote %d events in time order from %d runs", total[0], runs.getRunCount());
+            }
+        }
+        finally {
+            clear();
+        }
+
+        sink.flush();
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        waitForSpill();
+        clear();
+        runs.close();
+        sink.close();
+    }
+
+    // guarded by this
+    private void waitForSpill()
+    {
+        try {
+            while (spilling) {
+                wait();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+    }
+
+    // guarded by this
+    private void checkFailure()
+    {
+        if (failure != null) {
+            throw new RuntimeException("Unable to spill the events", failure);
+        }
+    }
+
+    // guarded by this
+    private void clear()
+    {
+        records = new ArrayList<>();
+        memoryBytes = 0;
+        failure = null;
+        runs.clear();
+    }
+
+    private static long getTime(Object time)
+    {
+        try {
+            if (time instanceof Number) {
+                return TypeCoercion.toEpochMillis(((Number) time).longValue());
+            }
+            if (time instanceof String) {
+                return TypeCoercion.parseTimestamp((String) time);
+            }
+        }
+        catch (IllegalArgumentException e) {
+            // fall through
+        }
+        return Long.MIN_VALUE;
+    }
+
+    private static void writeEvent(ValueOutput output, Event event)
+            throws IOException
+    {
+        output.writeString(event.collection);
+        output.writeVarLong(event.properties.size());
+        for (Map.Entry<String, Object> entry : event.properties.entrySet()) {
+            output.writeString(entry.getKey());
+            output.writeValue(entry.getValue());
+        }
+    }
+
+    private static void readEvent(ValueInput input, Event event)
+            throws IOException
+    {
+        event.collection = input.readString();
+        event.properties.clear();
+        int properties = input.readVarInt();
+        for (int i = 0; i < properties; i++) {
+            String key = input.readString();
+            event.properties.put(key, input.readValue());
+        }
+    }
+
+    private static class Record
+    {
+        private final long time;
+        private final byte[] data;
+
+        public Record(long time, byte[] data)
+        {
+            this.time = time;
+            this.data = data;
+        }
+    }
+
+    private static class RecordCodec
+            implements SortedRuns.Codec<Record>
+    {
+        @Override
+        public void write(DataOutputStream output, Record record)
+                throws IOException
+        {
+            output.writeLong(record.time);
+            output.writeInt(record.data.length);
+            output.write(record.data);
+        }
+
+        @Override
+        public Record read(DataInputStream input)
+                throws IOException
+        {
+            long time = input.readLong();
+            byte[] data = new byte[input.readInt()];
+            input.readFully(data);
+            return new Record(time, data);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.rakam.importer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executors of {@link IoExecutorOptions} when the importer is built with the java21 profile.
+ */
+public final class VirtualThreadExecutors
+{
+    private VirtualThreadExecutors()
+    {
+    }
+
+    public static ExecutorService create(String name)
+    {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+    }
+}
@@ -0,0 +1,126 @@
+package org.rakam.importer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedTaskQueueTest
+{
+    private static final LocalDateTime START = LocalDateTime.of(2016, 1, 1, 0, 0);
+    private static final List<Map.Entry<LocalDateTime, LocalDateTime>> WINDOWS = ImmutableList.of(
+            new SimpleImmutableEntry<>(START, START.plusDays(1)),
+            new SimpleImmutableEntry<>(START.plusDays(1), START.plusDays(2)));
+    // the leases are not renewed during the tests
+    private static final Duration LEASE_TIMEOUT = Duration.ofHours(1);
+
+    private File directory;
+
+    @Before
+    public void setUp()
+    {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown()
+    {
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void testTasksAreClaimedOnce()
+            throws InterruptedException
+    {
+        try (SharedTaskQueue first = new SharedTaskQueue(directory, LEASE_TIMEOUT);
+                SharedTaskQueue second = new SharedTaskQueue(directory, LEASE_TIMEOUT)) {
+            first.plan(WINDOWS);
+            second.plan(ImmutableList.of(new SimpleImmutableEntry<>(START, START.plusDays(10))));
+            assertEquals(2, second.getTaskCount());
+
+            SharedTaskQueue.Task firstTask = first.claim();
+            SharedTaskQueue.Task secondTask = second.claim();
+            assertNotEquals(firstTask.getId(), secondTask.getId());
+            assertEquals(START, firstTask.getStart());
+            assertEquals(START.plusDays(1), firstTask.getEnd());
+
+            first.complete(firstTask);
+            second.complete(secondTask);
+            assertEquals(2, first.getCompletedTaskCount());
+            assertNull(first.claim());
+        }
+    }
+
+    @Test
+    public void testReleasedTaskIsClaimedAgain()
+            throws InterruptedException
+    {
+        try (SharedTaskQueue first = new SharedTaskQueue(directory, LEASE_TIMEOUT);
+                SharedTaskQueue second = new SharedTaskQueue(directory, LEASE_TIMEOUT)) {
+            first.plan(WINDOWS);
+            SharedTaskQueue.Task task = first.claim();
+            first.release(task);
+            assertEquals(task.getId(), second.claim().getId());
+        }
+    }
+
+    @Test
+    public void testExpiredLeaseIsTakenOver()
+            throws InterruptedException, IOException
+    {
+        SharedTaskQueue dead = new SharedTaskQueue(directory, LEASE_TIMEOUT);
+        try (SharedTaskQueue live = new SharedTaskQueue(directory, LEASE_TIMEOUT)) {
+            dead.plan(WINDOWS);
+            SharedTaskQueue.Task abandoned = dead.claim();
+
+            // the lease is alive, so the other task is claimed
+            SharedTaskQueue.Task other = live.claim();
+            assertNotEquals(abandoned.getId(), other.getId());
+            live.complete(other);
+
+            File lease = new File(directory, "leases/" + abandoned.getId() + ".lease");
+            assertTrue(lease.setLastModified(System.currentTimeMillis() - LEASE_TIMEOUT.toMillis() - 1000));
+
+            SharedTaskQueue.Task takenOver = live.claim();
+            assertEquals(abandoned.getId(), takenOver.getId());
+            String owner = Files.toString(lease, UTF_8);
+
+            // the previous owner doesn't remove the lease of the new owner
+            dead.close();
+            assertTrue(lease.exists());
+            assertEquals(owner, Files.toString(lease, UTF_8));
+
+            live.complete(takenOver);
+            assertNull(live.claim());
+        }
+        finally {
+            dead.close();
+        }
+    }
+
+    private static void deleteRecursively(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,123 @@
+package org.rakam.importer;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SortedRunsTest
+{
+    private File directory;
+
+    @Before
+    public void setUp()
+    {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.stream(files).forEach(File::delete);
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testMerge()
+    {
+        assertMerge(SortedRuns.DEFAULT_MAX_FAN_IN, 10);
+    }
+
+    @Test
+    public void testMergeInSeveralPasses()
+    {
+        // 50 runs in groups of 3 take three passes before the final merge
+        assertMerge(3, 50);
+    }
+
+    @Test
+    public void testClose()
+    {
+        try (SortedRuns<long[]> runs = createRuns(3)) {
+            runs.spill(createRecords(new Random(0), 0, 10));
+            runs.spill(createRecords(new Random(1), 1, 10));
+            assertEquals(2, runs.getRunCount());
+        }
+        File[] files = directory.listFiles();
+        assertTrue(files != null && files.length == 0);
+    }
+
+    private void assertMerge(int maxFanIn, int runCount)
+    {
+        Random random = new Random(42);
+        List<long[]> expected = new ArrayList<>();
+        try (SortedRuns<long[]> runs = createRuns(maxFanIn)) {
+            for (int run = 0; run < runCount; run++) {
+                List<long[]> records = createRecords(random, run, 100);
+                expected.addAll(records);
+                runs.spill(records);
+            }
+            List<long[]> memory = createRecords(random, runCount, 100);
+            expected.addAll(memory);
+
+            List<long[]> merged = new ArrayList<>();
+            runs.merge(memory, merged::add);
+            assertTrue(runs.getRunCount() < maxFanIn);
+
+            // the sort is stable, the equal keys keep the order they are added in
+            expected.sort(Comparator.comparingLong(record -> record[0]));
+            assertEquals(expected.size(), merged.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i)[0], merged.get(i)[0]);
+                assertEquals(expected.get(i)[1], merged.get(i)[1]);
+            }
+        }
+    }
+
+    private SortedRuns<long[]> createRuns(int maxFanIn)
+    {
+        return new SortedRuns<>(directory, "test-", ".run", Comparator.comparingLong(record -> record[0]), new SortedRuns.Codec<long[]>()
+        {
+            @Override
+            public void write(DataOutputStream output, long[] record)
+                    throws IOException
+            {
+                output.writeLong(record[0]);
+                output.writeLong(record[1]);
+            }
+
+            @Override
+            public long[] read(DataInputStream input)
+                    throws IOException
+            {
+                return new long[] {input.readLong(), input.readLong()};
+            }
+        }, maxFanIn);
+    }
+
+    // the second value is the position of the record in the input
+    private static List<long[]> createRecords(Random random, int run, int count)
+    {
+        List<long[]> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            records.add(new long[] {random.nextInt(50), run * 1000L + i});
+        }
+        return records;
+    }
+}
@@ -0,0 +1,109 @@
+package org.rakam.importer;
+
+import io.rakam.client.model.SchemaField;
+import org.junit.Test;
+
+import java.time.Instant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TypeCoercionTest
+{
+    @Test
+    public void testParseLong()
+    {
+        assertEquals(0, TypeCoercion.parseLong("0"));
+        assertEquals(42, TypeCoercion.parseLong("+42"));
+        assertEquals(-42, TypeCoercion.parseLong("-42"));
+        assertEquals(123456789012345678L, TypeCoercion.parseLong("123456789012345678"));
+        assertEquals(Long.MAX_VALUE, TypeCoercion.parseLong("9223372036854775807"));
+        assertEquals(Long.MIN_VALUE, TypeCoercion.parseLong("-9223372036854775808"));
+    }
+
+    @Test
+    public void testParseLongOverflow()
+    {
+        assertInvalidLong("9223372036854775808");
+        assertInvalidLong("-9223372036854775809");
+        assertInvalidLong("9999999999999999999");
+        assertInvalidLong("99999999999999999999");
+    }
+
+    @Test
+    public void testParseInvalidLong()
+    {
+        assertInvalidLong("");
+        assertInvalidLong("-");
+        assertInvalidLong("+");
+        assertInvalidLong("12a");
+        assertInvalidLong("1.5");
+    }
+
+    @Test
+    public void testCoerce()
+    {
+        assertEquals(42L, TypeCoercion.coerce("42", SchemaField.TypeEnum.LONG));
+        assertEquals(42L, TypeCoercion.coerce(42, SchemaField.TypeEnum.LONG));
+        assertEquals(1.5, TypeCoercion.coerce("1.5", SchemaField.TypeEnum.DOUBLE));
+        assertEquals(true, TypeCoercion.coerce("TRUE", SchemaField.TypeEnum.BOOLEAN));
+        assertEquals(false, TypeCoercion.coerce("false", SchemaField.TypeEnum.BOOLEAN));
+        assertEquals("42", TypeCoercion.coerce(42L, SchemaField.TypeEnum.STRING));
+        assertEquals(1450000000000L, TypeCoercion.coerce(1450000000L, SchemaField.TypeEnum.TIMESTAMP));
+        assertEquals(1450000000123L, TypeCoercion.coerce(1450000000123L, SchemaField.TypeEnum.TIMESTAMP));
+        assertEquals(null, TypeCoercion.coerce(null, SchemaField.TypeEnum.LONG));
+    }
+
+    @Test
+    public void testCoerceKeepsInvalidValues()
+    {
+        assertEquals("9223372036854775808", TypeCoercion.coerce("9223372036854775808", SchemaField.TypeEnum.LONG));
+        assertEquals("abc", TypeCoercion.coerce("abc", SchemaField.TypeEnum.DOUBLE));
+        assertEquals("yes", TypeCoercion.coerce("yes", SchemaField.TypeEnum.BOOLEAN));
+        assertEquals("yesterday", TypeCoercion.coerce("yesterday", SchemaField.TypeEnum.TIMESTAMP));
+    }
+
+    @Test
+    public void testParseTimestamp()
+    {
+        assertTimestamp("2016-01-05T00:00:00Z", "2016-01-05");
+        assertTimestamp("2016-01-05T12:34:00Z", "2016-01-05 12:34");
+        assertTimestamp("2016-01-05T12:34:56Z", "2016-01-05T12:34:56");
+        assertTimestamp("2016-01-05T12:34:56.123Z", "2016-01-05 12:34:56.123456");
+        assertTimestamp("2016-01-05T12:34:56Z", "2016-01-05T12:34:56Z");
+        assertTimestamp("2016-01-05T09:34:56Z", "2016-01-05T12:34:56+03:00");
+        assertTimestamp("2016-01-05T15:04:56Z", "2016-01-05T12:34:56-0230");
+        assertTimestamp("2016-02-29T23:59:59Z", "2016-02-29 23:59:59");
+        assertTimestamp("1969-12-31T23:59:59Z", "1969-12-31 23:59:59");
+    }
+
+    @Test
+    public void testParseInvalidTimestamp()
+    {
+        for (String value : new String[] {"2016-01", "2016/01/05", "2016-13-01", "2016-01-32", "2016-01-05T25:00", "2016-01-05T12:34:56.", "2016-01-05X"}) {
+            try {
+                TypeCoercion.parseTimestamp(value);
+                fail("expected an invalid timestamp: " + value);
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private static void assertTimestamp(String expected, String value)
+    {
+        assertEquals(value, Instant.parse(expected).toEpochMilli(), TypeCoercion.parseTimestamp(value));
+    }
+
+    private static void assertInvalidLong(String value)
+    {
+        try {
+            TypeCoercion.parseLong(value);
+            fail("expected an invalid long: " + value);
+        }
+        catch (NumberFormatException e) {
+            // expected
+        }
+    }
+}
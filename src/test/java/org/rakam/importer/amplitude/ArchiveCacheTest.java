@@ -0,0 +1,199 @@
+package org.rakam.importer.amplitude;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import io.rakam.client.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rakam.importer.Event;
+import org.rakam.importer.EventIdSet;
+import org.rakam.importer.sink.Sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveCacheTest
+{
+    private File directory;
+    private File archive;
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        directory = Files.createTempDir();
+        archive = new File(directory, "123_2016-01-01_0#0.zip");
+        Files.write(new byte[] {1, 2, 3}, archive);
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.stream(files).forEach(File::delete);
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        List<Event> events = createEvents(100);
+        ArchiveCache cache = new ArchiveCache(directory, archive);
+        // small blocks so that the events are split into several blocks with their own dictionaries
+        try (ArchiveCache.Writer writer = cache.createWriter(2048)) {
+            writer.writeEvents(events.subList(0, 50));
+            writer.writeEvents(events.subList(50, 100));
+            writer.commit();
+        }
+
+        assertTrue(cache.isComplete());
+        assertEvents(events, importEvents(cache, null));
+    }
+
+    @Test
+    public void testDuplicateEventsAreSkipped()
+    {
+        ArchiveCache cache = new ArchiveCache(directory, archive);
+        try (ArchiveCache.Writer writer = cache.createWriter(ArchiveCache.DEFAULT_BLOCK_SIZE)) {
+            writer.writeEvents(createEvents(10));
+            writer.commit();
+        }
+
+        EventIdSet ids = EventIdSet.inMemory(1000);
+        assertEquals(10, importEvents(cache, ids).size());
+        assertEquals(0, importEvents(cache, ids).size());
+    }
+
+    @Test
+    public void testUncommittedCacheIsIncomplete()
+    {
+        ArchiveCache cache = new ArchiveCache(directory, archive);
+        try (ArchiveCache.Writer writer = cache.createWriter(256)) {
+            writer.writeEvents(createEvents(10));
+        }
+        assertFalse(cache.isComplete());
+    }
+
+    @Test
+    public void testIndexOfChangedArchiveIsIgnored()
+            throws IOException
+    {
+        ArchiveCache cache = new ArchiveCache(directory, archive);
+        try (ArchiveCache.Writer writer = cache.createWriter(256)) {
+            writer.writeEvents(createEvents(10));
+            writer.commit();
+        }
+        assertTrue(cache.isComplete());
+
+        Files.append("more", archive, UTF_8);
+        assertFalse(new ArchiveCache(directory, archive).isComplete());
+    }
+
+    @Test
+    public void testTruncatedCacheIsIncomplete()
+            throws IOException
+    {
+        ArchiveCache cache = new ArchiveCache(directory, archive);
+        try (ArchiveCache.Writer writer = cache.createWriter(256)) {
+            writer.writeEvents(createEvents(10));
+            writer.commit();
+        }
+
+        try (RandomAccessFile data = new RandomAccessFile(new File(directory, archive.getName() + ".events"), "rw")) {
+            data.setLength(data.length() - 1);
+        }
+        assertFalse(cache.isComplete());
+    }
+
+    private static List<Event> importEvents(ArchiveCache cache, EventIdSet ids)
+    {
+        List<Event> imported = new ArrayList<>();
+        Sink sink = new Sink()
+        {
+            @Override
+            public void writeEvents(List<Event> events)
+            {
+                // the events of the batch are reused by the cache
+                for (Event event : events) {
+                    Event copy = new Event();
+                    copy.collection = event.collection;
+                    copy.properties = new HashMap<>(event.properties);
+                    imported.add(copy);
+                }
+            }
+
+            @Override
+            public void writeUsers(List<User> users)
+            {
+            }
+
+            @Override
+            public void flush()
+            {
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+        long count = cache.importEvents(sink, ids, null, Runnable::run, 1, 7);
+        assertEquals(imported.size(), count);
+        return imported;
+    }
+
+    private static List<Event> createEvents(int count)
+    {
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("_id", "event-" + i);
+            properties.put("platform", i % 2 == 0 ? "ios" : "android");
+            properties.put("_time", 1450000000000L + i);
+            properties.put("small", (long) i);
+            properties.put("negative", -i * 1000L);
+            properties.put("min", Long.MIN_VALUE);
+            properties.put("max", Long.MAX_VALUE);
+            properties.put("int", -i);
+            properties.put("double", i / 3.0);
+            properties.put("float", i / 2.0f);
+            properties.put("paid", i % 3 == 0);
+            properties.put("missing", null);
+            properties.put("nested", ImmutableMap.of("tags", ImmutableList.of("a", i), "city", "Istanbul"));
+            events.add(event(i % 3 == 0 ? "purchase" : "pageview", properties));
+        }
+        return events;
+    }
+
+    private static Event event(String collection, Map<String, Object> properties)
+    {
+        Event event = new Event();
+        event.collection = collection;
+        event.properties = properties;
+        return event;
+    }
+
+    private static void assertEvents(List<Event> expected, List<Event> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).collection, actual.get(i).collection);
+            assertEquals(expected.get(i).properties, actual.get(i).properties);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.rakam.importer.mixpanel;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EngagePartitionsTest
+{
+    private static final LocalDate START = LocalDate.of(2020, 1, 1);
+    // epoch seconds of 2020-01-01, 2020-01-04 and 2020-01-07
+    private static final long DAY_1 = 1577836800;
+    private static final long DAY_4 = 1578096000;
+    private static final long DAY_7 = 1578355200;
+
+    @Test
+    public void testSelectors()
+    {
+        assertEquals(ImmutableList.of(
+                "properties[\"$last_seen\"] >= datetime(" + DAY_1 + ") and properties[\"$last_seen\"] < datetime(" + DAY_4 + ")",
+                "properties[\"$last_seen\"] >= datetime(" + DAY_4 + ") and properties[\"$last_seen\"] < datetime(" + DAY_7 + ")",
+                "properties[\"$last_seen\"] >= datetime(" + DAY_7 + ")"),
+                EngagePartitions.createSelectors(START, START.plusDays(9), 3, false));
+    }
+
+    @Test
+    public void testFirstSelectorHasUnseenPeople()
+    {
+        assertEquals(ImmutableList.of(
+                "not defined(properties[\"$last_seen\"]) or (properties[\"$last_seen\"] < datetime(" + DAY_4 + "))",
+                "properties[\"$last_seen\"] >= datetime(" + DAY_4 + ") and properties[\"$last_seen\"] < datetime(" + DAY_7 + ")",
+                "properties[\"$last_seen\"] >= datetime(" + DAY_7 + ")"),
+                EngagePartitions.createSelectors(START, START.plusDays(9), 3, true));
+    }
+
+    @Test
+    public void testPartitionsAreLimitedByDays()
+    {
+        List<String> selectors = EngagePartitions.createSelectors(START, START.plusDays(2), 10, false);
+        assertEquals(2, selectors.size());
+        assertEquals(1, EngagePartitions.createSelectors(START, START, 10, false).size());
+    }
+
+    @Test
+    public void testSinglePartitionMatchesAllPeople()
+    {
+        assertEquals(ImmutableList.of(""), EngagePartitions.createSelectors(START, START.plusDays(9), 1, true));
+        assertEquals(ImmutableList.of("properties[\"$last_seen\"] >= datetime(" + DAY_1 + ")"),
+                EngagePartitions.createSelectors(START, START.plusDays(9), 1, false));
+    }
+
+    @Test
+    public void testResume()
+    {
+        File directory = Files.createTempDir();
+        try {
+            LocalDate lastSeen = LocalDate.now().minusDays(30);
+            EngagePartitions partitions = EngagePartitions.load(directory, "project", lastSeen, null, 4);
+            assertEquals(4, partitions.getPending().size());
+            partitions.complete(partitions.selectors.get(1));
+
+            EngagePartitions resumed = EngagePartitions.load(directory, "project", lastSeen, null, 4);
+            assertEquals(partitions.selectors, resumed.selectors);
+            assertEquals(3, resumed.getPending().size());
+            assertFalse(resumed.getPending().contains(partitions.selectors.get(1)));
+
+            // a different filter starts over
+            assertEquals(4, EngagePartitions.load(directory, "project", lastSeen.minusDays(1), null, 4).getPending().size());
+
+            EngagePartitions last = EngagePartitions.load(directory, "project", lastSeen.minusDays(1), null, 4);
+            last.getPending().forEach(last::complete);
+            File[] files = directory.listFiles();
+            assertTrue(files != null && files.length == 0);
+        }
+        finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+}
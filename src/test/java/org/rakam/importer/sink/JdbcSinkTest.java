@@ -0,0 +1,151 @@
+package org.rakam.importer.sink;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.rakam.client.model.SchemaField;
+import io.rakam.client.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rakam.importer.Event;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JdbcSinkTest
+{
+    private static final Map<String, List<SchemaField>> SCHEMAS = ImmutableMap.of(
+            "pageview", ImmutableList.of(field("_time", SchemaField.TypeEnum.TIMESTAMP), field("count", SchemaField.TypeEnum.LONG), field("url", SchemaField.TypeEnum.STRING)),
+            JdbcSink.USERS_TABLE, ImmutableList.of(field("plan", SchemaField.TypeEnum.STRING)));
+
+    private String url;
+    private Connection connection;
+    private TimeZone defaultTimeZone;
+
+    @Before
+    public void setUp()
+            throws SQLException
+    {
+        url = "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+        connection = DriverManager.getConnection(url, "sa", "");
+        // the stored timestamps must not depend on the zone of the JVM
+        defaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+    }
+
+    @After
+    public void tearDown()
+            throws SQLException
+    {
+        TimeZone.setDefault(defaultTimeZone);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+        connection.close();
+    }
+
+    @Test
+    public void testEvents()
+            throws SQLException
+    {
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("_time", 1450000000000L + i);
+            properties.put("count", String.valueOf(i));
+            properties.put("url", "/page/" + i);
+            if (i == 0) {
+                properties.put("referrer", "google");
+            }
+            events.add(event("pageview", properties));
+        }
+
+        try (JdbcSink sink = createSink()) {
+            sink.writeEvents(events);
+            sink.flush();
+        }
+
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT \"_time\", \"count\", \"url\", \"_properties\" FROM \"pageview\" ORDER BY \"count\"")) {
+            for (int i = 0; i < 5; i++) {
+                assertTrue(rs.next());
+                assertEquals(1450000000000L + i, rs.getTimestamp(1, utc).getTime());
+                assertEquals(i, rs.getLong(2));
+                assertEquals("/page/" + i, rs.getString(3));
+                if (i == 0) {
+                    assertEquals("{\"referrer\":\"google\"}", rs.getString(4));
+                }
+                else {
+                    assertNull(rs.getString(4));
+                }
+            }
+            assertFalse(rs.next());
+        }
+    }
+
+    @Test
+    public void testUsersAreUpserted()
+            throws SQLException
+    {
+        try (JdbcSink sink = createSink()) {
+            sink.writeUsers(ImmutableList.of(user("1", "free"), user("2", "free")));
+            sink.flush();
+            sink.writeUsers(ImmutableList.of(user("1", "paid"), user("3", "free"), user("1", "enterprise")));
+            sink.flush();
+        }
+
+        Map<String, String> plans = new HashMap<>();
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT \"_user\", \"plan\" FROM \"_users\"")) {
+            while (rs.next()) {
+                assertNull("duplicate user " + rs.getString(1), plans.put(rs.getString(1), rs.getString(2)));
+            }
+        }
+        assertEquals(ImmutableMap.of("1", "enterprise", "2", "free", "3", "free"), plans);
+    }
+
+    private JdbcSink createSink()
+    {
+        return new JdbcSink(url, "sa", "", 2, 2, 10, "VARCHAR(1000)", SCHEMAS::get);
+    }
+
+    private static Event event(String collection, Map<String, Object> properties)
+    {
+        Event event = new Event();
+        event.collection = collection;
+        event.properties = properties;
+        return event;
+    }
+
+    private static User user(String id, String plan)
+    {
+        User user = new User();
+        user.setId(id);
+        user.setProperties(ImmutableMap.<String, Object>of("plan", plan));
+        return user;
+    }
+
+    private static SchemaField field(String name, SchemaField.TypeEnum type)
+    {
+        SchemaField field = new SchemaField();
+        field.setName(name);
+        field.setType(type);
+        return field;
+    }
+}